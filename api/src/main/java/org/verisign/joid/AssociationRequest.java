@@ -55,15 +55,15 @@ public class AssociationRequest extends Request
      * <code>HMAC-SHA1</code> for association type, and <code>DH-SHA1</code>
      * for session type.
      *
-     * @param crypto the Crypto implementation to use.
+     * @param dh the consumer's Diffie-Hellman key pair.
      * @return an AssociationRequest.
      * @throws OpenIdException 
      */
-    public static AssociationRequest create( Crypto crypto )
+    public static AssociationRequest create( DiffieHellman dh )
     {
         try
         {
-            BigInteger pubKey = crypto.getPublicKey();
+            BigInteger pubKey = dh.getPublicKey();
             Map<String,String> map = new HashMap<String,String>();
             map.put( OpenIdConstants.OPENID_MODE, Mode.ASSOCIATE.toString() );
             map.put( OpenIdConstants.OPENID_ASSOCIATION_TYPE, AssociationType.HMAC_SHA1.toString() );
@@ -26,17 +26,17 @@ import java.util.Set;
 public class AssociationResponse extends Response
 {
     // package scope so that ResponseFactory can trigger on this key
-    static String OPENID_SESSION_TYPE = "session_type";
-    static String OPENID_ASSOCIATION_TYPE = "assoc_type";
+    public final static String OPENID_SESSION_TYPE = "session_type";
+    public final static String OPENID_ASSOCIATION_TYPE = "assoc_type";
 
-    private static String OPENID_ASSOC_NS = "ns";
-    private static String OPENID_ERROR_CODE = "error_code";
-    private static String OPENID_ASSOCIATION_HANDLE = "assoc_handle";
-    private static String OPENID_MAC_KEY = "mac_key";
+    public final static String OPENID_ASSOC_NS = "ns";
+    public final static String OPENID_ERROR_CODE = "error_code";
+    public final static String OPENID_ASSOCIATION_HANDLE = "assoc_handle";
+    public final static String OPENID_MAC_KEY = "mac_key";
     // package scope so that ResponseFactory can trigger on this key
-    static String OPENID_ENC_MAC_KEY = "enc_mac_key";
-    private static String OPENID_DH_SERVER_PUBLIC = "dh_server_public";
-    private static String OPENID_EXPIRES_IN = "expires_in";
+    public final static String OPENID_ENC_MAC_KEY = "enc_mac_key";
+    public final static String OPENID_DH_SERVER_PUBLIC = "dh_server_public";
+    public final static String OPENID_EXPIRES_IN = "expires_in";
 
     private SessionType sessionType;
     private AssociationType associationType;
@@ -146,6 +146,10 @@ public class AssociationResponse extends Response
         if ( errorCode != null )
         {
             map.put( AssociationResponse.OPENID_ERROR_CODE, errorCode );
+            if ( error != null )
+            {
+                map.put( Response.OPENID_ERROR, error );
+            }
         }
         else
         {
@@ -19,15 +19,18 @@ import org.verisign.joid.extension.Extension;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.apache.tsik.datatypes.DateTime;
+import org.verisign.joid.metrics.Instrumentation;
 
 
 /**
@@ -49,6 +52,9 @@ public class AuthenticationResponse extends Response
     // package scope so that ResponseFactory can trigger on this key
     public static String OPENID_SIG = "openid.sig";
 
+    /** The length of the timestamp prefixing generated nonces */
+    private static final int NONCE_DATE_LENGTH = 20;
+
     private Map<String,String> extendedMap;
 
     private String claimed_id;
@@ -59,10 +65,10 @@ public class AuthenticationResponse extends Response
     private String associationHandle;
     private String signed;
     private AssociationType algo;
+    private SecretKey signingKey;
     private String signature;
     private SimpleRegistration sreg;
     private String urlEndPoint;
-    private byte[] key;
 
 
     /** 
@@ -110,6 +116,15 @@ public class AuthenticationResponse extends Response
     {
         Map<String,String> map = super.toMap();
 
+        if ( Mode.ERROR == getMode() )
+        {
+            if ( error != null )
+            {
+                map.put( AuthenticationResponse.OPENID_ERROR, error );
+            }
+            return map;
+        }
+
         if ( isVersion2() )
         {
             map.put( AuthenticationResponse.OPENID_OP_ENDPOINT, urlEndPoint );
@@ -168,6 +183,31 @@ public class AuthenticationResponse extends Response
     }
 
 
+    /**
+     * Returns the time a nonce generated by this class was issued, read from
+     * its timestamp prefix.
+     *
+     * @param nonce the nonce.
+     * @return the time the nonce was issued, or null if it has no valid
+     *  timestamp.
+     */
+    public static Date getNonceDate( String nonce )
+    {
+        if ( nonce == null || nonce.length() < NONCE_DATE_LENGTH )
+        {
+            return null;
+        }
+        try
+        {
+            return DateTime.parseISODateTime( nonce.substring( 0, NONCE_DATE_LENGTH ) );
+        }
+        catch ( ParseException e )
+        {
+            return null;
+        }
+    }
+
+
     private String generateNonce()
     {
         String crumb = Crypto.generateCrumb();
@@ -237,47 +277,65 @@ public class AuthenticationResponse extends Response
      * points to elements that are not mapped.
      */
     public String sign( AssociationType algorithm, byte[] key, String signed ) throws OpenIdException
+    {
+        return sign( Crypto.createMacKey( algorithm, key ), signed );
+    }
+
+
+    /**
+     * Signs the elements designated by the signed list with the given key and
+     * returns the result encoded to a string. The key-value form is fed into
+     * the MAC element by element rather than built up as one string.
+     *
+     * @param key the key to sign with, as returned by
+     * {@link Crypto#createMacKey(AssociationType, byte[])}.
+     * @param signed the comma-separated list of elements to sign. The elements
+     * must be mapped internally.
+     * @return the Base 64 encoded result.
+     * @throws OpenIdException at signature errors, or if the signed list 
+     * points to elements that are not mapped.
+     */
+    public String sign( SecretKey key, String signed ) throws OpenIdException
     {
         Map<String,String> map = toMap();
-        log.debug( "in sign() map=" + map );
-        log.debug( "in sign() signed=" + signed );
-        StringTokenizer st = new StringTokenizer( signed, "," );
-        StringBuffer sb = new StringBuffer();
-        while ( st.hasMoreTokens() )
+        if ( log.isDebugEnabled() )
         {
-            String s = st.nextToken();
-            String name = "openid." + s;
-            String value = ( String ) map.get( name );
-            if ( value == null )
-            {
-                throw new OpenIdException( "Cannot sign non-existent mapping: "
-                      + s );
-            }
-            sb.append( s );
-            sb.append( ':' );
-            sb.append( value );
-            sb.append( '\n' );
+            log.debug( "in sign() map=" + map );
+            log.debug( "in sign() signed=" + signed );
         }
+        long startTime = System.nanoTime();
+        boolean ok = false;
         try
         {
-            byte[] b;
-            if ( algorithm == null )
-            {
-                algorithm = AssociationType.HMAC_SHA1;
-            }
-            if ( algorithm.equals( AssociationType.HMAC_SHA1 ) )
+            Mac mac = Crypto.getMac( key );
+            int length = signed.length();
+            int start = 0;
+            while ( start < length )
             {
-                b = Crypto.hmacSha1( key, sb.toString().getBytes( "UTF-8" ) );
-            }
-            else if ( algorithm.equals( AssociationType.HMAC_SHA256 ) )
-            {
-                b = Crypto.hmacSha256( key, sb.toString().getBytes( "UTF-8" ) );
-            }
-            else
-            {
-                throw new OpenIdException( "Unknown signature algorithm" );
+                int end = signed.indexOf( ',', start );
+                if ( end < 0 )
+                {
+                    end = length;
+                }
+                if ( end > start )
+                {
+                    String s = signed.substring( start, end );
+                    String value = map.get( "openid." + s );
+                    if ( value == null )
+                    {
+                        throw new OpenIdException( "Cannot sign non-existent mapping: "
+                              + s );
+                    }
+                    Crypto.update( mac, s, 0, s.length() );
+                    mac.update( ( byte ) ':' );
+                    Crypto.update( mac, value, 0, value.length() );
+                    mac.update( ( byte ) '\n' );
+                }
+                start = end + 1;
             }
-            return Crypto.convertToString( b );
+            String signature = Crypto.convertToString( mac.doFinal() );
+            ok = true;
+            return signature;
         }
         catch ( UnsupportedEncodingException e )
         {
@@ -291,6 +349,10 @@ public class AuthenticationResponse extends Response
         {
             throw new OpenIdException( e );
         }
+        finally
+        {
+            Instrumentation.getMetrics().recordTime( "crypto.hmac", System.nanoTime() - startTime, ok );
+        }
     }
 
 
@@ -340,9 +402,9 @@ public class AuthenticationResponse extends Response
                 signed += ",sreg." + key;
             }
         }
-        key = a.getMacKey();
+        signingKey = a.getSigningKey();
         this.algo = a.getAssociationType();
-        signature = sign( key, signed );
+        signature = sign( signingKey, signed );
         extendedMap = new HashMap<String,String>();
     }
 
@@ -394,6 +456,10 @@ public class AuthenticationResponse extends Response
             {
                 signature = value;
             }
+            else if ( OPENID_ERROR.equals( key ) )
+            {
+                error = value;
+            }
             else if ( OPENID_OP_ENDPOINT.equals( key ) )
             {
                 urlEndPoint = value;
@@ -453,7 +519,7 @@ public class AuthenticationResponse extends Response
             signed += "," + key;
         }
         // recalculate signature
-        signature = sign( key, signed );
+        signature = sign( signingKey, signed );
     }
 
 
@@ -14,9 +14,11 @@
 package org.verisign.joid;
 
 
+import java.util.Date;
 import java.util.Map;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
+import org.verisign.joid.util.StoreUtils;
 
 
 /**
@@ -64,20 +66,15 @@ public class CheckAuthenticationRequest extends Request
         String invalidate = null;
         IStore store = si.getStore();
         String nonceStr = ar.getNonce();
-        if ( nonceStr != null )
+        if ( nonceStr != null && si.getNonceWindow() > 0 )
         {
-            INonce n = store.findNonce( nonceStr );
-            if ( n != null )
-            {
-                String s = "Nonce has already been checked";
-                log.debug( s );
-                throw new OpenIdException( s );
-            }
-            else
-            {
-                n = store.generateNonce( nonceStr );
-                store.saveNonce( n );
-            }
+            checkNonceDate( nonceStr, si );
+        }
+        if ( nonceStr != null && !StoreUtils.claimNonce( store, nonceStr ) )
+        {
+            String s = "Nonce has already been checked";
+            log.debug( s );
+            throw new OpenIdException( s );
         }
         IAssociation assoc = store.findAssociation( handle );
         if ( ( assoc != null ) && ( assoc.getShared() ) ) 
@@ -96,6 +93,25 @@ public class CheckAuthenticationRequest extends Request
     }
 
 
+    /**
+     * Rejects a nonce whose timestamp is outside the window of the server,
+     * so that old nonces never reach the store.
+     */
+    private void checkNonceDate( String nonceStr, ServerInfo si ) throws OpenIdException
+    {
+        Date issued = AuthenticationResponse.getNonceDate( nonceStr );
+        long now = System.currentTimeMillis();
+        if ( issued == null
+            || issued.getTime() < now - si.getNonceWindow() * 1000
+            || issued.getTime() > now + si.getNonceSkew() * 1000 )
+        {
+            String s = "Nonce is outside the accepted time window";
+            log.debug( s + ": " + nonceStr );
+            throw new OpenIdException( s );
+        }
+    }
+
+
     public String toString()
     {
         return "[CheckAuthenticationRequest "
@@ -111,6 +127,17 @@ public class CheckAuthenticationRequest extends Request
     }
 
 
+    /**
+     * Returns the authentication response whose signature is to be checked.
+     *
+     * @return the authentication response carried by this request.
+     */
+    public AuthenticationResponse getAuthenticationResponse()
+    {
+        return ar;
+    }
+
+
     Map<String,String> toMap()
     {
         // need to send all values exactly from AuthenticationResponse...
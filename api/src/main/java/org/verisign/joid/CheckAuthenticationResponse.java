@@ -122,8 +122,7 @@ public class CheckAuthenticationResponse extends Response
 
         if ( a != null )
         {
-            String sig = ar.sign( a.getAssociationType(),
-                                 a.getMacKey(), ar.getSignedList() );
+            String sig = ar.sign( a.getSigningKey(), ar.getSignedList() );
             isValid = sig.equals( ar.getSignature() );
         }
         else
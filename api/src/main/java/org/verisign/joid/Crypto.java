@@ -14,11 +14,14 @@
 package org.verisign.joid;
 
 
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -27,23 +30,40 @@ import org.apache.commons.logging.Log;
 import org.apache.tsik.datatypes.Base64;
 import org.apache.tsik.uuid.UUID;
 import org.verisign.joid.Crypto;
+import org.verisign.joid.metrics.Instrumentation;
 
 
 /**
- * Implements the cryptography needed for OpenID.
+ * Implements the cryptography needed for OpenID. Instances hold no
+ * per-request state and may be shared between threads; the Diffie-Hellman
+ * key pair of an association is carried by the {@link DiffieHellman}
+ * returned from {@link #generateDiffieHellman(BigInteger, BigInteger)}.
  */
 public class Crypto
 {
-    private DiffieHellman dh;
     private final static Log LOG = LogFactory.getLog( Crypto.class );
+    private final DiffieHellmanPool dhPool;
 
 
     /**
      * Creates an instance of the crypto library.
      */
     public Crypto()
+    {
+        this( null );
+    }
+
+
+    /**
+     * Creates an instance of the crypto library drawing key pairs for the
+     * default Diffie-Hellman group from the given pool.
+     *
+     * @param dhPool the pool of precomputed key pairs; may be null.
+     */
+    public Crypto( DiffieHellmanPool dhPool )
     {
         LOG.debug( "Creating new instance." );
+        this.dhPool = dhPool;
     }
 
 
@@ -55,8 +75,7 @@ public class Crypto
      */
     public static byte[] sha1( byte[] text ) throws NoSuchAlgorithmException
     {
-        MessageDigest d = MessageDigest.getInstance( "SHA-1" );
-        return d.digest( text );
+        return getDigest( "SHA-1" ).digest( text );
     }
 
 
@@ -68,8 +87,7 @@ public class Crypto
      */
     public static byte[] sha256( byte[] text ) throws NoSuchAlgorithmException
     {
-        MessageDigest d = MessageDigest.getInstance( "SHA-256" );
-        return d.digest( text );
+        return getDigest( "SHA-256" ).digest( text );
     }
 
 
@@ -108,12 +126,149 @@ public class Crypto
     private static byte[] hmacShaX( String keySpec, byte[] key, byte[] text )
         throws InvalidKeyException, NoSuchAlgorithmException
     {
-        SecretKey sk = new SecretKeySpec( key, keySpec );
-        Mac m = Mac.getInstance( sk.getAlgorithm() );
-        m.init( sk );
-        return m.doFinal( text );
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            byte[] mac = getMac( new SecretKeySpec( key, keySpec ) ).doFinal( text );
+            ok = true;
+            return mac;
+        }
+        finally
+        {
+            Instrumentation.getMetrics().recordTime( "crypto.hmac", System.nanoTime() - start, ok );
+        }
+    }
+
+
+    /**
+     * Creates the HMAC key for an association. The result is immutable and
+     * may be kept with the association and reused for every signature.
+     *
+     * @param type the association type; null means HMAC-SHA1.
+     * @param key the raw MAC key.
+     * @return the key to pass to {@link #getMac(SecretKey)}.
+     * @throws OpenIdException if the association type is not supported.
+     */
+    public static SecretKey createMacKey( AssociationType type, byte[] key )
+        throws OpenIdException
+    {
+        if ( type == null || AssociationType.HMAC_SHA1.equals( type ) )
+        {
+            return new SecretKeySpec( key, "HmacSHA1" );
+        }
+        else if ( AssociationType.HMAC_SHA256.equals( type ) )
+        {
+            return new SecretKeySpec( key, "HmacSHA256" );
+        }
+        throw new OpenIdException( "Unknown signature algorithm" );
+    }
+
+
+    /**
+     * Returns a MAC initialized with the given key. The instance is cached
+     * per thread and per algorithm, so it must be used up by the calling
+     * thread before the next call to this method.
+     *
+     * @param key the key to initialize the MAC with.
+     * @return an initialized MAC.
+     * @throws InvalidKeyException if <code>key</code> is not a good HMAC key.
+     * @throws NoSuchAlgorithmException if the key's algorithm is not available.
+     */
+    public static Mac getMac( SecretKey key )
+        throws InvalidKeyException, NoSuchAlgorithmException
+    {
+        Map<String, Mac> macs = MACS.get();
+        Mac m = macs.get( key.getAlgorithm() );
+        if ( m == null )
+        {
+            m = Mac.getInstance( key.getAlgorithm() );
+            macs.put( key.getAlgorithm(), m );
+        }
+        m.init( key );
+        return m;
+    }
+
+
+    /**
+     * Feeds a range of a string into a MAC as UTF-8 without building an
+     * intermediate byte array for the common all-ASCII case.
+     *
+     * @param m the MAC to update.
+     * @param s the string to take the characters from.
+     * @param start the index of the first character.
+     * @param end the index after the last character.
+     * @throws UnsupportedEncodingException if UTF-8 is not available.
+     */
+    public static void update( Mac m, String s, int start, int end )
+        throws UnsupportedEncodingException
+    {
+        byte[] buf = SCRATCH.get();
+        int n = 0;
+        for ( int i = start; i < end; i++ )
+        {
+            char c = s.charAt( i );
+            if ( c >= 0x80 )
+            {
+                m.update( buf, 0, n );
+                m.update( s.substring( i, end ).getBytes( "UTF-8" ) );
+                return;
+            }
+            if ( n == buf.length )
+            {
+                m.update( buf, 0, n );
+                n = 0;
+            }
+            buf[n++] = ( byte ) c;
+        }
+        m.update( buf, 0, n );
     }
 
+
+    private static MessageDigest getDigest( String algorithm )
+        throws NoSuchAlgorithmException
+    {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest d = digests.get( algorithm );
+        if ( d == null )
+        {
+            d = MessageDigest.getInstance( algorithm );
+            digests.put( algorithm, d );
+        }
+        else
+        {
+            d.reset();
+        }
+        return d;
+    }
+
+    private static final ThreadLocal<Map<String, Mac>> MACS =
+        new ThreadLocal<Map<String, Mac>>()
+        {
+            protected Map<String, Mac> initialValue()
+            {
+                return new HashMap<String, Mac>();
+            }
+        };
+
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS =
+        new ThreadLocal<Map<String, MessageDigest>>()
+        {
+            protected Map<String, MessageDigest> initialValue()
+            {
+                return new HashMap<String, MessageDigest>();
+            }
+        };
+
+    private static final ThreadLocal<byte[]> SCRATCH =
+        new ThreadLocal<byte[]>()
+        {
+            protected byte[] initialValue()
+            {
+                return new byte[256];
+            }
+        };
+
     private static SecureRandom random;
     static
     {
@@ -189,43 +344,31 @@ public class Crypto
 
 
     /**
-     * Sets the Diffie-Hellman key values.
-     *
-     * @param mod the Diffie-Hellman modulus.
-     * @param gen the Diffie-Hellman generator.
-     */
-    public void setDiffieHellman( BigInteger mod, BigInteger gen )
-    {
-        this.dh = new DiffieHellman( mod, gen );
-    }
-
-
-    /**
-     * Sets the Diffie-Hellman key values.
+     * Creates a fresh Diffie-Hellman key pair for one key agreement. The
+     * returned instance is immutable and belongs to the calling request.
+     * Key pairs for the default group come from the pool, if one is set.
      *
-     * @param dh the Diffie-Hellman value.
+     * @param mod the Diffie-Hellman modulus. If null, use
+     * {@link DiffieHellman#DEFAULT_MODULUS}.
+     * @param gen the Diffie-Hellman generator. If null, use
+     * {@link DiffieHellman#DEFAULT_GENERATOR}.
+     * @return a new Diffie-Hellman key pair.
      */
-    public void setDiffieHellman( DiffieHellman dh )
+    public DiffieHellman generateDiffieHellman( BigInteger mod, BigInteger gen )
     {
-        this.dh = dh;
-    }
-
-
-    /**
-     * Returns the Diffie-Hellman public key set 
-     * by {@link #setDiffieHellman(BigInteger, BigInteger)}.
-     *
-     * @return the Diffie-Hellman public key.
-     * @throws IllegalArgumentException if this crypto instance has not
-     * yet been initialized.
-     */
-    public BigInteger getPublicKey()
-    {
-        if ( dh == null )
+        long start = System.nanoTime();
+        try
         {
-            throw new IllegalArgumentException( "DH not yet initialized" );
+            if ( dhPool != null && DiffieHellmanPool.isDefaultGroup( mod, gen ) )
+            {
+                return dhPool.take();
+            }
+            return new DiffieHellman( mod, gen );
+        }
+        finally
+        {
+            Instrumentation.getMetrics().recordTime( "crypto.dh.generate", System.nanoTime() - start, true );
         }
-        return dh.getPublicKey();
     }
 
 
@@ -246,41 +389,49 @@ public class Crypto
     /**
      * Decrypts a secret using Diffie-Hellman.
      *
-     * @param consumerPublic the public key used to decrypt.
+     * @param dh the local Diffie-Hellman key pair.
+     * @param otherPublic the other party's public key.
      * @param secret the value to decrypt.
      * @return the decrypted value.
      */
-    public byte[] decryptSecret( BigInteger consumerPublic, byte[] secret )
+    public byte[] decryptSecret( DiffieHellman dh, BigInteger otherPublic, byte[] secret )
         throws OpenIdException
     {
-        return encryptSecret( consumerPublic, secret );
+        return encryptSecret( dh, otherPublic, secret );
     }
 
 
     /**
      * Encrypts a secret using Diffie-Hellman.
      *
-     * @param consumerPublic the public key used to encrypt.
+     * @param dh the local Diffie-Hellman key pair.
+     * @param otherPublic the other party's public key.
      * @param secret the value to encrypt.
      * @return the encrypted secret value.
      */
-    public byte[] encryptSecret( BigInteger consumerPublic, byte[] secret )
+    public byte[] encryptSecret( DiffieHellman dh, BigInteger otherPublic, byte[] secret )
         throws OpenIdException
     {
         if ( dh == null )
         {
-            throw new IllegalArgumentException( "No DH implementation set" );
+            throw new IllegalArgumentException( "No DH key pair given" );
         }
-        byte[] xoredSecret = null;
+        long start = System.nanoTime();
+        boolean ok = false;
         try
         {
-            xoredSecret = dh.xorSecret( consumerPublic, secret );
-            return xoredSecret;
+            byte[] result = dh.xorSecret( otherPublic, secret );
+            ok = true;
+            return result;
         }
         catch ( NoSuchAlgorithmException e )
         {
             throw new OpenIdException( e );
         }
+        finally
+        {
+            Instrumentation.getMetrics().recordTime( "crypto.dh.agree", System.nanoTime() - start, ok );
+        }
     }
 
 
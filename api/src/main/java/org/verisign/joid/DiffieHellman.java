@@ -22,20 +22,27 @@ import java.security.NoSuchAlgorithmException;
 
 
 /**
- * Implements the underlying Diffie-Hellman cryptography.
+ * Implements the underlying Diffie-Hellman cryptography. Instances are
+ * immutable and hold the key pair of a single key agreement, so they can be
+ * created per association request and used from any thread.
  */
 public class DiffieHellman
 {
-    private BigInteger modulus;
-    private BigInteger generator;
-    private BigInteger privateKey;
-    private BigInteger publicKey;
+    private final BigInteger modulus;
+    private final BigInteger generator;
+    private final BigInteger privateKey;
+    private final BigInteger publicKey;
 
     private final static Log log = LogFactory.getLog( DiffieHellman.class );
 
 
-    private DiffieHellman()
+    private DiffieHellman( BigInteger modulus, BigInteger generator,
+                           BigInteger privateKey, BigInteger publicKey )
     {
+        this.modulus = modulus;
+        this.generator = generator;
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
     }
 
     /**
@@ -119,9 +126,10 @@ public class DiffieHellman
 
         int bits = modulus.bitLength();
         BigInteger max = modulus.subtract( BigInteger.ONE );
+        BigInteger pkey;
         while ( true )
         {
-            BigInteger pkey = new BigInteger( bits, random );
+            pkey = new BigInteger( bits, random );
             if ( pkey.compareTo( max ) >= 0 )
             { //too large
                 continue;
@@ -130,10 +138,10 @@ public class DiffieHellman
             {//too small
                 continue;
             }
-            privateKey = pkey;
-            publicKey = generator.modPow( privateKey, modulus );
             break;
         }
+        privateKey = pkey;
+        publicKey = generator.modPow( privateKey, modulus );
     }
 
 
@@ -150,22 +158,7 @@ public class DiffieHellman
         {
             throw new IllegalArgumentException( "Null parameter" );
         }
-        DiffieHellman dh = new DiffieHellman();
-        dh.setPrivateKey( privateKey );
-        dh.setModulus( modulus );
-        return dh;
-    }
-
-
-    private void setPrivateKey( BigInteger privateKey )
-    {
-        this.privateKey = privateKey;
-    }
-
-
-    private void setModulus( BigInteger modulus )
-    {
-        this.modulus = modulus;
+        return new DiffieHellman( modulus, null, privateKey, null );
     }
 
 
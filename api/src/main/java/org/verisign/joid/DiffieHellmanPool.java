@@ -0,0 +1,164 @@
+//
+// (C) Copyright 2007 VeriSign, Inc.  All Rights Reserved.
+//
+// VeriSign, Inc. shall have no responsibility, financial or
+// otherwise, for any consequences arising out of the use of
+// this material. The program material is provided on an "AS IS"
+// BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+// express or implied.
+//
+// Distributed under an Apache License
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+
+package org.verisign.joid;
+
+
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A bounded pool of precomputed Diffie-Hellman key pairs for the default
+ * modulus and generator. A background thread keeps the pool full so that
+ * the <code>modPow</code> producing the public key is paid ahead of the
+ * association request instead of during it.
+ *
+ * Every key pair is handed out at most once. When the pool runs dry a key
+ * pair is computed in the calling thread, so callers never wait on the
+ * refill thread.
+ */
+public class DiffieHellmanPool
+{
+    /** The number of key pairs kept ready by default. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final static Log LOG = LogFactory.getLog( DiffieHellmanPool.class );
+
+    private final BlockingQueue<DiffieHellman> pool;
+    private final AtomicLong misses = new AtomicLong();
+    private final Thread refiller;
+    private volatile boolean running = true;
+
+
+    /**
+     * Creates a pool of {@link #DEFAULT_CAPACITY} key pairs.
+     */
+    public DiffieHellmanPool()
+    {
+        this( DEFAULT_CAPACITY );
+    }
+
+
+    /**
+     * Creates a pool and starts filling it in the background.
+     *
+     * @param capacity the maximum number of key pairs kept ready.
+     */
+    public DiffieHellmanPool( int capacity )
+    {
+        if ( capacity < 1 )
+        {
+            throw new IllegalArgumentException( "capacity must be positive: " + capacity );
+        }
+        pool = new ArrayBlockingQueue<DiffieHellman>( capacity );
+        refiller = new Thread( "joid-dh-pool" )
+        {
+            public void run()
+            {
+                refill();
+            }
+        };
+        refiller.setDaemon( true );
+        refiller.setPriority( Thread.MIN_PRIORITY );
+        refiller.start();
+    }
+
+
+    /**
+     * Returns whether the given group is the default one served by this
+     * pool. Null values stand for the defaults, as in
+     * {@link DiffieHellman#DiffieHellman(java.math.BigInteger, java.math.BigInteger)}.
+     *
+     * @param mod the requested modulus.
+     * @param gen the requested generator.
+     * @return true if a pooled key pair can be used for this group.
+     */
+    public static boolean isDefaultGroup( BigInteger mod, BigInteger gen )
+    {
+        return ( mod == null || DiffieHellman.DEFAULT_MODULUS.equals( mod ) )
+            && ( gen == null || DiffieHellman.DEFAULT_GENERATOR.equals( gen ) );
+    }
+
+
+    /**
+     * Removes a key pair from the pool, computing one in place if none is
+     * ready. The returned key pair is never handed out again.
+     *
+     * @return a key pair for the default modulus and generator.
+     */
+    public DiffieHellman take()
+    {
+        DiffieHellman dh = pool.poll();
+        if ( dh == null )
+        {
+            misses.incrementAndGet();
+            dh = DiffieHellman.getDefault();
+        }
+        return dh;
+    }
+
+
+    /**
+     * Returns the number of key pairs ready to be taken.
+     *
+     * @return the number of pooled key pairs.
+     */
+    public int getAvailable()
+    {
+        return pool.size();
+    }
+
+
+    /**
+     * Returns how often {@link #take()} found the pool empty.
+     *
+     * @return the number of key pairs computed in the calling thread.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    /**
+     * Stops the refill thread. Key pairs still in the pool remain available
+     * and later calls to {@link #take()} compute key pairs in place.
+     */
+    public void shutdown()
+    {
+        running = false;
+        refiller.interrupt();
+    }
+
+
+    private void refill()
+    {
+        try
+        {
+            while ( running )
+            {
+                pool.put( DiffieHellman.getDefault() );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            LOG.debug( "Refill thread stopped." );
+        }
+    }
+}
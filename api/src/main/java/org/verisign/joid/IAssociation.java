@@ -16,6 +16,7 @@ package org.verisign.joid;
 
 import java.math.BigInteger;
 import java.util.Date;
+import javax.crypto.SecretKey;
 
 
 /**
@@ -98,6 +99,16 @@ public interface IAssociation
     byte[] getMacKey();
 
 
+    /**
+     * Returns the MAC key prepared for signing with this association's
+     * algorithm. Implementations may cache the key across calls.
+     *
+     * @return the signing key.
+     * @throws OpenIdException if the association type is not supported.
+     */
+    SecretKey getSigningKey() throws OpenIdException;
+
+
     /**
      * Returns the public Diffie-Hellman key in use.
      *
@@ -0,0 +1,38 @@
+//
+// (C) Copyright 2007 VeriSign, Inc.  All Rights Reserved.
+//
+// VeriSign, Inc. shall have no responsibility, financial or
+// otherwise, for any consequences arising out of the use of
+// this material. The program material is provided on an "AS IS"
+// BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+// express or implied.
+//
+// Distributed under an Apache License
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+
+
+package org.verisign.joid;
+
+
+/**
+ * A store that can record a checked nonce in one atomic step. Stores
+ * implement this when they can detect a replay without a separate read,
+ * for instance through a unique key. For other stores a nonce is looked
+ * up with {@link IStore#findNonce(String)} and then saved, see
+ * {@link org.verisign.joid.util.StoreUtils#claimNonce(IStore, String)}.
+ */
+public interface INonceClaimingStore extends IStore
+{
+    /**
+     * Records a nonce as checked unless it already is, in one atomic step,
+     * so that two concurrent checks of the same nonce cannot both succeed.
+     *
+     * @param nonce the nonce to record.
+     * @return true if the nonce was recorded by this call; false if it had
+     * been checked before.
+     *
+     * @throws OpenIdException at unrecoverable errors.
+     */
+    boolean claimNonce( String nonce ) throws OpenIdException;
+}
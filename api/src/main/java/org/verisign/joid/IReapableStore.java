@@ -0,0 +1,56 @@
+//
+// (C) Copyright 2007 VeriSign, Inc.  All Rights Reserved.
+//
+// VeriSign, Inc. shall have no responsibility, financial or
+// otherwise, for any consequences arising out of the use of
+// this material. The program material is provided on an "AS IS"
+// BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+// express or implied.
+//
+// Distributed under an Apache License
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+
+
+package org.verisign.joid;
+
+
+import java.util.Date;
+
+
+/**
+ * A store that can delete expired associations and old nonces in bulk.
+ * Stores implement this when they keep entries beyond their useful life,
+ * and a {@link StoreReaper} calls it periodically.
+ *
+ * Each call deletes at most <code>limit</code> entries so that a single
+ * statement or search stays bounded; callers repeat the call until it
+ * returns less than the limit.
+ */
+public interface IReapableStore extends IStore
+{
+    /**
+     * Deletes associations that have expired by the given time.
+     *
+     * @param now the time against which to check expiry.
+     * @param limit the largest number of associations to delete.
+     * @return the number of associations deleted.
+     *
+     * @throws OpenIdException at unrecoverable errors.
+     */
+    int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException;
+
+
+    /**
+     * Deletes nonces checked before the given time. Replays of these nonces
+     * are no longer detected, so the time must lie further back than the
+     * lifetime of any association that could have signed them.
+     *
+     * @param checkedBefore the oldest checked date to keep.
+     * @param limit the largest number of nonces to delete.
+     * @return the number of nonces deleted.
+     *
+     * @throws OpenIdException at unrecoverable errors.
+     */
+    int purgeNonces( Date checkedBefore, int limit ) throws OpenIdException;
+}
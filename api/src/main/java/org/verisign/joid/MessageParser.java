@@ -16,16 +16,14 @@ package org.verisign.joid;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
-import org.apache.commons.logging.LogFactory;
-import org.apache.commons.logging.Log;
+import org.verisign.joid.handlers.EncodingMode;
+import org.verisign.joid.handlers.Encoders;
 
 
 /**
@@ -33,10 +31,6 @@ import org.apache.commons.logging.Log;
  */
 public class MessageParser
 {
-    private final static Log LOG = LogFactory.getLog( MessageParser.class );
-    static char newline = '\n';
-
-
     /**
      * Unrolls a message as a string. This string will use the
      * <code>name:value</code> format of the specification. See also
@@ -46,7 +40,7 @@ public class MessageParser
      */
     static String toPostString( Message message ) throws OpenIdException
     {
-        return toStringDelimitedBy( message, ":", newline );
+        return Encoders.toString( message, EncodingMode.POST_STRING );
     }
 
 
@@ -58,57 +52,7 @@ public class MessageParser
      */
     static String toUrlString( Message message ) throws OpenIdException
     {
-        return toStringDelimitedBy( message, "=", '&' );
-    }
-
-
-    private static String toStringDelimitedBy( Message message,
-                          String kvDelim, char lineDelim ) throws OpenIdException
-    {
-        Map<String,String> map = message.toMap();
-        Set<Map.Entry<String, String>> set = map.entrySet();
-        StringBuffer sb = new StringBuffer();
-        try
-        {
-            for ( Iterator<Map.Entry<String, String>> iter = set.iterator(); iter.hasNext(); )
-            {
-                Map.Entry<String,String> mapEntry = iter.next();
-                String key = mapEntry.getKey();
-                String value = mapEntry.getValue();
-
-                if ( lineDelim == newline )
-                {
-                    sb.append( key + kvDelim + value );
-                    sb.append( lineDelim );
-                }
-                else
-                {
-                    if ( value != null )
-                    {
-                        sb.append( URLEncoder.encode( key, "UTF-8" ) + kvDelim
-                            + URLEncoder.encode( value, "UTF-8" ) );
-                        if ( iter.hasNext() )
-                        {
-                            sb.append( lineDelim );
-                        }
-                    }
-                    else
-                    {
-                        StringBuilder msg = new StringBuilder( "Value for key '" );
-                        msg.append( key ).append( "' is null in message map" );
-                        LOG.error( msg );
-                        throw new OpenIdException( msg.toString() );
-                    }
-                }
-
-            }
-            return sb.toString();
-        }
-        catch ( UnsupportedEncodingException e )
-        {
-            // should not happen
-            throw new RuntimeException( "Internal error" );
-        }
+        return Encoders.toString( message, EncodingMode.URL_STRING );
     }
 
 
@@ -130,40 +74,113 @@ public class MessageParser
      * overwritten, so don't use this routine for general query string
      * parsing.
      *
+     * The query is scanned once. Pairs are separated by '&' or ';', a pair
+     * is split at its first '=' only, and a name or value is only URL
+     * decoded if it contains a '%' or '+'. Pairs without a value, or with an
+     * empty one, map to null.
+     *
      * TODO: Made public only for unit tests. Do not use.
      */
     public static Map<String,String> urlEncodedToMap( String query )
         throws UnsupportedEncodingException
     {
-        Map<String,String> map = new HashMap<String,String>();
         if ( query == null )
         {
-            return map;
+            return new HashMap<String,String>();
         }
-        String[] parts = query.split( "[&;]" );
-        for ( int i = 0; i < parts.length; i++ )
+        int length = query.length();
+        int pairs = 1;
+        for ( int i = 0; i < length; i++ )
         {
-            String[] nameval = parts[i].split( "=" );
-            String name = URLDecoder.decode( nameval[0], "UTF-8" );
-            String value = null;
-            if ( nameval.length > 1 )
+            char c = query.charAt( i );
+            if ( c == '&' || c == ';' )
             {
-                value = URLDecoder.decode( nameval[1], "UTF-8" );
+                pairs++;
             }
-            map.put( name, value );
+        }
+        Map<String,String> map = new HashMap<String,String>( pairs * 4 / 3 + 1 );
+
+        int start = 0;
+        while ( start < length )
+        {
+            int eq = -1;
+            boolean nameEncoded = false;
+            boolean valueEncoded = false;
+            int end = start;
+            for ( ; end < length; end++ )
+            {
+                char c = query.charAt( end );
+                if ( c == '&' || c == ';' )
+                {
+                    break;
+                }
+                else if ( c == '=' )
+                {
+                    if ( eq < 0 )
+                    {
+                        eq = end;
+                    }
+                }
+                else if ( c == '%' || c == '+' )
+                {
+                    if ( eq < 0 )
+                    {
+                        nameEncoded = true;
+                    }
+                    else
+                    {
+                        valueEncoded = true;
+                    }
+                }
+            }
+            if ( end > start )
+            {
+                String name = decode( query, start, eq < 0 ? end : eq, nameEncoded );
+                String value = null;
+                if ( eq >= 0 && eq + 1 < end )
+                {
+                    value = decode( query, eq + 1, end, valueEncoded );
+                }
+                map.put( name, value );
+            }
+            start = end + 1;
         }
         return map;
     }
 
 
+    private static String decode( String query, int start, int end, boolean encoded )
+        throws UnsupportedEncodingException
+    {
+        String s = query.substring( start, end );
+        return encoded ? URLDecoder.decode( s, "UTF-8" ) : s;
+    }
+
+
     public static Map<String,String> postedToMap( String query ) throws IOException
     {
-        Map<String,String> map = new HashMap<String, String>();
         if ( query == null )
         {
-            return map;
+            return new HashMap<String, String>();
         }
-        BufferedReader br = new BufferedReader( new StringReader( query ) );
+        return postedToMap( new StringReader( query ) );
+    }
+
+
+    /**
+     * Reads a message in key-value form, one <code>name:value</code> pair
+     * per line, straight from a character stream. Lines without a colon
+     * are skipped.
+     *
+     * @param in the stream to read; it is read to its end but not closed.
+     * @return the pairs read.
+     * @throws IOException if the stream cannot be read.
+     */
+    public static Map<String,String> postedToMap( Reader in ) throws IOException
+    {
+        Map<String,String> map = new HashMap<String, String>();
+        BufferedReader br = in instanceof BufferedReader
+            ? ( BufferedReader ) in : new BufferedReader( in );
         String s = br.readLine();
         while ( s != null )
         {
@@ -16,11 +16,16 @@ package org.verisign.joid;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.verisign.joid.metrics.Instrumentation;
 
 
 /**
@@ -47,6 +52,7 @@ import org.apache.commons.logging.LogFactory;
 public class OpenId
 {
     private final static Log log = LogFactory.getLog( OpenId.class );
+    private final static String MODE_PARAM = RequestFactory.OPENID_MODE + "=";
     private ServerInfo serverInfo;
 
 
@@ -95,10 +101,14 @@ public class OpenId
 
     /**
      * Call this method if the data is posted by way of HTTP POST
+     *
+     * @param map the decoded parameters of the request.
+     * @return the response, encoded as for {@link #handleRequest(String)}.
+     * @throws OpenIdException if the request cannot be processed.
      */
     public String handleRequest( Map<String, String> map ) throws OpenIdException
     {
-        throw new RuntimeException( "nyi" );
+        return handleRequest( RequestFactory.parse( map ) );
     }
 
 
@@ -112,38 +122,7 @@ public class OpenId
      */
     public boolean isAssociationRequest( String query ) throws InvalidOpenIdQueryException
     {
-        
-        if ( query == null || query.equals( "" ) )
-        {
-            throw new InvalidOpenIdQueryException( "empty query" );
-        }
-
-        try
-        {
-            return ( query.indexOf( new StringBuilder(RequestFactory.OPENID_MODE).append("=" ).append( Mode.ASSOCIATE ).toString() ) >= 0 ); 
-        }
-        catch ( Exception e )
-        {
-            log.error( e, e );
-            throw new InvalidOpenIdQueryException( "cannot parse query: " + query );
-
-        }
-        
-       /* try
-        {
-            Request req = RequestFactory.parse( query );
-            return ( req instanceof AssociationRequest );
-        }
-        catch ( OpenIdException e )
-        {
-            log.info( e, e );
-            return false;
-        }
-        catch ( UnsupportedEncodingException e )
-        {
-            log.info( e, e );
-            return false;
-        }*/
+        return modeOf( query ) == Mode.ASSOCIATE;
     }
 
 
@@ -157,41 +136,8 @@ public class OpenId
      */
     public boolean isAuthenticationRequest( String query ) throws InvalidOpenIdQueryException
     {
-
-        if ( query == null || query.equals( "" ) )
-        {
-            throw new InvalidOpenIdQueryException( "empty query" );
-        }
-
-        try
-        {
-            return ( query.indexOf( new StringBuilder(RequestFactory.OPENID_MODE).append("=" ).append( Mode.CHECKID_SETUP ).toString() ) >= 0
-                ||  query.indexOf( new StringBuilder(RequestFactory.OPENID_MODE).append("=" ).append( Mode.CHECKID_IMMEDIATE ).toString() ) >= 0 ); 
-        }
-        catch ( Exception e )
-        {
-            log.error( e, e );
-            throw new InvalidOpenIdQueryException( "cannot parse query: " + query );
-
-        }
-
-        /*
-        try
-        {
-            Request req = RequestFactory.parse( query );
-            return ( req instanceof AuthenticationRequest );
-        }
-        catch ( OpenIdException e )
-        {
-            log.info( e, e );
-            return false;
-        }
-        catch ( UnsupportedEncodingException e )
-        {
-            log.info( e, e );
-            return false;
-        }
-        */
+        Mode mode = modeOf( query );
+        return mode == Mode.CHECKID_SETUP || mode == Mode.CHECKID_IMMEDIATE;
     }
 
 
@@ -205,31 +151,48 @@ public class OpenId
      */
     public boolean isCheckAuthenticationRequest( String query ) throws InvalidOpenIdQueryException
     {
+        return modeOf( query ) == Mode.CHECK_AUTHENTICATION;
+    }
+
 
+    /**
+     * Finds the <code>openid.mode</code> parameter in a query without
+     * parsing the rest of it.
+     *
+     * @param query the query to scan.
+     * @return the mode; null if the query has no known mode.
+     * @throws InvalidOpenIdQueryException if the query is empty.
+     */
+    private static Mode modeOf( String query ) throws InvalidOpenIdQueryException
+    {
         if ( query == null || query.equals( "" ) )
         {
             throw new InvalidOpenIdQueryException( "empty query" );
         }
 
-        try
+        int i = query.indexOf( MODE_PARAM );
+        while ( i > 0 && query.charAt( i - 1 ) != '&' && query.charAt( i - 1 ) != ';' )
         {
-            Pattern openIdModePattern = Pattern.compile( ".*" + RequestFactory.OPENID_MODE + "=(.+?)&.*" );
-
-            Matcher matcher = openIdModePattern.matcher( query );
+            i = query.indexOf( MODE_PARAM, i + 1 );
+        }
+        if ( i < 0 )
+        {
+            return null;
+        }
 
-            if ( matcher.find() )
-            {
-                return Mode.parse( matcher.group( 1 ) ).equals( Mode.CHECK_AUTHENTICATION );
-            }
-            else
-            {
-                return false;
-            }
+        int start = i + MODE_PARAM.length();
+        int end = start;
+        while ( end < query.length() && query.charAt( end ) != '&' && query.charAt( end ) != ';' )
+        {
+            end++;
         }
-        catch ( Exception e )
+        try
+        {
+            return Mode.parse( query.substring( start, end ) );
+        }
+        catch ( IllegalArgumentException e )
         {
-            log.error( e, e );
-            throw new InvalidOpenIdQueryException( "cannot parse query: " + query );
+            return null;
         }
     }
 
@@ -255,8 +218,22 @@ public class OpenId
             log.warn( "exception=" + e );
             throw new OpenIdException( e );
         }
+        return handleRequest( req );
+    }
+
 
-        Response resp = req.processUsing( serverInfo );
+    /**
+     * Processes an already parsed OpenID request into an OpenID response.
+     * Use this when the caller has parsed the query itself, for instance to
+     * dispatch on {@link Request#getMode()}, so it is not parsed twice.
+     *
+     * @param req the parsed request.
+     * @return the response, encoded as for {@link #handleRequest(String)}.
+     * @throws OpenIdException if the request cannot be processed.
+     */
+    public String handleRequest( Request req ) throws OpenIdException
+    {
+        Response resp = processRequest( req );
         if ( req instanceof AuthenticationRequest )
         {
             return resp.toUrlString();
@@ -268,6 +245,98 @@ public class OpenId
     }
 
 
+    /**
+     * Processes an already parsed OpenID request into a response object,
+     * leaving the encoding to the caller. Use this to write the response
+     * straight to its destination with
+     * {@link org.verisign.joid.handlers.Encoders#encode(Message, org.verisign.joid.handlers.EncodingMode, Appendable)}.
+     *
+     * @param req the parsed request.
+     * @return the response.
+     * @throws OpenIdException if the request cannot be processed.
+     */
+    public Response processRequest( Request req ) throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            Response resp = req.processUsing( serverInfo );
+            ok = true;
+            return resp;
+        }
+        finally
+        {
+            Instrumentation.getMetrics().recordTime( "request." + req.getMode(),
+                System.nanoTime() - start, ok );
+        }
+    }
+
+
+    /**
+     * Processes an already parsed OpenID request on an executor, so that the
+     * calling thread never blocks on the store or on Diffie-Hellman. Use
+     * this from event-driven servers: pass an executor sized for the store
+     * and keep the event loop free.
+     *
+     * @param req the parsed request.
+     * @param executor the executor to process the request on.
+     * @param callback notified once the request is processed, on the thread
+     *  that processed it, or on the thread that cancels the returned future;
+     *  may be null when the caller only uses the returned future.
+     * @return the future response. Its <code>get</code> throws an
+     *  {@link ExecutionException} wrapping the {@link OpenIdException} if
+     *  the request cannot be processed.
+     * @throws java.util.concurrent.RejectedExecutionException if the
+     *  executor does not take the request.
+     */
+    public Future<Response> processRequest( final Request req, Executor executor,
+        final ResponseCallback callback )
+    {
+        FutureTask<Response> task = new FutureTask<Response>( new Callable<Response>()
+        {
+            public Response call() throws OpenIdException
+            {
+                return processRequest( req );
+            }
+        } )
+        {
+            protected void done()
+            {
+                if ( callback == null )
+                {
+                    return;
+                }
+                Response resp;
+                try
+                {
+                    resp = get();
+                }
+                catch ( CancellationException e )
+                {
+                    callback.failed( e );
+                    return;
+                }
+                catch ( ExecutionException e )
+                {
+                    callback.failed( e.getCause() );
+                    return;
+                }
+                catch ( InterruptedException e )
+                {
+                    // the task is done, so get() does not wait
+                    Thread.currentThread().interrupt();
+                    callback.failed( e );
+                    return;
+                }
+                callback.completed( resp );
+            }
+        };
+        executor.execute( task );
+        return task;
+    }
+
+
     /**
      * Returns whether the response is an error response.
      *
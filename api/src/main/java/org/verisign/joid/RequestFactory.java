@@ -48,7 +48,44 @@ public class RequestFactory
             throw new OpenIdException( "Error parsing " + query + ": " + e.toString() );
         }
 
-        Mode mode = Mode.parse( map.get( OPENID_MODE ) );
+        return parse( map, query );
+    }
+
+
+    /**
+     * Parses the decoded parameters of a query into a request, for callers
+     * that have decoded them already, such as from a POST body.
+     *
+     * @param map the parameters, keyed by their full names such as
+     *  <code>openid.mode</code>.
+     * @return the parsed request.
+     * @throws OpenIdException if the parameters cannot be parsed into a
+     *  known request.
+     */
+    public static Request parse( Map<String,String> map )
+        throws OpenIdException, InvalidOpenIdQueryException
+    {
+        return parse( map, map );
+    }
+
+
+    private static Request parse( Map<String,String> map, Object query )
+        throws OpenIdException, InvalidOpenIdQueryException
+    {
+        String modeValue = map.get( OPENID_MODE );
+        if ( modeValue == null )
+        {
+            throw new InvalidOpenIdQueryException( new StringBuilder( "Missing " ).append( OPENID_MODE ).append( " in " ).append( query ).toString() );
+        }
+        Mode mode;
+        try
+        {
+            mode = Mode.parse( modeValue );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new InvalidOpenIdQueryException( new StringBuilder( "Cannot parse request from " ).append( query ).toString() );
+        }
         
         if ( Mode.ASSOCIATE == mode )
         {
@@ -23,12 +23,17 @@ import java.util.Map;
  */
 public abstract class Response extends Message
 {
-    static String OPENID_ERROR = "error";
+    public final static String OPENID_ERROR = "error";
 
     String error;
 
 
-    String getError()
+    /**
+     * Returns the error message carried by this response.
+     *
+     * @return the error message; null if this is not an error response.
+     */
+    public String getError()
     {
         return error;
     }
@@ -0,0 +1,44 @@
+//
+// (C) Copyright 2007 VeriSign, Inc.  All Rights Reserved.
+//
+// VeriSign, Inc. shall have no responsibility, financial or
+// otherwise, for any consequences arising out of the use of
+// this material. The program material is provided on an "AS IS"
+// BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+// express or implied.
+//
+// Distributed under an Apache License
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+
+package org.verisign.joid;
+
+
+/**
+ * Receives the outcome of a request processed with
+ * {@link OpenId#processRequest(Request, java.util.concurrent.Executor, ResponseCallback)}.
+ * Called on the thread that processed the request, so implementations
+ * should hand any slow work off rather than block it. When the future is
+ * cancelled, {@link #failed(Throwable)} is instead called on the thread that
+ * called <code>cancel</code>, before <code>cancel</code> returns; a
+ * request cancelled while still queued never reaches a processing thread.
+ */
+public interface ResponseCallback
+{
+    /**
+     * Called with the response once the request is processed.
+     *
+     * @param response the response.
+     */
+    void completed( Response response );
+
+
+    /**
+     * Called when the request could not be processed, or was cancelled.
+     *
+     * @param t the exception thrown while processing the request, usually
+     *  an {@link OpenIdException}, or a
+     *  {@link java.util.concurrent.CancellationException}.
+     */
+    void failed( Throwable t );
+}
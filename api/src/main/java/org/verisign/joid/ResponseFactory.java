@@ -15,6 +15,7 @@ package org.verisign.joid;
 
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.Map;
 import java.util.Set;
 
@@ -56,7 +57,37 @@ public class ResponseFactory
             throw new OpenIdException( "Error parsing " + query + ": "
                       + e.toString() );
         }
+        return parse( map, query );
+    }
+
+
+    /**
+     * Parses a response in key-value form as it is read from a stream,
+     * such as the body of a direct response from an OpenID server.
+     *
+     * @param in the stream to read; it is read to its end but not closed.
+     * @return the parsed response.
+     * @throws OpenIdException if the stream cannot be read or does not
+     *  hold a known response.
+     */
+    public static Response parse( Reader in ) throws OpenIdException
+    {
+        Map<String,String> map;
+        try
+        {
+            map = MessageParser.postedToMap( in );
+        }
+        catch ( IOException e )
+        {
+            throw new OpenIdException( "Error reading response", e );
+        }
+        return parse( map, map );
+    }
 
+
+    private static Response parse( Map<String,String> map, Object source )
+        throws OpenIdException
+    {
         Set<String> set = map.keySet();
         if ( ( set.contains( AssociationResponse.OPENID_SESSION_TYPE ) &&
             set.contains( AssociationResponse.OPENID_ENC_MAC_KEY ) ) ||
@@ -74,7 +105,7 @@ public class ResponseFactory
         }
         else
         {
-            throw new OpenIdException( "Cannot parse response from " + query );
+            throw new OpenIdException( "Cannot parse response from " + source );
         }
     }
 
@@ -19,9 +19,14 @@ package org.verisign.joid;
  */
 public class ServerInfo
 {
+    /** The default time a nonce may be dated in the future, in seconds */
+    public static final long DEFAULT_NONCE_SKEW = 60;
+
     private String urlEndPoint;
     private IStore store;
     private Crypto crypto;
+    private long nonceWindow;
+    private long nonceSkew = DEFAULT_NONCE_SKEW;
 
 
     /**
@@ -55,4 +60,54 @@ public class ServerInfo
     {
         return crypto;
     }
+
+
+    /**
+     * Returns how long after it was issued a nonce is accepted.
+     *
+     * @return the time in seconds, or 0 if nonces are accepted regardless
+     *  of their timestamp.
+     */
+    public long getNonceWindow()
+    {
+        return nonceWindow;
+    }
+
+
+    /**
+     * Sets how long after it was issued a nonce is accepted. Nonces dated
+     * earlier, or not dated, are then rejected without looking at the
+     * store, which only has to remember checked nonces for the window plus
+     * the skew.
+     *
+     * @param nonceWindow the time in seconds, or 0 to accept nonces
+     *  regardless of their timestamp.
+     */
+    public void setNonceWindow( long nonceWindow )
+    {
+        this.nonceWindow = nonceWindow;
+    }
+
+
+    /**
+     * Returns how far in the future a nonce may be dated, to allow for the
+     * clocks of servers sharing a store.
+     *
+     * @return the time in seconds.
+     */
+    public long getNonceSkew()
+    {
+        return nonceSkew;
+    }
+
+
+    /**
+     * Sets how far in the future a nonce may be dated.
+     *
+     * @param nonceSkew the time in seconds.
+     */
+    public void setNonceSkew( long nonceSkew )
+    {
+        this.nonceSkew = nonceSkew;
+    }
 }
@@ -0,0 +1,217 @@
+//
+// (C) Copyright 2007 VeriSign, Inc.  All Rights Reserved.
+//
+// VeriSign, Inc. shall have no responsibility, financial or
+// otherwise, for any consequences arising out of the use of
+// this material. The program material is provided on an "AS IS"
+// BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+// express or implied.
+//
+// Distributed under an Apache License
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+
+
+package org.verisign.joid;
+
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Periodically deletes expired associations and old nonces from an
+ * {@link IReapableStore}. Each run deletes in chunks and stops after a
+ * configurable number of entries, leaving the rest to the next run, so a
+ * large backlog is worked off without long-running statements.
+ */
+public class StoreReaper implements Runnable
+{
+    /** Seconds between two runs, by default. */
+    public static final long DEFAULT_INTERVAL = 300;
+
+    /** Seconds a checked nonce is kept, by default. */
+    public static final long DEFAULT_NONCE_MAX_AGE = 3600;
+
+    /** Entries deleted per store call, by default. */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /** Entries of each kind deleted per run at most, by default. */
+    public static final int DEFAULT_RUN_LIMIT = 50000;
+
+    private final static Log LOG = LogFactory.getLog( StoreReaper.class );
+
+    private final IReapableStore store;
+    private volatile long nonceMaxAge = DEFAULT_NONCE_MAX_AGE;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int runLimit = DEFAULT_RUN_LIMIT;
+    private ScheduledExecutorService scheduler;
+
+
+    /**
+     * Creates a reaper for the given store. Call {@link #start(long)} to
+     * run it in the background, or {@link #run()} to purge once.
+     *
+     * @param store the store to purge.
+     */
+    public StoreReaper( IReapableStore store )
+    {
+        this.store = store;
+    }
+
+
+    /**
+     * Sets how long checked nonces are kept. This must exceed the lifetime
+     * of associations, see {@link IReapableStore#purgeNonces(Date, int)}.
+     *
+     * @param nonceMaxAge the age in seconds.
+     */
+    public void setNonceMaxAge( long nonceMaxAge )
+    {
+        this.nonceMaxAge = nonceMaxAge;
+    }
+
+
+    /**
+     * @param chunkSize the number of entries deleted per store call.
+     */
+    public void setChunkSize( int chunkSize )
+    {
+        if ( chunkSize < 1 )
+        {
+            throw new IllegalArgumentException( "chunk size must be positive: " + chunkSize );
+        }
+        this.chunkSize = chunkSize;
+    }
+
+
+    /**
+     * @param runLimit the number of entries of each kind deleted per run at
+     *  most.
+     */
+    public void setRunLimit( int runLimit )
+    {
+        this.runLimit = runLimit;
+    }
+
+
+    /**
+     * Starts purging the store in a background thread.
+     *
+     * @param interval the seconds between two runs.
+     */
+    public synchronized void start( long interval )
+    {
+        if ( scheduler != null )
+        {
+            throw new IllegalStateException( "Reaper already started" );
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "joid-store-reaper" );
+                t.setDaemon( true );
+                t.setPriority( Thread.MIN_PRIORITY );
+                return t;
+            }
+        } );
+        scheduler.scheduleWithFixedDelay( this, interval, interval, TimeUnit.SECONDS );
+    }
+
+
+    /**
+     * Stops the background thread, letting a run in progress finish its
+     * current chunk.
+     */
+    public synchronized void shutdown()
+    {
+        if ( scheduler != null )
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+
+    /**
+     * Purges the store once. Failures are logged rather than thrown so a
+     * scheduled reaper keeps running.
+     */
+    public void run()
+    {
+        long now = System.currentTimeMillis();
+        try
+        {
+            int associations = purgeAssociations( new Date( now ) );
+            int nonces = purgeNonces( new Date( now - nonceMaxAge * 1000 ) );
+            if ( LOG.isDebugEnabled() )
+            {
+                LOG.debug( "Purged " + associations + " associations and " + nonces + " nonces" );
+            }
+        }
+        catch ( OpenIdException e )
+        {
+            LOG.warn( "Purging the store failed", e );
+        }
+        catch ( RuntimeException e )
+        {
+            LOG.warn( "Purging the store failed", e );
+        }
+    }
+
+
+    /**
+     * Deletes expired associations, chunk by chunk, up to the run limit.
+     *
+     * @param now the time against which to check expiry.
+     * @return the number of associations deleted.
+     * @throws OpenIdException if the store fails.
+     */
+    public int purgeAssociations( Date now ) throws OpenIdException
+    {
+        int total = 0;
+        while ( total < runLimit && !Thread.currentThread().isInterrupted() )
+        {
+            int limit = Math.min( chunkSize, runLimit - total );
+            int deleted = store.purgeExpiredAssociations( now, limit );
+            total += deleted;
+            if ( deleted < limit )
+            {
+                break;
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     * Deletes nonces checked before the given time, chunk by chunk, up to
+     * the run limit.
+     *
+     * @param checkedBefore the oldest checked date to keep.
+     * @return the number of nonces deleted.
+     * @throws OpenIdException if the store fails.
+     */
+    public int purgeNonces( Date checkedBefore ) throws OpenIdException
+    {
+        int total = 0;
+        while ( total < runLimit && !Thread.currentThread().isInterrupted() )
+        {
+            int limit = Math.min( chunkSize, runLimit - total );
+            int deleted = store.purgeNonces( checkedBefore, limit );
+            total += deleted;
+            if ( deleted < limit )
+            {
+                break;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,341 @@
+package org.verisign.joid.consumer;
+
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.AssociationResponse;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Response;
+
+
+/**
+ * The associations a relying party holds with OpenID servers, ready for
+ * signature checks: the MAC key of each is decrypted once when the
+ * association is made and kept as a {@link SecretKey}.
+ *
+ * Each server has a current association used for new authentication
+ * requests. It is renewed shortly before it expires while the old one
+ * remains valid for responses that still refer to it; a server is renewed by
+ * one thread at a time while the others keep using the current association.
+ * Associations are found without locking.
+ */
+public class AssociationCache
+{
+    /** Renew this many seconds before an association expires, by default. */
+    public static final long DEFAULT_RENEWAL_MARGIN = 120;
+
+    private static Log log = LogFactory.getLog( AssociationCache.class );
+
+    private final ConcurrentMap<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Entry> byHandle = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, FutureTask<Entry>> renewals =
+        new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    private final Crypto crypto = new Crypto();
+    private volatile Transport transport;
+    private volatile long renewalMargin = DEFAULT_RENEWAL_MARGIN;
+
+
+    /**
+     * Creates a cache associating through the given transport.
+     *
+     * @param transport the transport for association requests.
+     */
+    public AssociationCache( Transport transport )
+    {
+        this.transport = transport;
+    }
+
+
+    /**
+     * Returns the association to use for a new authentication request to the
+     * given server, associating or renewing first if needed.
+     *
+     * @param server the OpenID server endpoint.
+     * @return a live association.
+     * @throws OpenIdException if no association could be made.
+     */
+    public Entry getCurrent( String server ) throws OpenIdException
+    {
+        Entry entry = current.get( server );
+        if ( entry != null && !entry.isDueForRenewal( renewalMargin ) )
+        {
+            return entry;
+        }
+
+        if ( entry != null && !entry.hasExpired() )
+        {
+            // still usable: renew in this thread unless another one is on it
+            FutureTask<Entry> task = newRenewal( server );
+            if ( renewals.putIfAbsent( server, task ) == null )
+            {
+                try
+                {
+                    task.run();
+                    return task.get();
+                }
+                catch ( Exception e )
+                {
+                    log.warn( "Could not renew association with " + server, e );
+                }
+                finally
+                {
+                    renewals.remove( server, task );
+                }
+            }
+            return entry;
+        }
+
+        return await( server );
+    }
+
+
+    /**
+     * Finds an association by the handle a server used in a response.
+     *
+     * @param server the OpenID server endpoint.
+     * @param handle the association handle.
+     * @return the association, or null if it is unknown or has expired.
+     */
+    public Entry find( String server, String handle )
+    {
+        if ( handle == null )
+        {
+            return null;
+        }
+        Entry entry = byHandle.get( key( server, handle ) );
+        if ( entry != null && entry.hasExpired() )
+        {
+            remove( server, handle );
+            return null;
+        }
+        return entry;
+    }
+
+
+    /**
+     * Forgets an association, as when the server reported its handle as
+     * invalid.
+     *
+     * @param server the OpenID server endpoint.
+     * @param handle the association handle.
+     */
+    public void remove( String server, String handle )
+    {
+        Entry entry = byHandle.remove( key( server, handle ) );
+        if ( entry != null )
+        {
+            current.remove( server, entry );
+        }
+    }
+
+
+    /**
+     * Drops every expired association.
+     */
+    public void evictExpired()
+    {
+        for ( Iterator<Entry> it = byHandle.values().iterator(); it.hasNext(); )
+        {
+            Entry entry = it.next();
+            if ( entry.hasExpired() )
+            {
+                it.remove();
+                current.remove( entry.getServer(), entry );
+            }
+        }
+    }
+
+
+    /**
+     * Sets how long before its expiry an association is renewed.
+     *
+     * @param renewalMargin the margin in seconds.
+     */
+    public void setRenewalMargin( long renewalMargin )
+    {
+        this.renewalMargin = renewalMargin;
+    }
+
+
+    /**
+     * Sets the transport used for association requests.
+     *
+     * @param transport the transport.
+     */
+    public void setTransport( Transport transport )
+    {
+        this.transport = transport;
+    }
+
+
+    private Entry await( String server ) throws OpenIdException
+    {
+        FutureTask<Entry> task = newRenewal( server );
+        FutureTask<Entry> running = renewals.putIfAbsent( server, task );
+        if ( running == null )
+        {
+            running = task;
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                renewals.remove( server, task );
+            }
+        }
+
+        try
+        {
+            return running.get();
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof OpenIdException )
+            {
+                throw ( OpenIdException ) cause;
+            }
+            throw new OpenIdException( "Could not associate with " + server, e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new OpenIdException( "Interrupted while associating with " + server, e );
+        }
+    }
+
+
+    private FutureTask<Entry> newRenewal( final String server )
+    {
+        return new FutureTask<Entry>( new Callable<Entry>()
+        {
+            public Entry call() throws Exception
+            {
+                Entry entry = associate( server );
+                byHandle.put( key( server, entry.getHandle() ), entry );
+                current.put( server, entry );
+                evictExpired();
+                return entry;
+            }
+        } );
+    }
+
+
+    private Entry associate( String server ) throws Exception
+    {
+        DiffieHellman dh = crypto.generateDiffieHellman( null, null );
+        AssociationRequest ar = AssociationRequest.create( dh );
+        log.info( "Associating with: " + server );
+
+        Response response = Util.send( transport, ar, server );
+        if ( !( response instanceof AssociationResponse ) )
+        {
+            throw new OpenIdException( "Unexpected association response from " + server );
+        }
+        AssociationResponse asr = ( AssociationResponse ) response;
+        if ( asr.getErrorCode() != null || asr.getAssociationHandle() == null )
+        {
+            throw new OpenIdException( "Association with " + server + " failed: "
+                + asr.getErrorCode() );
+        }
+
+        // a MAC key sent in the clear could have been read on the way
+        if ( asr.getSessionType() != ar.getSessionType() )
+        {
+            throw new OpenIdException( "Association with " + server + " answered session type "
+                + asr.getSessionType() + " to a request for " + ar.getSessionType() );
+        }
+        if ( asr.getEncryptedMacKey() == null || asr.getDhServerPublic() == null )
+        {
+            throw new OpenIdException( "Association with " + server
+                + " answered without an encrypted MAC key" );
+        }
+
+        byte[] macKey = crypto.decryptSecret( dh, asr.getDhServerPublic(), asr.getEncryptedMacKey() );
+        return new Entry( server, asr.getAssociationHandle(),
+            Crypto.createMacKey( asr.getAssociationType(), macKey ),
+            asr.getExpiresIn() );
+    }
+
+
+    private static String key( String server, String handle )
+    {
+        return server + ' ' + handle;
+    }
+
+
+    /**
+     * An association of this relying party with an OpenID server.
+     */
+    public static final class Entry
+    {
+        private final String server;
+        private final String handle;
+        private final SecretKey signingKey;
+        private final long issuedAt;
+        private final long expiresAt;
+
+
+        Entry( String server, String handle, SecretKey signingKey, long expiresIn )
+        {
+            this.server = server;
+            this.handle = handle;
+            this.signingKey = signingKey;
+            this.issuedAt = System.currentTimeMillis();
+            this.expiresAt = issuedAt + expiresIn * 1000;
+        }
+
+
+        public String getServer()
+        {
+            return server;
+        }
+
+
+        public String getHandle()
+        {
+            return handle;
+        }
+
+
+        /**
+         * @return the decrypted MAC key, bound to the association's
+         *  algorithm.
+         */
+        public SecretKey getSigningKey()
+        {
+            return signingKey;
+        }
+
+
+        public boolean hasExpired()
+        {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+
+        /**
+         * Renews within the margin, or in the second half of a lifetime
+         * shorter than twice the margin.
+         */
+        boolean isDueForRenewal( long margin )
+        {
+            long renewAt = Math.max( expiresAt - margin * 1000, ( issuedAt + expiresAt ) / 2 );
+            return System.currentTimeMillis() >= renewAt;
+        }
+    }
+}
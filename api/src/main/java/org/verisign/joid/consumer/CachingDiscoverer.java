@@ -0,0 +1,329 @@
+package org.verisign.joid.consumer;
+
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A {@link Discoverer} remembering the outcome of each discovery, keyed by
+ * the normalized identifier.
+ *
+ * A successful result is kept for as long as the HTTP cache headers of the
+ * fetched documents allow, but never longer than the maximum lifetime. A
+ * failed discovery is remembered for a short while so that a dead identity
+ * page is not fetched on every attempt. Concurrent lookups of an identifier
+ * that is not cached share a single fetch.
+ */
+public class CachingDiscoverer extends Discoverer
+{
+    public static final long DEFAULT_MAX_LIFETIME = 3600;
+    public static final long DEFAULT_NEGATIVE_LIFETIME = 60;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static Log log = LogFactory.getLog( CachingDiscoverer.class );
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, FutureTask<ServerAndDelegate>> inFlight =
+        new ConcurrentHashMap<String, FutureTask<ServerAndDelegate>>();
+
+    private volatile long maxLifetime = DEFAULT_MAX_LIFETIME;
+    private volatile long negativeLifetime = DEFAULT_NEGATIVE_LIFETIME;
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+
+    /**
+     * Creates a discoverer fetching through {@link Util#getTransport()}.
+     */
+    public CachingDiscoverer()
+    {
+        super();
+    }
+
+
+    /**
+     * Creates a discoverer fetching through the given transport.
+     *
+     * @param transport the transport, or null for the default one.
+     */
+    public CachingDiscoverer( Transport transport )
+    {
+        super( transport );
+    }
+
+
+    public ServerAndDelegate findIdServer( String identityUrl ) throws Exception
+    {
+        final String key = normalize( identityUrl );
+
+        Entry entry = cache.get( key );
+        if ( entry != null )
+        {
+            if ( !entry.hasExpired() )
+            {
+                return entry.get( key );
+            }
+            cache.remove( key, entry );
+        }
+
+        FutureTask<ServerAndDelegate> task = new FutureTask<ServerAndDelegate>(
+            new Callable<ServerAndDelegate>()
+            {
+                public ServerAndDelegate call() throws Exception
+                {
+                    return discover( key );
+                }
+            } );
+        FutureTask<ServerAndDelegate> running = inFlight.putIfAbsent( key, task );
+        if ( running == null )
+        {
+            running = task;
+            try
+            {
+                // another fetch may have completed since the cache was read
+                entry = cache.get( key );
+                if ( entry != null && !entry.hasExpired() )
+                {
+                    return entry.get( key );
+                }
+                task.run();
+            }
+            finally
+            {
+                inFlight.remove( key, task );
+            }
+        }
+
+        try
+        {
+            return copy( running.get() );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof Exception )
+            {
+                throw ( Exception ) cause;
+            }
+            throw e;
+        }
+    }
+
+
+    private ServerAndDelegate discover( String key ) throws Exception
+    {
+        ServerAndDelegate result;
+        try
+        {
+            result = super.findIdServer( key );
+        }
+        catch ( Exception e )
+        {
+            if ( negativeLifetime > 0 )
+            {
+                put( key, new Entry( null, e, negativeLifetime ) );
+            }
+            throw e;
+        }
+
+        long lifetime = maxLifetime;
+        if ( result.getMaxAge() >= 0 && result.getMaxAge() < lifetime )
+        {
+            lifetime = result.getMaxAge();
+        }
+        if ( lifetime > 0 )
+        {
+            put( key, new Entry( copy( result ), null, lifetime ) );
+        }
+        return result;
+    }
+
+
+    private void put( String key, Entry entry )
+    {
+        if ( cache.size() >= maxEntries )
+        {
+            evictExpired();
+            if ( cache.size() >= maxEntries )
+            {
+                log.warn( "Discovery cache is full, not caching " + key );
+                return;
+            }
+        }
+        cache.put( key, entry );
+    }
+
+
+    /**
+     * Drops every cached result whose lifetime has passed.
+     */
+    public void evictExpired()
+    {
+        for ( Iterator<Entry> it = cache.values().iterator(); it.hasNext(); )
+        {
+            if ( it.next().hasExpired() )
+            {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Drops every cached result.
+     */
+    public void clear()
+    {
+        cache.clear();
+    }
+
+
+    /**
+     * @return the number of cached results, expired ones included until
+     *  they are evicted.
+     */
+    public int size()
+    {
+        return cache.size();
+    }
+
+
+    /**
+     * Sets the longest time a successful discovery is cached, whatever the
+     * HTTP cache headers allow.
+     *
+     * @param maxLifetime the lifetime in seconds; 0 disables caching of
+     *  successful results.
+     */
+    public void setMaxLifetime( long maxLifetime )
+    {
+        this.maxLifetime = maxLifetime;
+    }
+
+
+    /**
+     * Sets how long a failed discovery is remembered.
+     *
+     * @param negativeLifetime the lifetime in seconds; 0 disables caching of
+     *  failures.
+     */
+    public void setNegativeLifetime( long negativeLifetime )
+    {
+        this.negativeLifetime = negativeLifetime;
+    }
+
+
+    /**
+     * Sets the number of identifiers cached at most.
+     *
+     * @param maxEntries the cache capacity.
+     */
+    public void setMaxEntries( int maxEntries )
+    {
+        this.maxEntries = maxEntries;
+    }
+
+
+    /**
+     * Normalizes a user supplied identifier as in section 7.2 of the OpenID
+     * 2.0 specification: surrounding whitespace and any
+     * <code>xri://</code> prefix are dropped, <code>http://</code> is
+     * assumed when no scheme is given, the scheme and host are lower-cased
+     * and the fragment is removed. XRIs are returned as they are.
+     *
+     * @param identifier the identifier entered by the user.
+     * @return the normalized identifier.
+     */
+    public static String normalize( String identifier )
+    {
+        String id = identifier.trim();
+        if ( id.startsWith( "xri://" ) )
+        {
+            id = id.substring( 6 );
+        }
+        if ( id.length() > 0 && "=@+$!(".indexOf( id.charAt( 0 ) ) >= 0 )
+        {
+            return id;
+        }
+
+        String lower = id.toLowerCase();
+        if ( !lower.startsWith( "http://" ) && !lower.startsWith( "https://" ) )
+        {
+            id = "http://" + id;
+        }
+        int fragment = id.indexOf( '#' );
+        if ( fragment >= 0 )
+        {
+            id = id.substring( 0, fragment );
+        }
+
+        int hostStart = id.indexOf( "://" ) + 3;
+        int hostEnd = hostStart;
+        while ( hostEnd < id.length() && id.charAt( hostEnd ) != '/' && id.charAt( hostEnd ) != '?' )
+        {
+            hostEnd++;
+        }
+        if ( hostEnd == id.length() )
+        {
+            return id.toLowerCase() + "/";
+        }
+        return id.substring( 0, hostEnd ).toLowerCase() + id.substring( hostEnd );
+    }
+
+
+    private static ServerAndDelegate copy( ServerAndDelegate from )
+    {
+        ServerAndDelegate to = new ServerAndDelegate();
+        to.setServer( from.getServer() );
+        to.setDelegate( from.getDelegate() );
+        to.restrictMaxAge( from.getMaxAge() );
+        return to;
+    }
+
+
+    /**
+     * A cached result: either the discovered server or the failure.
+     */
+    private static final class Entry
+    {
+        private final ServerAndDelegate result;
+        private final Exception failure;
+        private final long expiresAt;
+
+
+        Entry( ServerAndDelegate result, Exception failure, long lifetime )
+        {
+            this.result = result;
+            this.failure = failure;
+            this.expiresAt = System.currentTimeMillis() + lifetime * 1000;
+        }
+
+
+        boolean hasExpired()
+        {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+
+        /**
+         * Returns a copy of the result, or rethrows the failure as the
+         * first caller saw it.
+         */
+        ServerAndDelegate get( String key ) throws Exception
+        {
+            if ( failure != null )
+            {
+                log.debug( "Discovery of " + key + " failed recently" );
+                throw failure;
+            }
+            return copy( result );
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package org.verisign.joid.consumer;
 
 
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.verisign.joid.OpenIdException;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.methods.GetMethod;
+import org.verisign.joid.metrics.Instrumentation;
 import org.xml.sax.SAXException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -15,6 +17,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Iterator;
 import java.util.List;
@@ -27,58 +30,93 @@ import java.util.List;
  */
 public class Discoverer
 {
+    private static Log log = LogFactory.getLog( Discoverer.class );
+
+    private final Transport transport;
+
+
+    /**
+     * Creates a discoverer fetching through {@link Util#getTransport()}.
+     */
+    public Discoverer()
+    {
+        this( null );
+    }
+
+
+    /**
+     * Creates a discoverer fetching through the given transport.
+     *
+     * @param transport the transport, or null for the default one.
+     */
+    public Discoverer( Transport transport )
+    {
+        this.transport = transport;
+    }
+
+
+    private Transport getTransport()
+    {
+        return transport != null ? transport : Util.getTransport();
+    }
+
 
     public ServerAndDelegate findIdServer( String identityUrl )
             throws Exception
     {
 
-        ServerAndDelegate serverAndDelegate = new ServerAndDelegate();
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            ServerAndDelegate serverAndDelegate = new ServerAndDelegate();
 
-        // OpenID 2.0, we first try to check with YADIS protocol
-        findWithYadis( identityUrl, serverAndDelegate );
+            // OpenID 2.0, we first try to check with YADIS protocol
+            findWithYadis( identityUrl, serverAndDelegate );
 
-        if ( serverAndDelegate.getServer() == null )
+            if ( serverAndDelegate.getServer() == null )
+            {
+                throw new OpenIdException( "No openid.server found on identity page." );
+            }
+            ok = true;
+            return serverAndDelegate;
+        }
+        finally
         {
-            throw new OpenIdException( "No openid.server found on identity page." );
+            Instrumentation.getMetrics().recordTime( "consumer.discovery", System.nanoTime() - start, ok );
         }
-        return serverAndDelegate;
     }
 
 
     public void findWithYadis( String identityUrl, ServerAndDelegate serverAndDelegate ) throws Exception
     {
         BufferedReader in = null;
-        HttpClient httpClient = new HttpClient();
-        httpClient.getParams().setSoTimeout( 15000 );
-        httpClient.getParams().setConnectionManagerTimeout( 15000 );
-
-        GetMethod get = null;
+        TransportResponse get = null;
         try
         {
 
-            System.out.println( "identityUrl=" + identityUrl );
-            get = new GetMethod( identityUrl );
-            // test
-            int status = httpClient.executeMethod( get );
-            System.out.println( "status=" + status );
-            dumpHeaders( get.getResponseHeaders() );
+            log.debug( "identityUrl=" + identityUrl );
+            get = getTransport().get( identityUrl );
+            log.debug( "status=" + get.getStatus() );
+            serverAndDelegate.restrictMaxAge( parseMaxAge( get ) );
 
-            Header contentType = get.getResponseHeader( "Content-Type" );
-            if ( contentType != null && contentType.getValue().contains( "application/xrds+xml" ) )
+            String contentType = get.getHeader( "Content-Type" );
+            if ( contentType != null && contentType.contains( "application/xrds+xml" ) )
             {
                 // then we're looking at the xrds service doc already
-                XRDSDocument xrdsDocument = buildXrdsDocument( get );
+                XRDSDocument xrdsDocument = buildXrdsDocument( get.getBody() );
                 handleXrdsDocument( serverAndDelegate, xrdsDocument );
                 return;
             }
 
-            Header locationHeader = get.getResponseHeader( "X-XRDS-Location" );
-            if ( locationHeader != null )
+            String location = get.getHeader( "X-XRDS-Location" );
+            if ( location != null )
             {
                 // then we go to this URL
-                get.releaseConnection();
-                System.out.println( "found yadis header: " + locationHeader.getValue() );
-                XRDSDocument xrdsDocument = fetchYadisDocument( httpClient, locationHeader.getValue() );
+                get.release();
+                get = null;
+                log.debug( "found yadis header: " + location );
+                XRDSDocument xrdsDocument = fetchYadisDocument( location, serverAndDelegate );
                 handleXrdsDocument( serverAndDelegate, xrdsDocument );
                 return;
             }
@@ -86,7 +124,7 @@ public class Discoverer
             {
                 // try to find it in the HTML, OpenID 1.0 style
                 // @TODO: should also look for X-XRDS-Location in a meta tag here
-                in = new BufferedReader( new InputStreamReader( get.getResponseBodyAsStream() ) );
+                in = new BufferedReader( new InputStreamReader( get.getBody() ) );
                 findServerAndDelegate( serverAndDelegate, in );
                 return;
             }
@@ -98,7 +136,7 @@ public class Discoverer
             httpClient.executeMethod(get);
 
             Header contentType = get.getResponseHeader("content-type");
-            System.out.println("content-type=" + contentType);
+            log.debug("content-type=" + contentType);
             get.releaseConnection();
 
              */
@@ -108,7 +146,7 @@ public class Discoverer
             if ( in != null )
                 in.close();
             if ( get != null )
-                get.releaseConnection();
+                get.release();
         }
     }
 
@@ -124,7 +162,7 @@ public class Discoverer
             //ServerAndDelegate stores the endpoint of the XRDS service with the lowest priority
             //Is needed for the op_endpoint verification of the received token
             if (lastPriority < 0 || lastPriority > service.getPriority()) {
-                System.out.println( "service=" + service.getUri() );
+                log.debug( "service=" + service.getUri() );
                 serverAndDelegate.setServer( service.getUri() );
                 lastPriority = service.getPriority();
             }
@@ -133,16 +171,6 @@ public class Discoverer
     }
 
 
-    private void dumpHeaders( Header[] responseHeaders )
-    {
-        for ( int i = 0; i < responseHeaders.length; i++ )
-        {
-            Header responseHeader = responseHeaders[i];
-            System.out.println( responseHeader.getName() + "=" + responseHeader.getValue() );
-        }
-    }
-
-
     private void findServerAndDelegate( ServerAndDelegate serverAndDelegate, BufferedReader in )
             throws IOException
     {
@@ -165,30 +193,85 @@ public class Discoverer
     }
 
 
-    private XRDSDocument fetchYadisDocument( HttpClient httpClient, String location ) throws IOException,
-        ParserConfigurationException, SAXException
+    private XRDSDocument fetchYadisDocument( String location, ServerAndDelegate serverAndDelegate )
+        throws IOException, ParserConfigurationException, SAXException
     {
-        GetMethod get = new GetMethod( location );
-        httpClient.executeMethod( get );
-        //        System.out.println("got: " + get.getResponseBodyAsString());
-        XRDSDocument doc = buildXrdsDocument( get );
-        return doc;
+        TransportResponse get = getTransport().get( location );
+        try
+        {
+            serverAndDelegate.restrictMaxAge( parseMaxAge( get ) );
+            return buildXrdsDocument( get.getBody() );
+        }
+        finally
+        {
+            get.release();
+        }
+    }
+
+
+    /**
+     * Reads the lifetime granted by the Cache-Control or Expires header.
+     *
+     * @return the lifetime in seconds, 0 if caching is forbidden, or -1 if
+     *  the headers say nothing.
+     */
+    static long parseMaxAge( TransportResponse response )
+    {
+        String cacheControl = response.getHeader( "Cache-Control" );
+        if ( cacheControl != null )
+        {
+            String[] directives = cacheControl.split( "," );
+            for ( int i = 0; i < directives.length; i++ )
+            {
+                String directive = directives[i].trim().toLowerCase();
+                if ( directive.equals( "no-cache" ) || directive.equals( "no-store" ) )
+                {
+                    return 0;
+                }
+                if ( directive.startsWith( "max-age=" ) )
+                {
+                    try
+                    {
+                        return Math.max( 0, Long.parseLong( directive.substring( 8 ).trim() ) );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        return 0;
+                    }
+                }
+            }
+        }
+
+        String expires = response.getHeader( "Expires" );
+        if ( expires != null )
+        {
+            try
+            {
+                long millis = DateUtil.parseDate( expires ).getTime() - System.currentTimeMillis();
+                return Math.max( 0, millis / 1000 );
+            }
+            catch ( DateParseException e )
+            {
+                // an invalid date means already expired
+                return 0;
+            }
+        }
+        return -1;
     }
 
 
-    private XRDSDocument buildXrdsDocument( GetMethod get )
+    private XRDSDocument buildXrdsDocument( InputStream body )
             throws ParserConfigurationException, SAXException, IOException
     {
         XRDSDocument doc = new XRDSDocument();
         DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
         javax.xml.parsers.DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-        Document document = docBuilder.parse( get.getResponseBodyAsStream() );
-        get.releaseConnection();
+        Document document = docBuilder.parse( body );
         NodeList list = document.getElementsByTagName( "Service" );
         for ( int i = 0; i < list.getLength(); i++ )
         {
             Element serviceElement = (Element) list.item(i);
-            System.out.println("servicenode=" + serviceElement);
+            log.debug("servicenode=" + serviceElement);
             NodeList childNodes = serviceElement.getChildNodes();
             XRDSService service = new XRDSService();
             parseServicePriority(serviceElement, service);
@@ -197,7 +280,7 @@ public class Discoverer
                 // todo: ensure <Type> is http://openid.net/signon/1.0 - http://yadis.org/wiki/Yadis_1.0_(HTML)#7._The_Yadis_document
                 // todo: get delegate <openid:Delegate>
                 Node node2 = childNodes.item( j );
-                System.out.println( node2.getNodeName() );
+                log.debug( node2.getNodeName() );
                 if ( node2.getNodeName().equalsIgnoreCase( "URI" ) )
                 {
                     service.setUri( node2.getTextContent() );
@@ -0,0 +1,194 @@
+package org.verisign.joid.consumer;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Request;
+import org.verisign.joid.Response;
+import org.verisign.joid.ResponseFactory;
+
+
+/**
+ * A {@link Transport} keeping persistent connections in a shared pool, so
+ * that repeated requests to the same OpenID server reuse an open TCP (and
+ * TLS) connection instead of handshaking each time. Connections are limited
+ * per host and in total, and every request is bounded by a connect and a
+ * read timeout.
+ */
+public class HttpClientTransport implements Transport
+{
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 200;
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    private static final String CHARSET = "UTF-8";
+
+    private final static Log LOG = LogFactory.getLog( HttpClientTransport.class );
+
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final HttpClient httpClient;
+
+
+    /**
+     * Creates a transport with the default timeouts and connection limits.
+     */
+    public HttpClientTransport()
+    {
+        this( DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT,
+            DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS );
+    }
+
+
+    /**
+     * Creates a transport.
+     *
+     * @param connectTimeout the time allowed to open a connection, in
+     *  milliseconds.
+     * @param readTimeout the time allowed between two reads, and to wait for
+     *  a pooled connection, in milliseconds.
+     * @param maxConnectionsPerHost the number of open connections kept per
+     *  host.
+     * @param maxTotalConnections the number of open connections kept
+     *  overall.
+     */
+    public HttpClientTransport( int connectTimeout, int readTimeout,
+        int maxConnectionsPerHost, int maxTotalConnections )
+    {
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setConnectionTimeout( connectTimeout );
+        params.setSoTimeout( readTimeout );
+        params.setDefaultMaxConnectionsPerHost( maxConnectionsPerHost );
+        params.setMaxTotalConnections( maxTotalConnections );
+        params.setStaleCheckingEnabled( true );
+
+        httpClient = new HttpClient( connectionManager );
+        httpClient.getParams().setConnectionManagerTimeout( readTimeout );
+    }
+
+
+    public Response send( Request req, String dest ) throws IOException, OpenIdException
+    {
+        PostMethod post = new PostMethod( dest );
+        try
+        {
+            post.setRequestEntity( new StringRequestEntity( req.toUrlString(),
+                FORM_CONTENT_TYPE, CHARSET ) );
+            int status = httpClient.executeMethod( post );
+            if ( LOG.isDebugEnabled() )
+            {
+                LOG.debug( "POST " + dest + " returned " + status );
+            }
+
+            // error responses come with status 400 and a key-value body too
+            InputStream body = post.getResponseBodyAsStream();
+            if ( body == null )
+            {
+                throw new IOException( "Empty response from " + dest
+                    + " with status " + status );
+            }
+            return ResponseFactory.parse( new InputStreamReader( body, CHARSET ) );
+        }
+        finally
+        {
+            post.releaseConnection();
+        }
+    }
+
+
+    public TransportResponse get( String url ) throws IOException
+    {
+        GetMethod get = new GetMethod( url );
+        get.setFollowRedirects( true );
+        try
+        {
+            int status = httpClient.executeMethod( get );
+            return new MethodResponse( get, status );
+        }
+        catch ( IOException e )
+        {
+            get.releaseConnection();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            get.releaseConnection();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Closes pooled connections that have not been used for the given time.
+     *
+     * @param idleTimeout the idle time in milliseconds.
+     */
+    public void closeIdleConnections( long idleTimeout )
+    {
+        connectionManager.closeIdleConnections( idleTimeout );
+    }
+
+
+    /**
+     * Closes every pooled connection. The transport cannot be used
+     * afterwards.
+     */
+    public void shutdown()
+    {
+        connectionManager.shutdown();
+    }
+
+
+    private static final class MethodResponse implements TransportResponse
+    {
+        private final HttpMethod method;
+        private final int status;
+
+
+        MethodResponse( HttpMethod method, int status )
+        {
+            this.method = method;
+            this.status = status;
+        }
+
+
+        public int getStatus()
+        {
+            return status;
+        }
+
+
+        public String getHeader( String name )
+        {
+            Header header = method.getResponseHeader( name );
+            return header == null ? null : header.getValue();
+        }
+
+
+        public InputStream getBody() throws IOException
+        {
+            return method.getResponseBodyAsStream();
+        }
+
+
+        public void release()
+        {
+            method.releaseConnection();
+        }
+    }
+}
@@ -8,7 +8,6 @@ import org.apache.commons.logging.Log;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -38,9 +37,9 @@ public class JoidConsumer
 
     private static Log log = LogFactory.getLog( JoidConsumer.class );
 
-    private Map<String, Properties> propSingleton;
-    private Map<String, String> handleToIdServer;
-    private Discoverer discoverer = new Discoverer();
+    private Transport transport = Util.getTransport();
+    private final AssociationCache associations = new AssociationCache( transport );
+    private Discoverer discoverer = new CachingDiscoverer( transport );
 
 
     public JoidConsumer()
@@ -49,43 +48,41 @@ public class JoidConsumer
     }
 
 
-    private synchronized Properties getProps( String idserver )
+    /**
+     * Sets the transport used for association, check_authentication and
+     * discovery requests. Defaults to {@link Util#getTransport()}. This
+     * also replaces the discoverer, dropping its cached results.
+     *
+     * @param transport the transport to use.
+     */
+    public void setTransport( Transport transport )
     {
-        // @TODO: just store the AssociationResponse instead of converting to props
-        if ( propSingleton == null )
-        {
-            propSingleton = new HashMap<String, Properties>();
-            handleToIdServer = new HashMap<String, String>();
-        }
-        Properties props = ( Properties ) propSingleton.get( idserver );
-        if ( props == null )
-        { // @TODO: also check expires_in time to make sure it's still valid
-            try
-            {
-                props = associate( idserver );
-                propSingleton.put( idserver, props );
-                handleToIdServer.put( props.getProperty( "handle" ), idserver );
-            }
-            catch ( Exception e )
-            {
-                e.printStackTrace();
-            }
-        }
-        return props;
+        this.transport = transport;
+        this.associations.setTransport( transport );
+        this.discoverer = new CachingDiscoverer( transport );
     }
 
 
-    private Properties getPropsByHandle( String associationHandle )
-            throws OpenIdException
+    /**
+     * Sets the discoverer used to find the OpenID server of an identifier.
+     * Defaults to a {@link CachingDiscoverer}.
+     *
+     * @param discoverer the discoverer to use.
+     */
+    public void setDiscoverer( Discoverer discoverer )
     {
-        String idServer = ( String ) handleToIdServer.get( associationHandle );
-        log.info( "got idserver for handle: " + associationHandle +
-                " - " + idServer );
-        if ( idServer == null )
-        {
-            throw new OpenIdException( "handle for server not found!" );
-        }
-        return getProps( idServer );
+        this.discoverer = discoverer;
+    }
+
+
+    /**
+     * Returns the associations held with OpenID servers.
+     *
+     * @return the association cache.
+     */
+    public AssociationCache getAssociations()
+    {
+        return associations;
     }
 
 
@@ -102,15 +99,12 @@ public class JoidConsumer
             throws IOException, OpenIdException
     {
         DiffieHellman dh = DiffieHellman.getDefault();
-        Crypto crypto = new Crypto();
-        crypto.setDiffieHellman( dh );
-
-        AssociationRequest ar = AssociationRequest.create( crypto );
+        AssociationRequest ar = AssociationRequest.create( dh );
 
         log.info( "[JoidConsumer] Attempting to associate with: " + idserver );
         log.info( "Request=" + ar );
 
-        Response response = Util.send( ar, idserver );
+        Response response = Util.send( transport, ar, idserver );
         log.info( "Response=" + response + "\n" );
 
         AssociationResponse asr = ( AssociationResponse ) response;
@@ -134,8 +128,7 @@ public class JoidConsumer
         /*
         Crypto crypto = new Crypto();
         dh = DiffieHellman.recreate(privateKey, p);
-        crypto.setDiffieHellman(dh);
-        byte[] clearKey	= crypto.decryptSecret(asr.getDhServerPublic(),
+        byte[] clearKey	= crypto.decryptSecret(dh, asr.getDhServerPublic(),
                                asr.getEncryptedMacKey());
         System.out.println("Clear key: "+Crypto.convertToString(clearKey));
         */
@@ -167,7 +160,7 @@ public class JoidConsumer
         ServerAndDelegate idserver = null;
         try
         {
-            //FIX ME is it required to do each authentication? maybe we can cache the idServer with association ! see the spec!!!
+            // the default discoverer caches results, see CachingDiscoverer
             idserver = discoverer.findIdServer( identity );
         }
         catch ( Exception e )
@@ -177,8 +170,7 @@ public class JoidConsumer
                     "identifier.", e );
         }
 
-        Properties p = getProps( idserver.getServer() );
-        String handle = p.getProperty( "handle" );
+        String handle = associations.getCurrent( idserver.getServer() ).getHandle();
 
         // todo: use delegate here, replace identity?
 
@@ -216,55 +208,31 @@ public class JoidConsumer
         
         //Start discovery on the contained claimed_id and return the discovered endpoint
         String serverURL = verifyServerEndpointURL(response);
-        Properties props;
         //verify if 'op_endpoint' in the token is equals the fresh discovered serverURL
         if (!serverURL.equals(response.getUrlEndPoint())) {
             throw new OpenIdException("Endpoint verification failed.");
         }
-        if ( response.getInvalidateHandle() != null )
+        AssociationCache.Entry association = associations.find( serverURL, response.getAssociationHandle() );
+        if ( response.getInvalidateHandle() != null || association == null )
         {
-            // then we have to send a authentication_request (dumb mode) to verify the signature
-            props = getPropsByHandle(response.getInvalidateHandle());
+            // then we have to send a check_authentication request (dumb mode) to verify the signature
             return useCheckAuthentication(response, serverURL); //use for the verificiation the keys associated to serverURL
-        } else {
-            // normal properties
-            props = getProps(serverURL);
-
-            if (!props.getProperty("handle").equals(response.getAssociationHandle()))
-            {
-                return useCheckAuthentication(response, serverURL); //use for the verificiation the keys associated to serverURL
-            }
-            // todo: before returning a valid response, ensure return_to is a suburl of trust_root
-            BigInteger privKey = Crypto.convertToBigIntegerFromString( props.getProperty( "privateKey" ) );
-            BigInteger modulus = Crypto.convertToBigIntegerFromString( props.getProperty( "modulus" ) );
-            BigInteger serverPublic = Crypto.convertToBigIntegerFromString( props.getProperty( "publicKey" ) );
-            byte[] encryptedKey = Crypto.convertToBytes( props.getProperty( "encryptedKey" ) );
-
-            /* String sig = response.sign(response.getAssociationType(),
-                             a.getMacKey(), response.getSignedList());
-                    isValid = sig.equals(response.getSignature());
-            */
-            DiffieHellman dh = DiffieHellman.recreate( privKey, modulus );
-            Crypto crypto = new Crypto();
-            crypto.setDiffieHellman( dh );
-            byte[] clearKey = crypto.decryptSecret( serverPublic, encryptedKey );
-
-            String signature = response.getSignature();
-            log.info( "Server's signature: " + signature );
-
-            String sigList = response.getSignedList();
-            String reSigned = response.sign( clearKey, sigList );
-            log.info( "Our signature:      " + reSigned );
-            String claimedId = response.getClaimedId();
-            if ( !signature.equals( reSigned ) )
-            {
-                throw new AuthenticationException( "OpenID signatures do not match! " +
-                        "claimed identity: " + claimedId );
-            }
-            log.info( "Signatures match, identity is ok: " + claimedId );
-            return new AuthenticationResult( claimedId, response );
         }
 
+        // todo: before returning a valid response, ensure return_to is a suburl of trust_root
+        String signature = response.getSignature();
+        log.info( "Server's signature: " + signature );
+
+        String reSigned = response.sign( association.getSigningKey(), response.getSignedList() );
+        log.info( "Our signature:      " + reSigned );
+        String claimedId = response.getClaimedId();
+        if ( !signature.equals( reSigned ) )
+        {
+            throw new AuthenticationException( "OpenID signatures do not match! " +
+                    "claimed identity: " + claimedId );
+        }
+        log.info( "Signatures match, identity is ok: " + claimedId );
+        return new AuthenticationResult( claimedId, response );
     }
 
     private AuthenticationResult useCheckAuthentication(AuthenticationResponse response, String serverURL) 
@@ -273,9 +241,9 @@ public class JoidConsumer
         CheckAuthenticationRequest checkReq
             = new CheckAuthenticationRequest(response.toMap(), Mode.CHECK_AUTHENTICATION);
         
-        CheckAuthenticationResponse response2 = (CheckAuthenticationResponse) Util.send(checkReq, serverURL);
+        CheckAuthenticationResponse response2 = (CheckAuthenticationResponse) Util.send( transport, checkReq, serverURL );
         // @TODO: verify the invalidate_handle in response2 is the same as in response
-        removeInvalidHandle(response.getInvalidateHandle());
+        removeInvalidHandle(serverURL, response.getInvalidateHandle());
         if (!response2.isValid()) {
             throw new AuthenticationException("Signature invalid, identity denied.");
         }
@@ -305,14 +273,14 @@ public class JoidConsumer
      * If openid.invalidate_handle was received, this will remove it from our
      * cache so it won't be used again.
      *
+     * @param serverURL
      * @param invalidateHandle
      */
-    private void removeInvalidHandle( String invalidateHandle )
+    private void removeInvalidHandle( String serverURL, String invalidateHandle )
     {
-        String idServer = ( String ) handleToIdServer.remove( invalidateHandle );
-        if ( idServer != null )
+        if ( invalidateHandle != null )
         {
-            propSingleton.remove( idServer );
+            associations.remove( serverURL, invalidateHandle );
         }
     }
 
@@ -3,6 +3,7 @@ package org.verisign.joid.consumer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.verisign.joid.MessageParser;
 import org.verisign.joid.OpenIdRuntimeException;
 import org.verisign.joid.util.UrlUtils;
 
@@ -17,6 +18,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -97,12 +99,12 @@ public class OpenIdFilter implements Filter
     {
         // basically just check for openId parameters
         HttpServletRequest request = ( HttpServletRequest ) servletRequest;
-        if ( servletRequest.getParameter( OPENID_IDENTITY ) != null && !ignored( request ) )
+        Map<String, String> parameters = ignored( request ) ? null : toParameterMap( request );
+        if ( parameters != null && parameters.get( OPENID_IDENTITY ) != null )
         {
             try
             {
-                @SuppressWarnings("unchecked")
-                AuthenticationResult result = joid.authenticate(convertToStringValueMap(servletRequest.getParameterMap()), 
+                AuthenticationResult result = joid.authenticate( parameters,
                                                                 UrlUtils.getBaseUrl((HttpServletRequest)servletRequest));
                 String identity = result.getIdentity();
                 if ( identity != null )
@@ -162,6 +164,38 @@ public class OpenIdFilter implements Filter
     }
 
 
+    /**
+     * Returns the request parameters, parsing the query string directly for
+     * GET requests and leaving form posts, and queries the parser rejects,
+     * to the container. Empty values are "" either way.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> toParameterMap( HttpServletRequest request )
+        throws UnsupportedEncodingException
+    {
+        if ( "GET".equals( request.getMethod() ) )
+        {
+            try
+            {
+                Map<String, String> map = MessageParser.urlEncodedToMap( request.getQueryString() );
+                for ( Map.Entry<String, String> e : map.entrySet() )
+                {
+                    if ( e.getValue() == null )
+                    {
+                        e.setValue( "" );
+                    }
+                }
+                return map;
+            }
+            catch ( IllegalArgumentException e )
+            {
+                log.debug( "Could not decode query, using the container's parameters", e );
+            }
+        }
+        return convertToStringValueMap( request.getParameterMap() );
+    }
+
+
     private Map<String, String> convertToStringValueMap( Map<String, String[]> parameterMap )
     {
         Map<String,String> ret = new HashMap<String, String>();
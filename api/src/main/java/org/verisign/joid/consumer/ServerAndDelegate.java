@@ -10,6 +10,7 @@ public class ServerAndDelegate
 {
     private String server;
     private String delegate;
+    private long maxAge = -1;
 
 
     public String getServer()
@@ -36,6 +37,33 @@ public class ServerAndDelegate
     }
 
 
+    /**
+     * Returns how long the discovered documents may be cached, as told by
+     * their HTTP cache headers.
+     *
+     * @return the lifetime in seconds, or -1 if the headers did not say.
+     */
+    public long getMaxAge()
+    {
+        return maxAge;
+    }
+
+
+    /**
+     * Lowers the cache lifetime to the given one if it is shorter. Negative
+     * values are ignored.
+     *
+     * @param maxAge a lifetime in seconds.
+     */
+    void restrictMaxAge( long maxAge )
+    {
+        if ( maxAge >= 0 && ( this.maxAge < 0 || maxAge < this.maxAge ) )
+        {
+            this.maxAge = maxAge;
+        }
+    }
+
+
     public String toString()
     {
         return "ServerAndDelegate[server=" + server + ", delegate=" + delegate + "]";
@@ -0,0 +1,42 @@
+package org.verisign.joid.consumer;
+
+
+import java.io.IOException;
+
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Request;
+import org.verisign.joid.Response;
+
+
+/**
+ * Carries the HTTP traffic of a relying party: direct requests to OpenID
+ * servers and the fetches made during discovery. Implementations must be
+ * safe for use by concurrent threads.
+ *
+ * @see HttpClientTransport
+ */
+public interface Transport
+{
+    /**
+     * Sends a direct request to an OpenID server as a form-encoded POST and
+     * parses the key-value form response.
+     *
+     * @param req the request to send.
+     * @param dest the server endpoint URL.
+     * @return the parsed response.
+     * @throws IOException if the server cannot be reached.
+     * @throws OpenIdException if the response is not a known OpenID response.
+     */
+    Response send( Request req, String dest ) throws IOException, OpenIdException;
+
+
+    /**
+     * Fetches a document with a GET, following redirects. The caller must
+     * {@link TransportResponse#release() release} the result.
+     *
+     * @param url the document URL.
+     * @return the response, with its body not yet read.
+     * @throws IOException if the document cannot be fetched.
+     */
+    TransportResponse get( String url ) throws IOException;
+}
@@ -0,0 +1,39 @@
+package org.verisign.joid.consumer;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * A response fetched through a {@link Transport}. Its body is streamed from
+ * the connection, which is held until {@link #release()} is called.
+ */
+public interface TransportResponse
+{
+    /**
+     * @return the HTTP status code.
+     */
+    int getStatus();
+
+
+    /**
+     * @param name the header name, matched case-insensitively.
+     * @return the value of the first header with this name, or null.
+     */
+    String getHeader( String name );
+
+
+    /**
+     * @return the response body, or null if there is none.
+     * @throws IOException if the body cannot be read.
+     */
+    InputStream getBody() throws IOException;
+
+
+    /**
+     * Returns the connection to its transport. The body cannot be read
+     * afterwards.
+     */
+    void release();
+}
@@ -1,56 +1,79 @@
 package org.verisign.joid.consumer;
 
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import org.verisign.joid.OpenIdException;
 import org.verisign.joid.Request;
 import org.verisign.joid.Response;
-import org.verisign.joid.ResponseFactory;
+import org.verisign.joid.metrics.Instrumentation;
 
 
 public class Util
 {
+    private static volatile Transport transport = new HttpClientTransport();
+
+
+    /**
+     * Sends a direct request to an OpenID server through the default
+     * transport.
+     *
+     * @param req the request to send.
+     * @param dest the server endpoint URL.
+     * @return the parsed response.
+     * @throws IOException if the server cannot be reached.
+     * @throws OpenIdException if the response is not a known OpenID response.
+     */
     public static Response send( Request req, String dest )
         throws IOException, OpenIdException
     {
-        String toSend = req.toUrlString();
-        StringBuffer b = new StringBuffer();
+        return send( transport, req, dest );
+    }
+
 
-        BufferedReader in = null;
+    /**
+     * Sends a direct request through a transport, timing it under
+     * "consumer.send." followed by the mode of the request.
+     */
+    static Response send( Transport transport, Request req, String dest )
+        throws IOException, OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
         try
         {
-            // TODO: See reply/patch of Sergey: http://groups.google.com/group/joid-dev/browse_thread/thread/962cf46501ea660d
-
-            URL url = new URL( dest + "?" + toSend );
-            HttpURLConnection.setFollowRedirects( true );
-            HttpURLConnection connection = ( HttpURLConnection ) url.openConnection();
-
-            in = new BufferedReader( new InputStreamReader( connection
-                              .getInputStream() ) );
-            String str;
-            int lines = 0;
-            while ( ( str = in.readLine() ) != null )
-            {
-                b.append( str );
-                b.append( '\n' );
-                lines += 1;
-            }
-            if ( lines == 1 )
-            {
-                // query string
-                b.deleteCharAt( b.length() - 1 );
-            }
+            Response resp = transport.send( req, dest );
+            ok = true;
+            return resp;
         }
         finally
         {
-            if ( in != null )
-                in.close();
+            Instrumentation.getMetrics().recordTime( "consumer.send." + req.getMode(),
+                System.nanoTime() - start, ok );
         }
-        return ResponseFactory.parse( b.toString() );
     }
 
+
+    /**
+     * @return the transport used by {@link #send(Request, String)} and by
+     *  discoverers created without one.
+     */
+    public static Transport getTransport()
+    {
+        return transport;
+    }
+
+
+    /**
+     * Replaces the default transport. The previous one is not shut down.
+     *
+     * @param transport the transport to use.
+     */
+    public static void setTransport( Transport transport )
+    {
+        if ( transport == null )
+        {
+            throw new IllegalArgumentException( "transport must not be null" );
+        }
+        Util.transport = transport;
+    }
 }
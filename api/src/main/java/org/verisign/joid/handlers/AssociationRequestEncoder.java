@@ -19,11 +19,6 @@
  */
 package org.verisign.joid.handlers;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.verisign.joid.AssociationRequest;
 import org.verisign.joid.OpenIdConstants;
 import org.verisign.joid.OpenIdException;
@@ -36,59 +31,13 @@ import org.verisign.joid.OpenIdException;
  */
 public final class AssociationRequestEncoder extends MessageEncoder<AssociationRequest>
 {
-    private final static Logger LOG = LoggerFactory.getLogger( AssociationRequestEncoder.class );
-    
-    
-    public final StringBuilder encode( AssociationRequest message, EncodingMode mode, StringBuilder sb ) throws OpenIdException
+    public final void encode( AssociationRequest message, EncoderContext context ) throws OpenIdException
     {
-        if ( sb == null )
-        {
-            sb = new StringBuilder();
-        }
-        else 
-        {
-            if ( sb.charAt( sb.length() - 1 ) != mode.getNewLine() )
-            {
-                sb.append( mode.getNewLine() );
-            }
-        }
-        
-        super.encode( message, mode, sb );
-        
-        // append the session type
-        sb.append( OpenIdConstants.OPENID_SESSION_TYPE );
-        sb.append( mode.getKvDelim() );
-        sb.append( message.getSessionType().toString() );        
-        sb.append( mode.getNewLine() );
-
-        // append the association type
-        sb.append( OpenIdConstants.OPENID_ASSOCIATION_TYPE );
-        sb.append( mode.getKvDelim() );
-        sb.append( message.getAssociationType().toString() );        
-        sb.append( mode.getNewLine() );
-
-        // append the consumer's DH public key as a string
-        sb.append( OpenIdConstants.OPENID_DH_CONSUMER_PUBLIC );
-        sb.append( mode.getKvDelim() );
-        if ( mode == EncodingMode.URL_STRING )
-        {
-            sb.append( message.getDhConsumerPublicString() );        
-        }
-        else
-        {
-            try
-            {
-                sb.append( URLEncoder.encode( message.getDhConsumerPublicString(), "UTF-8" ) );
-            }
-            catch ( UnsupportedEncodingException e )
-            {
-                String msg = "Failed to URL encode the " + OpenIdConstants.OPENID_DH_CONSUMER_PUBLIC
-                    + " key's value of '" + message.getDhConsumerPublicString() + "'";
-                LOG.error( msg, e );
-                throw new OpenIdException( msg, e );
-            }
-        }
+        super.encode( message, context );
         
-        return sb;
+        // append the session type, association type and the consumer's DH public key
+        context.append( OpenIdConstants.OPENID_SESSION_TYPE, message.getSessionType().toString() );
+        context.append( OpenIdConstants.OPENID_ASSOCIATION_TYPE, message.getAssociationType().toString() );
+        context.append( OpenIdConstants.OPENID_DH_CONSUMER_PUBLIC, message.getDhConsumerPublicString() );
     }
 }
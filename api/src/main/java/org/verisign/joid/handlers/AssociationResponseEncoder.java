@@ -0,0 +1,77 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.handlers;
+
+import org.verisign.joid.AssociationResponse;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.OpenIdConstants;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Response;
+import org.verisign.joid.SessionType;
+
+
+/**
+ * An encoder for AssociationResponses, including association errors. These
+ * are direct responses, so their keys carry no <code>openid.</code> prefix.
+ */
+public final class AssociationResponseEncoder extends MessageEncoder<AssociationResponse>
+{
+    public final void encode( AssociationResponse message, EncoderContext context ) throws OpenIdException
+    {
+        if ( message.getMode() != null )
+        {
+            context.append( OpenIdConstants.OPENID_MODE, message.getMode().getValue() );
+        }
+        if ( message.getNamespace() != null )
+        {
+            context.append( AssociationResponse.OPENID_ASSOC_NS, message.getNamespace() );
+        }
+
+        if ( message.getErrorCode() != null )
+        {
+            context.append( AssociationResponse.OPENID_ERROR_CODE, message.getErrorCode() );
+            if ( message.getError() != null )
+            {
+                context.append( Response.OPENID_ERROR, message.getError() );
+            }
+            return;
+        }
+
+        // do not send session type for 1.1 responses if it is no-encryption
+        if ( message.isVersion2() || SessionType.NO_ENCRYPTION != message.getSessionType() )
+        {
+            context.append( AssociationResponse.OPENID_SESSION_TYPE, message.getSessionType().toString() );
+        }
+        context.append( AssociationResponse.OPENID_ASSOCIATION_HANDLE, message.getAssociationHandle() );
+        context.append( AssociationResponse.OPENID_ASSOCIATION_TYPE, message.getAssociationType().toString() );
+        context.append( AssociationResponse.OPENID_EXPIRES_IN, Integer.toString( message.getExpiresIn() ) );
+        if ( message.getMacKey() != null )
+        {
+            context.append( AssociationResponse.OPENID_MAC_KEY, Crypto.convertToString( message.getMacKey() ) );
+        }
+        else if ( message.getEncryptedMacKey() != null )
+        {
+            context.append( AssociationResponse.OPENID_DH_SERVER_PUBLIC,
+                Crypto.convertToString( message.getDhServerPublic() ) );
+            context.append( AssociationResponse.OPENID_ENC_MAC_KEY,
+                Crypto.convertToString( message.getEncryptedMacKey() ) );
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.handlers;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.verisign.joid.AuthenticationRequest;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * An encoder for AuthenticationRequests (<code>checkid_setup</code> and
+ * <code>checkid_immediate</code>), extensions included.
+ */
+public final class AuthenticationRequestEncoder extends MessageEncoder<AuthenticationRequest>
+{
+    public final void encode( AuthenticationRequest message, EncoderContext context ) throws OpenIdException
+    {
+        super.encode( message, context );
+
+        if ( message.getClaimedIdentity() != null )
+        {
+            context.append( AuthenticationRequest.OPENID_CLAIMED_ID, message.getClaimedIdentity() );
+        }
+        context.append( AuthenticationRequest.OPENID_IDENTITY, message.getIdentity() );
+        if ( message.getHandle() != null )
+        {
+            context.append( AuthenticationRequest.OPENID_ASSOC_HANDLE, message.getHandle() );
+        }
+        context.append( AuthenticationRequest.OPENID_RETURN_TO, message.getReturnTo() );
+        context.append( AuthenticationRequest.OPENID_TRUST_ROOT, message.getTrustRoot() );
+        context.append( AuthenticationRequest.OPENID_REALM, message.getTrustRoot() );
+
+        Map<String,String> extensions = message.getExtensions();
+        if ( extensions != null )
+        {
+            for ( Iterator<Map.Entry<String, String>> iter = extensions.entrySet().iterator(); iter.hasNext(); )
+            {
+                Map.Entry<String,String> mapEntry = iter.next();
+                if ( mapEntry.getValue() != null )
+                {
+                    // all keys start "openid." in the set
+                    context.append( "openid." + mapEntry.getKey(), mapEntry.getValue() );
+                }
+            }
+        }
+    }
+}
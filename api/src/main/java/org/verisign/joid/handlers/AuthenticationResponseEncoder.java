@@ -0,0 +1,118 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.handlers;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.verisign.joid.AuthenticationRequest;
+import org.verisign.joid.AuthenticationResponse;
+import org.verisign.joid.Mode;
+import org.verisign.joid.OpenIdConstants;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.SimpleRegistration;
+
+
+/**
+ * An encoder for AuthenticationResponses: positive assertions with their
+ * simple registration and extension values, and indirect error responses.
+ */
+public final class AuthenticationResponseEncoder extends MessageEncoder<AuthenticationResponse>
+{
+    private static final String SREG_PREFIX = SimpleRegistration.OPENID_SREG + ".";
+    private static final String NS_SREG = "ns.sreg";
+
+
+    public final void encode( AuthenticationResponse message, EncoderContext context ) throws OpenIdException
+    {
+        super.encode( message, context );
+        encodeFields( message, context );
+    }
+
+
+    /**
+     * Writes everything but the mode and namespace, which a check
+     * authentication request replaces with its own.
+     */
+    void encodeFields( AuthenticationResponse message, EncoderContext context ) throws OpenIdException
+    {
+        if ( Mode.ERROR == message.getMode() )
+        {
+            if ( message.getError() != null )
+            {
+                context.append( AuthenticationResponse.OPENID_ERROR, message.getError() );
+            }
+            return;
+        }
+
+        if ( message.isVersion2() )
+        {
+            context.append( AuthenticationResponse.OPENID_OP_ENDPOINT, message.getUrlEndPoint() );
+        }
+        context.append( AuthenticationResponse.OPENID_IDENTITY, message.getIdentity() );
+        context.append( AuthenticationResponse.OPENID_RETURN_TO, message.getReturnTo() );
+        context.append( AuthenticationResponse.OPENID_NONCE, message.getNonce() );
+        if ( message.getClaimedId() != null )
+        {
+            context.append( AuthenticationRequest.OPENID_CLAIMED_ID, message.getClaimedId() );
+        }
+        if ( message.getInvalidateHandle() != null )
+        {
+            context.append( AuthenticationResponse.OPENID_INVALIDATE_HANDLE, message.getInvalidateHandle() );
+        }
+        context.append( AuthenticationResponse.OPENID_ASSOCIATION_HANDLE, message.getAssociationHandle() );
+        if ( message.getSignedList() != null )
+        {
+            context.append( AuthenticationResponse.OPENID_SIGNED, message.getSignedList() );
+        }
+        context.append( AuthenticationResponse.OPENID_SIG, message.getSignature() );
+
+        boolean sregNamespaceWritten = false;
+        SimpleRegistration sreg = message.getSreg();
+        if ( sreg != null )
+        {
+            Map<String,String> supplied = sreg.getSuppliedValues();
+            for ( Iterator<Map.Entry<String, String>> iter = supplied.entrySet().iterator(); iter.hasNext(); )
+            {
+                Map.Entry<String,String> mapEntry = iter.next();
+                context.append( SREG_PREFIX + mapEntry.getKey(), mapEntry.getValue() );
+            }
+            if ( !supplied.isEmpty() && message.isVersion2() )
+            {
+                context.append( OpenIdConstants.OPENID_NS + ".sreg", sreg.getNamespace() );
+                sregNamespaceWritten = true;
+            }
+        }
+
+        Map<String,String> extensions = message.getExtensions();
+        if ( extensions != null )
+        {
+            for ( Iterator<Map.Entry<String, String>> iter = extensions.entrySet().iterator(); iter.hasNext(); )
+            {
+                Map.Entry<String,String> mapEntry = iter.next();
+                if ( sregNamespaceWritten && NS_SREG.equals( mapEntry.getKey() ) )
+                {
+                    continue;
+                }
+                context.append( AuthenticationResponse.OPENID_PREFIX + mapEntry.getKey(), mapEntry.getValue() );
+            }
+        }
+    }
+}
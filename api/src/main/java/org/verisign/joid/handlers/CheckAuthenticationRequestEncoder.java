@@ -0,0 +1,52 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.handlers;
+
+import org.verisign.joid.AuthenticationResponse;
+import org.verisign.joid.CheckAuthenticationRequest;
+import org.verisign.joid.OpenIdConstants;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * An encoder for CheckAuthenticationRequests. These repeat every field of
+ * the authentication response being verified, with the mode replaced by
+ * <code>check_authentication</code>.
+ */
+public final class CheckAuthenticationRequestEncoder extends MessageEncoder<CheckAuthenticationRequest>
+{
+    private final AuthenticationResponseEncoder responseEncoder = new AuthenticationResponseEncoder();
+
+
+    public final void encode( CheckAuthenticationRequest message, EncoderContext context ) throws OpenIdException
+    {
+        AuthenticationResponse ar = message.getAuthenticationResponse();
+
+        // the mode and namespace of the request take precedence
+        context.append( OpenIdConstants.OPENID_MODE, message.getMode().getValue() );
+        String ns = message.getNamespace() != null ? message.getNamespace() : ar.getNamespace();
+        if ( ns != null )
+        {
+            context.append( OpenIdConstants.OPENID_NS, ns );
+        }
+
+        responseEncoder.encodeFields( ar, context );
+    }
+}
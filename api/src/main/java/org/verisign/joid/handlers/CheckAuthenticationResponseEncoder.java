@@ -0,0 +1,44 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.handlers;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.verisign.joid.CheckAuthenticationResponse;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * An encoder for CheckAuthenticationResponses. The response keeps its
+ * direct-response pairs as built, so they are written out as they are.
+ */
+public final class CheckAuthenticationResponseEncoder extends MessageEncoder<CheckAuthenticationResponse>
+{
+    public final void encode( CheckAuthenticationResponse message, EncoderContext context ) throws OpenIdException
+    {
+        Map<String,String> map = message.toMap();
+        for ( Iterator<Map.Entry<String, String>> iter = map.entrySet().iterator(); iter.hasNext(); )
+        {
+            Map.Entry<String,String> mapEntry = iter.next();
+            context.append( mapEntry.getKey(), mapEntry.getValue() );
+        }
+    }
+}
@@ -31,4 +31,14 @@ import org.verisign.joid.OpenIdException;
 public interface Encoder<E extends Message>
 {
     StringBuilder encode( E message, EncodingMode mode, StringBuilder sb  ) throws OpenIdException;
+
+
+    /**
+     * Writes the message's key value pairs through the given context.
+     *
+     * @param message the message to encode.
+     * @param context the context to write the pairs to.
+     * @throws OpenIdException if the message cannot be encoded.
+     */
+    void encode( E message, EncoderContext context ) throws OpenIdException;
 }
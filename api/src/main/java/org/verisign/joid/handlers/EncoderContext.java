@@ -0,0 +1,172 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.handlers;
+
+
+import java.io.IOException;
+import java.net.URLEncoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.verisign.joid.OpenIdConstants;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * Writes the key value pairs of an encoded message straight into an
+ * {@link Appendable}, such as a {@link StringBuilder} or a servlet's
+ * {@link java.io.Writer}. Pairs are separated according to the
+ * {@link EncodingMode}; in URL mode keys and values are only run through
+ * {@link URLEncoder} if they contain characters that need escaping, which
+ * the constant OpenID keys never do.
+ */
+public class EncoderContext
+{
+    private static final Logger LOG = LoggerFactory.getLogger( EncoderContext.class );
+
+    private final Appendable out;
+    private final EncodingMode mode;
+    private boolean first = true;
+
+
+    public EncoderContext( Appendable out, EncodingMode mode )
+    {
+        this.out = out;
+        this.mode = mode;
+    }
+
+
+    public EncodingMode getMode()
+    {
+        return mode;
+    }
+
+
+    public Appendable getOut()
+    {
+        return out;
+    }
+
+
+    /**
+     * Appends a key value pair, preceded by the pair delimiter unless it
+     * is the first pair written through this context.
+     *
+     * @param key the unencoded key.
+     * @param value the unencoded value.
+     * @return this context.
+     * @throws OpenIdException if the value is null in URL mode, or if the
+     * underlying {@link Appendable} fails.
+     */
+    public EncoderContext append( String key, String value ) throws OpenIdException
+    {
+        if ( value == null && mode == EncodingMode.URL_STRING )
+        {
+            StringBuilder msg = new StringBuilder( "Value for key '" );
+            msg.append( key ).append( "' is null in message" );
+            LOG.error( msg.toString() );
+            throw new OpenIdException( msg.toString() );
+        }
+
+        try
+        {
+            if ( !first )
+            {
+                out.append( mode.getNewLine() );
+            }
+            first = false;
+
+            if ( mode == EncodingMode.POST_STRING )
+            {
+                out.append( key ).append( mode.getKvDelim() ).append( String.valueOf( value ) );
+            }
+            else
+            {
+                appendEncoded( key );
+                out.append( mode.getKvDelim() );
+                appendEncoded( value );
+            }
+        }
+        catch ( IOException e )
+        {
+            String msg = "Failed to write the value of key '" + key + "'";
+            LOG.error( msg, e );
+            throw new OpenIdException( msg, e );
+        }
+        return this;
+    }
+
+
+    /**
+     * Finishes the encoding. In {@link EncodingMode#POST_STRING} mode this
+     * terminates the last pair with a newline.
+     *
+     * @throws OpenIdException if the underlying {@link Appendable} fails.
+     */
+    public void end() throws OpenIdException
+    {
+        if ( !first && mode == EncodingMode.POST_STRING )
+        {
+            try
+            {
+                out.append( mode.getNewLine() );
+            }
+            catch ( IOException e )
+            {
+                throw new OpenIdException( "Failed to terminate the message", e );
+            }
+        }
+    }
+
+
+    private void appendEncoded( String s ) throws IOException
+    {
+        if ( OpenIdConstants.OPENID_20_NAMESPACE.equals( s ) )
+        {
+            out.append( OpenIdConstants.ENCODED_NS_VERSION2 );
+        }
+        else if ( isUrlSafe( s ) )
+        {
+            out.append( s );
+        }
+        else
+        {
+            out.append( URLEncoder.encode( s, "UTF-8" ) );
+        }
+    }
+
+
+    /**
+     * Returns whether {@link URLEncoder} would leave the string unchanged.
+     */
+    static boolean isUrlSafe( String s )
+    {
+        for ( int i = 0; i < s.length(); i++ )
+        {
+            char c = s.charAt( i );
+            if ( !( ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' )
+                || c == '.' || c == '-' || c == '*' || c == '_' ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.handlers;
+
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.AssociationResponse;
+import org.verisign.joid.AuthenticationRequest;
+import org.verisign.joid.AuthenticationResponse;
+import org.verisign.joid.CheckAuthenticationRequest;
+import org.verisign.joid.CheckAuthenticationResponse;
+import org.verisign.joid.Message;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * Looks up the {@link Encoder} for a message and writes the message out in
+ * the requested {@link EncodingMode}. The encoders hold no state, so one
+ * instance of each is shared.
+ */
+public final class Encoders
+{
+    private static final AssociationRequestEncoder ASSOCIATION_REQUEST = new AssociationRequestEncoder();
+    private static final AssociationResponseEncoder ASSOCIATION_RESPONSE = new AssociationResponseEncoder();
+    private static final AuthenticationRequestEncoder AUTHENTICATION_REQUEST = new AuthenticationRequestEncoder();
+    private static final AuthenticationResponseEncoder AUTHENTICATION_RESPONSE = new AuthenticationResponseEncoder();
+    private static final CheckAuthenticationRequestEncoder CHECK_AUTHENTICATION_REQUEST =
+        new CheckAuthenticationRequestEncoder();
+    private static final CheckAuthenticationResponseEncoder CHECK_AUTHENTICATION_RESPONSE =
+        new CheckAuthenticationResponseEncoder();
+    private static final MessageEncoder<Message> MESSAGE = new MessageEncoder<Message>();
+
+
+    private Encoders()
+    {
+    }
+
+
+    /**
+     * Writes a message to the given {@link Appendable}. In
+     * {@link EncodingMode#POST_STRING} mode every pair, the last one
+     * included, is terminated by a newline as the key-value form requires.
+     *
+     * @param message the message to write.
+     * @param mode the encoding to use.
+     * @param out where to write the message to.
+     * @throws OpenIdException if the message cannot be encoded or written.
+     */
+    public static void encode( Message message, EncodingMode mode, Appendable out ) throws OpenIdException
+    {
+        EncoderContext context = new EncoderContext( out, mode );
+        encode( message, context );
+        context.end();
+    }
+
+
+    /**
+     * Encodes a message into a string.
+     *
+     * @param message the message to encode.
+     * @param mode the encoding to use.
+     * @return the encoded message.
+     * @throws OpenIdException if the message cannot be encoded.
+     */
+    public static String toString( Message message, EncodingMode mode ) throws OpenIdException
+    {
+        StringBuilder sb = new StringBuilder( 512 );
+        encode( message, mode, sb );
+        return sb.toString();
+    }
+
+
+    private static void encode( Message message, EncoderContext context ) throws OpenIdException
+    {
+        if ( message instanceof AssociationRequest )
+        {
+            ASSOCIATION_REQUEST.encode( ( AssociationRequest ) message, context );
+        }
+        else if ( message instanceof AssociationResponse )
+        {
+            ASSOCIATION_RESPONSE.encode( ( AssociationResponse ) message, context );
+        }
+        else if ( message instanceof AuthenticationRequest )
+        {
+            AUTHENTICATION_REQUEST.encode( ( AuthenticationRequest ) message, context );
+        }
+        else if ( message instanceof AuthenticationResponse )
+        {
+            AUTHENTICATION_RESPONSE.encode( ( AuthenticationResponse ) message, context );
+        }
+        else if ( message instanceof CheckAuthenticationRequest )
+        {
+            CHECK_AUTHENTICATION_REQUEST.encode( ( CheckAuthenticationRequest ) message, context );
+        }
+        else if ( message instanceof CheckAuthenticationResponse )
+        {
+            CHECK_AUTHENTICATION_RESPONSE.encode( ( CheckAuthenticationResponse ) message, context );
+        }
+        else
+        {
+            MESSAGE.encode( message, context );
+        }
+    }
+}
@@ -20,11 +20,6 @@
 package org.verisign.joid.handlers;
 
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.verisign.joid.Message;
 import org.verisign.joid.OpenIdConstants;
 import org.verisign.joid.OpenIdException;
@@ -39,9 +34,6 @@ import org.verisign.joid.OpenIdException;
  */
 public class MessageEncoder<E extends Message> implements Encoder<E>
 {
-    private static final Logger LOG = LoggerFactory.getLogger( MessageEncoder.class );
-    
-    
     /**
      * {@inheritDoc}
      * @throws OpenIdException 
@@ -52,43 +44,31 @@ public class MessageEncoder<E extends Message> implements Encoder<E>
         {
             sb = new StringBuilder();
         }
-        else 
+        else if ( sb.length() > 0 && sb.charAt( sb.length() - 1 ) != mode.getNewLine() )
         {
-            if ( sb.charAt( sb.length() - 1 ) != mode.getNewLine() )
-            {
-                sb.append( mode.getNewLine() );
-            }
+            sb.append( mode.getNewLine() );
         }
 
+        encode( message, new EncoderContext( sb, mode ) );
+        return sb;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void encode( E message, EncoderContext context ) throws OpenIdException
+    {
         // append the openid.mode key value pair
-        sb.append( OpenIdConstants.OPENID_MODE ).append( mode.getKvDelim() ).append( message.getMode().toString() );        
-        sb.append( mode.getNewLine() );
-        
-        // append the openid.ns key value pair
-        sb.append( OpenIdConstants.OPENID_NS ).append( mode.getKvDelim() );
-        if ( mode == EncodingMode.POST_STRING )
+        if ( message.getMode() != null )
         {
-            sb.append( message.getNamespace() );
+            context.append( OpenIdConstants.OPENID_MODE, message.getMode().getValue() );
         }
-        else
+
+        // append the openid.ns key value pair
+        if ( message.getNamespace() != null )
         {
-            if ( message.isVersion2() )
-            {
-                sb.append( OpenIdConstants.ENCODED_NS_VERSION2 );
-            }
-            else
-            {
-                try
-                {
-                    sb.append( URLEncoder.encode( message.getNamespace(), "UTF-8" ) );
-                }
-                catch ( UnsupportedEncodingException e )
-                {
-                    LOG.error( "This error to decode pre-set URL should never fail.", e );
-                }
-            }
+            context.append( OpenIdConstants.OPENID_NS, message.getNamespace() );
         }
-        
-        return sb;
     }
 }
@@ -0,0 +1,50 @@
+package org.verisign.joid.metrics;
+
+
+/**
+ * Holds the metrics the library records into.
+ *
+ * Timed operations follow the same pattern:
+ *
+ * <pre>
+ * long start = System.nanoTime();
+ * boolean ok = false;
+ * try
+ * {
+ *     ...
+ *     ok = true;
+ * }
+ * finally
+ * {
+ *     Instrumentation.getMetrics().recordTime( "store.findNonce", System.nanoTime() - start, ok );
+ * }
+ * </pre>
+ */
+public class Instrumentation
+{
+    private static volatile Metrics metrics = new NoopMetrics();
+
+
+    /**
+     * @return the metrics to record into.
+     */
+    public static Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+
+    /**
+     * Replaces the metrics recorded into.
+     *
+     * @param metrics the metrics to use.
+     */
+    public static void setMetrics( Metrics metrics )
+    {
+        if ( metrics == null )
+        {
+            throw new IllegalArgumentException( "metrics must not be null" );
+        }
+        Instrumentation.metrics = metrics;
+    }
+}
@@ -0,0 +1,30 @@
+package org.verisign.joid.metrics;
+
+
+/**
+ * Receives the counters and timings recorded by the library. Set an
+ * implementation with {@link Instrumentation#setMetrics(Metrics)}; the
+ * default one drops everything.
+ *
+ * Implementations are called on the request threads and must be thread
+ * safe and cheap.
+ */
+public interface Metrics
+{
+    /**
+     * Counts an event.
+     *
+     * @param name the name of the counter.
+     */
+    void increment( String name );
+
+
+    /**
+     * Records the time an operation took.
+     *
+     * @param name the name of the operation.
+     * @param nanos the time it took, in nanoseconds.
+     * @param success false if the operation failed.
+     */
+    void recordTime( String name, long nanos, boolean success );
+}
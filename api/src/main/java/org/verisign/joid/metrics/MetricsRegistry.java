@@ -0,0 +1,174 @@
+package org.verisign.joid.metrics;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Metrics kept in memory, in counters and {@link Timer}s created on first
+ * use. They can be read through {@link #getReport()}, the metrics servlet
+ * or JMX once the registry is registered.
+ */
+public class MetricsRegistry implements Metrics, MetricsRegistryMBean
+{
+    /** The name the registry is registered under by default */
+    public static final String DEFAULT_OBJECT_NAME = "org.verisign.joid:type=Metrics";
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+
+    public void increment( String name )
+    {
+        AtomicLong counter = counters.get( name );
+        if ( counter == null )
+        {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent( name, created );
+            if ( counter == null )
+            {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+
+    public void recordTime( String name, long nanos, boolean success )
+    {
+        getTimer( name ).record( nanos, success );
+    }
+
+
+    /**
+     * Returns the timer of an operation, creating it if needed.
+     *
+     * @param name the name of the operation.
+     * @return the timer.
+     */
+    public Timer getTimer( String name )
+    {
+        Timer timer = timers.get( name );
+        if ( timer == null )
+        {
+            Timer created = new Timer();
+            timer = timers.putIfAbsent( name, created );
+            if ( timer == null )
+            {
+                timer = created;
+            }
+        }
+        return timer;
+    }
+
+
+    public String[] getNames()
+    {
+        TreeSet<String> names = new TreeSet<String>( counters.keySet() );
+        names.addAll( timers.keySet() );
+        return names.toArray( new String[names.size()] );
+    }
+
+
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder();
+        String[] names = getNames();
+        Arrays.sort( names );
+        for ( int i = 0; i < names.length; i++ )
+        {
+            report.append( names[i] ).append( ' ' );
+            Timer timer = timers.get( names[i] );
+            if ( timer != null )
+            {
+                report.append( timer );
+            }
+            else
+            {
+                report.append( "count=" ).append( counters.get( names[i] ).get() );
+            }
+            report.append( '\n' );
+        }
+        return report.toString();
+    }
+
+
+    public long getCount( String name )
+    {
+        Timer timer = timers.get( name );
+        if ( timer != null )
+        {
+            return timer.getCount();
+        }
+        AtomicLong counter = counters.get( name );
+        return counter == null ? 0 : counter.get();
+    }
+
+
+    public long getPercentile( String name, double fraction )
+    {
+        Timer timer = timers.get( name );
+        return timer == null ? 0 : timer.getPercentile( fraction );
+    }
+
+
+    public void reset()
+    {
+        for ( Map.Entry<String, AtomicLong> e : counters.entrySet() )
+        {
+            e.getValue().set( 0 );
+        }
+        for ( Map.Entry<String, Timer> e : timers.entrySet() )
+        {
+            e.getValue().reset();
+        }
+    }
+
+
+    /**
+     * Registers the registry with the platform MBean server, replacing
+     * whatever was registered under the name, such as the registry of a
+     * previous deployment of the same application.
+     *
+     * @param objectName the name to register it under.
+     * @throws JMException if the registry cannot be registered.
+     */
+    public void register( String objectName ) throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName( objectName );
+        if ( server.isRegistered( name ) )
+        {
+            server.unregisterMBean( name );
+        }
+        server.registerMBean( this, name );
+    }
+
+
+    /**
+     * Unregisters whatever is registered under the name with the platform
+     * MBean server.
+     *
+     * @param objectName the name the registry was registered under.
+     * @throws JMException if the registry cannot be unregistered.
+     */
+    public void unregister( String objectName ) throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName( objectName );
+        if ( server.isRegistered( name ) )
+        {
+            server.unregisterMBean( name );
+        }
+    }
+}
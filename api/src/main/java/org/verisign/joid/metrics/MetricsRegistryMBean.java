@@ -0,0 +1,41 @@
+package org.verisign.joid.metrics;
+
+
+/**
+ * The management interface of {@link MetricsRegistry}.
+ */
+public interface MetricsRegistryMBean
+{
+    /**
+     * @return the names of the counters and timers recorded so far.
+     */
+    String[] getNames();
+
+
+    /**
+     * @return one line per counter and timer.
+     */
+    String getReport();
+
+
+    /**
+     * @param name the name of a counter or timer.
+     * @return the value of the counter, or the number of calls of the timer.
+     */
+    long getCount( String name );
+
+
+    /**
+     * @param name the name of a timer.
+     * @param fraction the share of calls, between 0 and 1.
+     * @return the latency below which that share of calls completed, in
+     *  microseconds.
+     */
+    long getPercentile( String name, double fraction );
+
+
+    /**
+     * Resets every counter and timer.
+     */
+    void reset();
+}
@@ -0,0 +1,17 @@
+package org.verisign.joid.metrics;
+
+
+/**
+ * Metrics dropping everything, used until others are set.
+ */
+public class NoopMetrics implements Metrics
+{
+    public void increment( String name )
+    {
+    }
+
+
+    public void recordTime( String name, long nanos, boolean success )
+    {
+    }
+}
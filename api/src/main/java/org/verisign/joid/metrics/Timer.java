@@ -0,0 +1,165 @@
+package org.verisign.joid.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The count, failures and latency histogram of an operation.
+ *
+ * Latencies are counted in microseconds in log-linear buckets: exact below
+ * 16 microseconds, then eight buckets per power of two, so that a
+ * percentile is within 12.5% of the real value. Recording takes no lock and
+ * allocates nothing.
+ */
+public class Timer
+{
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = LINEAR + ( 64 - 4 ) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+
+    /**
+     * Records a call.
+     *
+     * @param nanos the time it took, in nanoseconds.
+     * @param success false if the call failed.
+     */
+    public void record( long nanos, boolean success )
+    {
+        long micros = Math.max( 0, nanos / 1000 );
+        buckets.incrementAndGet( bucket( micros ) );
+        count.incrementAndGet();
+        if ( !success )
+        {
+            failures.incrementAndGet();
+        }
+        totalMicros.addAndGet( micros );
+        long max;
+        do
+        {
+            max = maxMicros.get();
+        }
+        while ( micros > max && !maxMicros.compareAndSet( max, micros ) );
+    }
+
+
+    /**
+     * @return the number of calls, failed or not.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+
+    /**
+     * @return the number of failed calls.
+     */
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+
+    /**
+     * @return the mean latency in microseconds.
+     */
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : ( double ) totalMicros.get() / n;
+    }
+
+
+    /**
+     * @return the highest latency in microseconds.
+     */
+    public long getMax()
+    {
+        return maxMicros.get();
+    }
+
+
+    /**
+     * Returns the latency below which the given share of calls completed.
+     *
+     * @param fraction the share, between 0 and 1.
+     * @return the latency in microseconds, rounded up to its bucket.
+     */
+    public long getPercentile( double fraction )
+    {
+        long total = count.get();
+        if ( total == 0 )
+        {
+            return 0;
+        }
+        long rank = Math.max( 1, ( long ) Math.ceil( total * fraction ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += buckets.get( i );
+            if ( seen >= rank )
+            {
+                return Math.min( upperBound( i ), maxMicros.get() );
+            }
+        }
+        return maxMicros.get();
+    }
+
+
+    /**
+     * Forgets every call recorded.
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            buckets.set( i, 0 );
+        }
+        count.set( 0 );
+        failures.set( 0 );
+        totalMicros.set( 0 );
+        maxMicros.set( 0 );
+    }
+
+
+    public String toString()
+    {
+        return "count=" + getCount() + " failures=" + getFailures()
+            + " mean=" + Math.round( getMean() ) + "us p50=" + getPercentile( 0.5 )
+            + "us p90=" + getPercentile( 0.9 ) + "us p99=" + getPercentile( 0.99 )
+            + "us max=" + getMax() + "us";
+    }
+
+
+    static int bucket( long micros )
+    {
+        if ( micros < LINEAR )
+        {
+            return ( int ) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( micros );
+        int sub = ( int ) ( micros >>> ( exponent - 3 ) ) & ( SUB_BUCKETS - 1 );
+        return LINEAR + ( exponent - 4 ) * SUB_BUCKETS + sub;
+    }
+
+
+    static long upperBound( int bucket )
+    {
+        if ( bucket < LINEAR )
+        {
+            return bucket;
+        }
+        int exponent = ( bucket - LINEAR ) / SUB_BUCKETS + 4;
+        int sub = ( bucket - LINEAR ) % SUB_BUCKETS;
+        return ( ( long ) ( SUB_BUCKETS + sub + 1 ) << ( exponent - 3 ) ) - 1;
+    }
+}
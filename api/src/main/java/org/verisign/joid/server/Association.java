@@ -5,12 +5,14 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.verisign.joid.AssociationType;
 import org.verisign.joid.Crypto;
+import org.verisign.joid.OpenIdException;
 import org.verisign.joid.SessionType;
 
 import java.util.Date;
 import java.util.Calendar;
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import javax.crypto.SecretKey;
 
 
 /**
@@ -22,17 +24,18 @@ public class Association implements org.verisign.joid.IAssociation
     private final static Log log = LogFactory.getLog( Association.class );
     private Long id;
     private String handle;
-    private String secret;
+    private byte[] macKey;
     private Date issuedDate;
     private Long lifetime;
     private AssociationType at = AssociationType.HMAC_SHA1;
     private boolean shared;
+    private byte[] encryptedMacKey;
+    private BigInteger publicKey;
 
     // Not in db
     private String error;
     private SessionType sessionType;
-    private byte[] encryptedMacKey;
-    private BigInteger publicKey;
+    private volatile SecretKey signingKey;
 
 
     public boolean isSuccessful()
@@ -56,17 +59,22 @@ public class Association implements org.verisign.joid.IAssociation
     }
 
 
-    /** Hibernate mapping. */
+    /**
+     * @return the MAC key encoded in base64.
+     */
     public String getSecret()
     {
-        return secret;
+        return macKey == null ? null : Crypto.convertToString( macKey );
     }
 
 
-    /** Hibernate mapping. */
+    /**
+     * @param secret the MAC key encoded in base64.
+     */
     public void setSecret( String secret )
     {
-        this.secret = secret;
+        this.macKey = secret == null ? null : Crypto.convertToBytes( secret );
+        this.signingKey = null;
     }
 
 
@@ -124,6 +132,29 @@ public class Association implements org.verisign.joid.IAssociation
     }
 
 
+    /**
+     * Hibernate mapping. The expiry date is stored so that expired 
+     * associations can be found through an index.
+     *
+     * @return the issued date plus the lifetime, or null if either is unset.
+     */
+    public Date getExpiresAt()
+    {
+        if ( issuedDate == null || lifetime == null )
+        {
+            return null;
+        }
+        return new Date( issuedDate.getTime() + lifetime.longValue() * 1000 );
+    }
+
+
+    /** Hibernate mapping. The expiry date follows from the issued date and lifetime. */
+    @SuppressWarnings("unused")
+    private void setExpiresAt( Date expiresAt )
+    {
+    }
+
+
     public AssociationType getAssociationType()
     {
         return at;
@@ -133,6 +164,7 @@ public class Association implements org.verisign.joid.IAssociation
     public void setAssociationType( AssociationType s )
     {
         this.at = s;
+        this.signingKey = null;
     }
 
 
@@ -143,7 +175,7 @@ public class Association implements org.verisign.joid.IAssociation
      */
     public String toString()
     {
-        String s = "[Association secret=" + secret;
+        String s = "[Association secret=" + getSecret();
         if ( encryptedMacKey != null )
         {
             s += ", encrypted secret=" + Crypto.convertToString( encryptedMacKey );
@@ -184,14 +216,27 @@ public class Association implements org.verisign.joid.IAssociation
     /** Hibernate mapping. */
     public void setMacKey( byte[] macKey )
     {
-        this.secret = Crypto.convertToString( macKey );
+        this.macKey = macKey;
+        this.signingKey = null;
     }
 
 
     /** Hibernate mapping. */
     public byte[] getMacKey()
     {
-        return Crypto.convertToBytes( secret );
+        return macKey;
+    }
+
+
+    public SecretKey getSigningKey() throws OpenIdException
+    {
+        SecretKey k = signingKey;
+        if ( k == null )
+        {
+            k = Crypto.createMacKey( at, getMacKey() );
+            signingKey = k;
+        }
+        return k;
     }
 
 
@@ -219,6 +264,22 @@ public class Association implements org.verisign.joid.IAssociation
     }
 
 
+    /** Hibernate mapping. */
+    @SuppressWarnings("unused")
+    private byte[] getPublicDhKeyBytes()
+    {
+        return publicKey == null ? null : publicKey.toByteArray();
+    }
+
+
+    /** Hibernate mapping. */
+    @SuppressWarnings("unused")
+    private void setPublicDhKeyBytes( byte[] b )
+    {
+        publicKey = b == null ? null : new BigInteger( b );
+    }
+
+
     public boolean hasExpired()
     {
         Calendar now = Calendar.getInstance();
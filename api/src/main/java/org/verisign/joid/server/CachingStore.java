@@ -0,0 +1,311 @@
+package org.verisign.joid.server;
+
+
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.INonce;
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.IReapableStore;
+import org.verisign.joid.IStore;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.util.StoreUtils;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A store keeping associations of another store in memory. Associations are
+ * read through and written through: a handle missing from the cache is
+ * looked up in the backing store and remembered, and saved associations are
+ * cached as they are written. Nonces are never cached since replay checks
+ * must see every write.
+ *
+ * An association is cached until it expires, but at most for the time to
+ * live set with {@link #setTimeToLive(long)}, which bounds how long a node
+ * keeps using an association deleted through another node. When the cache
+ * is full, expired entries are dropped first and then arbitrary ones.
+ *
+ * A deleted handle is marked for the time to live, so that a lookup that
+ * read the association from the backing store before the delete went
+ * through does not cache it again.
+ */
+public class CachingStore implements IReapableStore, INonceClaimingStore
+{
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_TIME_TO_LIVE = 300;
+
+    private final IStore store;
+    private final ConcurrentMap<String, Entry> associations = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Long> deleted = new ConcurrentHashMap<String, Long>();
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+
+    /**
+     * Creates a cache in front of the given store.
+     *
+     * @param store the backing store.
+     */
+    public CachingStore( IStore store )
+    {
+        this.store = store;
+    }
+
+
+    public IAssociation generateAssociation( AssociationRequest req, Crypto crypto )
+        throws OpenIdException
+    {
+        return store.generateAssociation( req, crypto );
+    }
+
+
+    public void saveAssociation( IAssociation a ) throws OpenIdException
+    {
+        deleted.remove( a.getHandle() );
+        store.saveAssociation( a );
+        cache( a );
+    }
+
+
+    public void deleteAssociation( IAssociation a ) throws OpenIdException
+    {
+        // marked before the entry is dropped, see findAssociation
+        deleted.put( a.getHandle(), Long.valueOf( System.currentTimeMillis() + timeToLive * 1000 ) );
+        associations.remove( a.getHandle() );
+        store.deleteAssociation( a );
+    }
+
+
+    public IAssociation findAssociation( String handle ) throws OpenIdException
+    {
+        if ( handle == null )
+        {
+            return null;
+        }
+        Entry entry = associations.get( handle );
+        if ( entry != null )
+        {
+            if ( !entry.hasExpired() )
+            {
+                return entry.association;
+            }
+            associations.remove( handle, entry );
+        }
+
+        IAssociation a = store.findAssociation( handle );
+        if ( a != null && !isDeleted( handle ) )
+        {
+            Entry filled = cache( a );
+            // a delete marking the handle after the check has either dropped
+            // the entry already or is seen here
+            if ( filled != null && isDeleted( handle ) )
+            {
+                associations.remove( handle, filled );
+            }
+        }
+        return a;
+    }
+
+
+    public INonce findNonce( String nonce ) throws OpenIdException
+    {
+        return store.findNonce( nonce );
+    }
+
+
+    public void saveNonce( INonce n ) throws OpenIdException
+    {
+        store.saveNonce( n );
+    }
+
+
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        return StoreUtils.claimNonce( store, nonce );
+    }
+
+
+    public INonce generateNonce( String nonce ) throws OpenIdException
+    {
+        return store.generateNonce( nonce );
+    }
+
+
+    /**
+     * Purges the backing store if it supports it, and drops expired
+     * associations from the cache.
+     */
+    public int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException
+    {
+        evictExpired();
+        if ( store instanceof IReapableStore )
+        {
+            return ( ( IReapableStore ) store ).purgeExpiredAssociations( now, limit );
+        }
+        return 0;
+    }
+
+
+    /**
+     * Purges the backing store if it supports it.
+     */
+    public int purgeNonces( Date checkedBefore, int limit ) throws OpenIdException
+    {
+        if ( store instanceof IReapableStore )
+        {
+            return ( ( IReapableStore ) store ).purgeNonces( checkedBefore, limit );
+        }
+        return 0;
+    }
+
+
+    /**
+     * Returns the backing store.
+     *
+     * @return the store this cache is in front of.
+     */
+    public IStore getStore()
+    {
+        return store;
+    }
+
+
+    /**
+     * Sets the number of associations cached at most.
+     *
+     * @param maxSize the cache capacity.
+     */
+    public void setMaxSize( int maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Sets the longest time an association stays cached.
+     *
+     * @param timeToLive the time in seconds.
+     */
+    public void setTimeToLive( long timeToLive )
+    {
+        this.timeToLive = timeToLive;
+    }
+
+
+    /**
+     * Returns the number of cached associations.
+     *
+     * @return the cache size.
+     */
+    public int size()
+    {
+        return associations.size();
+    }
+
+
+    /**
+     * Drops every cached association whose time has passed, and the marks
+     * of deleted handles that are no longer needed.
+     */
+    public void evictExpired()
+    {
+        for ( Iterator<Entry> it = associations.values().iterator(); it.hasNext(); )
+        {
+            if ( it.next().hasExpired() )
+            {
+                it.remove();
+            }
+        }
+        long now = System.currentTimeMillis();
+        for ( Iterator<Long> it = deleted.values().iterator(); it.hasNext(); )
+        {
+            if ( it.next().longValue() <= now )
+            {
+                it.remove();
+            }
+        }
+    }
+
+
+    private boolean isDeleted( String handle )
+    {
+        Long until = deleted.get( handle );
+        if ( until == null )
+        {
+            return false;
+        }
+        if ( until.longValue() <= System.currentTimeMillis() )
+        {
+            deleted.remove( handle, until );
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Caches an association unless its time is already over.
+     *
+     * @return the cache entry, or null if the association was not cached.
+     */
+    private Entry cache( IAssociation a )
+    {
+        long now = System.currentTimeMillis();
+        long expiresAt = now + timeToLive * 1000;
+        if ( a.getIssuedDate() != null && a.getLifetime() != null )
+        {
+            expiresAt = Math.min( expiresAt,
+                a.getIssuedDate().getTime() + a.getLifetime().longValue() * 1000 );
+        }
+        if ( expiresAt <= now )
+        {
+            return null;
+        }
+
+        if ( associations.size() >= maxSize )
+        {
+            evictExpired();
+        }
+        if ( associations.size() >= maxSize )
+        {
+            // still full: make room for a tenth of the capacity
+            int excess = associations.size() - maxSize + Math.max( 1, maxSize / 10 );
+            for ( Iterator<String> it = associations.keySet().iterator(); it.hasNext() && excess > 0; excess-- )
+            {
+                it.next();
+                it.remove();
+            }
+        }
+        Entry entry = new Entry( a, expiresAt );
+        associations.put( a.getHandle(), entry );
+        return entry;
+    }
+
+
+    /**
+     * A cached association with the time it must be dropped.
+     */
+    private static final class Entry
+    {
+        private final IAssociation association;
+        private final long expiresAt;
+
+
+        Entry( IAssociation association, long expiresAt )
+        {
+            this.association = association;
+            this.expiresAt = expiresAt;
+        }
+
+
+        boolean hasExpired()
+        {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.verisign.joid.server;
+
+
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.INonce;
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.IReapableStore;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An in-memory store keeping associations and nonces in hash maps keyed on
+ * the association handle and the nonce string. Every stored item is also
+ * queued by its expiry time and expired items are evicted by writes, at
+ * most once a second, so lookups stay constant time and lock free and
+ * memory stays bounded by the number of live associations and nonces
+ * rather than by uptime. Lookups skip expired items not yet evicted.
+ *
+ * Associations expire when {@link IAssociation#hasExpired()} would become
+ * true. Nonces are kept for the replay window set with
+ * {@link #setNonceLifetime(long)}; it should be at least as long as the
+ * association lifetime since a nonce can only be verified while the
+ * association that signed it is still in the store.
+ */
+public class ConcurrentMemoryStore implements IReapableStore, INonceClaimingStore
+{
+    public static long DEFAULT_LIFESPAN = 300; // @TODO: should probably increase this
+    public static final long DEFAULT_NONCE_LIFESPAN = 3600;
+
+    /** How often writes evict expired items at most, in milliseconds. */
+    private static final long EVICTION_INTERVAL = 1000;
+
+    private final ConcurrentMap<String, IAssociation> associations =
+        new ConcurrentHashMap<String, IAssociation>();
+    private final ConcurrentMap<String, INonce> nonces =
+        new ConcurrentHashMap<String, INonce>();
+    private final DelayQueue<Expiry> associationExpiries = new DelayQueue<Expiry>();
+    private final DelayQueue<Expiry> nonceExpiries = new DelayQueue<Expiry>();
+    private final AtomicLong nextEviction = new AtomicLong();
+
+    private long associationLifetime = DEFAULT_LIFESPAN;
+    private long nonceLifetime = DEFAULT_NONCE_LIFESPAN;
+
+
+    public IAssociation generateAssociation( AssociationRequest req, Crypto crypto )
+        throws OpenIdException
+    {
+        Association a = new Association();
+        a.setHandle( Crypto.generateHandle() );
+        a.setSessionType( req.getSessionType() );
+
+        byte[] secret = null;
+        if ( req.isNotEncrypted() )
+        {
+            secret = crypto.generateSecret( req.getAssociationType().toString() );
+        }
+        else
+        {
+            secret = crypto.generateSecret( req.getSessionType().toString() );
+            DiffieHellman dh = crypto.generateDiffieHellman( req.getDhModulus(), req.getDhGenerator() );
+            byte[] encryptedSecret = crypto.encryptSecret( dh, req.getDhConsumerPublic(), secret );
+            a.setEncryptedMacKey( encryptedSecret );
+            a.setPublicDhKey( dh.getPublicKey() );
+        }
+        a.setMacKey( secret );
+        a.setIssuedDate( new Date() );
+        a.setLifetime( new Long( associationLifetime ) );
+
+        a.setAssociationType( req.getAssociationType() );
+        a.setShared( true );
+        return a;
+    }
+
+
+    public void saveAssociation( IAssociation a )
+    {
+        evictIfDue();
+        associations.put( a.getHandle(), a );
+        associationExpiries.add( new Expiry( a.getHandle(), a, expiresAt( a ) ) );
+    }
+
+
+    public void saveNonce( INonce n )
+    {
+        evictIfDue();
+        nonces.put( n.getNonce(), n );
+        nonceExpiries.add( new Expiry( n.getNonce(), n, expiresAt( n ) ) );
+    }
+
+
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        evictIfDue();
+        INonce n = generateNonce( nonce );
+        INonce previous = nonces.putIfAbsent( nonce, n );
+        // a nonce past the replay window may just not be evicted yet
+        while ( previous != null )
+        {
+            if ( expiresAt( previous ) > System.currentTimeMillis() )
+            {
+                return false;
+            }
+            if ( nonces.replace( nonce, previous, n ) )
+            {
+                break;
+            }
+            previous = nonces.putIfAbsent( nonce, n );
+        }
+        nonceExpiries.add( new Expiry( nonce, n, expiresAt( n ) ) );
+        return true;
+    }
+
+
+    /**
+     * Deletes an association and drops it from the expiry queue. The queue
+     * of associations is searched, which stays short next to the one of
+     * nonces.
+     */
+    public void deleteAssociation( IAssociation a )
+    {
+        if ( associations.remove( a.getHandle(), a ) )
+        {
+            for ( Iterator<Expiry> it = associationExpiries.iterator(); it.hasNext(); )
+            {
+                if ( it.next().value == a )
+                {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+
+    public IAssociation findAssociation( String handle ) throws OpenIdException
+    {
+        if ( handle == null )
+        {
+            return null;
+        }
+        IAssociation a = associations.get( handle );
+        return a == null || expiresAt( a ) <= System.currentTimeMillis() ? null : a;
+    }
+
+
+    public INonce findNonce( String nonce ) throws OpenIdException
+    {
+        if ( nonce == null )
+        {
+            return null;
+        }
+        INonce n = nonces.get( nonce );
+        return n == null || expiresAt( n ) <= System.currentTimeMillis() ? null : n;
+    }
+
+
+    public INonce generateNonce( String nonce ) throws OpenIdException
+    {
+        Nonce n = new Nonce();
+        n.setNonce( nonce );
+        n.setCheckedDate( new Date() );
+        return n;
+    }
+
+
+    public int purgeExpiredAssociations( Date now, int limit )
+    {
+        int deleted = 0;
+        for ( Iterator<IAssociation> it = associations.values().iterator(); it.hasNext() && deleted < limit; )
+        {
+            IAssociation a = it.next();
+            if ( a.getIssuedDate().getTime() + a.getLifetime().longValue() * 1000 <= now.getTime() )
+            {
+                it.remove();
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+
+    public int purgeNonces( Date checkedBefore, int limit )
+    {
+        int deleted = 0;
+        for ( Iterator<INonce> it = nonces.values().iterator(); it.hasNext() && deleted < limit; )
+        {
+            if ( it.next().getCheckedDate().before( checkedBefore ) )
+            {
+                it.remove();
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+
+    /**
+     * Sets the lifetime of associations generated by this store.
+     *
+     * @param associationLifetime the lifetime in seconds.
+     */
+    public void setAssociationLifetime( long associationLifetime )
+    {
+        this.associationLifetime = associationLifetime;
+    }
+
+
+    /**
+     * Sets how long a checked nonce is remembered for replay detection.
+     *
+     * @param nonceLifetime the replay window in seconds.
+     */
+    public void setNonceLifetime( long nonceLifetime )
+    {
+        this.nonceLifetime = nonceLifetime;
+    }
+
+
+    /**
+     * Returns the number of associations currently held, expired ones
+     * included until they are evicted.
+     *
+     * @return the number of associations in the store.
+     */
+    public int getAssociationCount()
+    {
+        return associations.size();
+    }
+
+
+    /**
+     * Returns the number of nonces currently held, expired ones included
+     * until they are evicted.
+     *
+     * @return the number of nonces in the store.
+     */
+    public int getNonceCount()
+    {
+        return nonces.size();
+    }
+
+
+    /**
+     * Drops every association and nonce whose expiry time has passed. Only
+     * removes the exact instance that was queued, so an item saved again
+     * under the same key is not evicted by its predecessor's expiry.
+     */
+    public void evictExpired()
+    {
+        Expiry e;
+        while ( ( e = associationExpiries.poll() ) != null )
+        {
+            associations.remove( e.key, e.value );
+        }
+        while ( ( e = nonceExpiries.poll() ) != null )
+        {
+            nonces.remove( e.key, e.value );
+        }
+    }
+
+
+    /**
+     * Evicts expired items unless that was done less than a second ago, so
+     * that most writes only take the lock of the queue to add to it.
+     */
+    private void evictIfDue()
+    {
+        long now = System.currentTimeMillis();
+        long next = nextEviction.get();
+        if ( now >= next && nextEviction.compareAndSet( next, now + EVICTION_INTERVAL ) )
+        {
+            evictExpired();
+        }
+    }
+
+
+    private static long expiresAt( IAssociation a )
+    {
+        return a.getIssuedDate().getTime() + a.getLifetime().longValue() * 1000;
+    }
+
+
+    private long expiresAt( INonce n )
+    {
+        return n.getCheckedDate().getTime() + nonceLifetime * 1000;
+    }
+
+
+    /**
+     * An entry of the expiry queue.
+     */
+    private static final class Expiry implements Delayed
+    {
+        private final String key;
+        private final Object value;
+        private final long expiresAt;
+
+
+        Expiry( String key, Object value, long expiresAt )
+        {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+
+        public long getDelay( TimeUnit unit )
+        {
+            return unit.convert( expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+        }
+
+
+        public int compareTo( Delayed o )
+        {
+            long other = ( ( Expiry ) o ).expiresAt;
+            return expiresAt < other ? -1 : ( expiresAt == other ? 0 : 1 );
+        }
+    }
+}
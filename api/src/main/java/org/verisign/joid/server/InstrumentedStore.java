@@ -0,0 +1,214 @@
+package org.verisign.joid.server;
+
+
+import java.util.Date;
+
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.INonce;
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.IReapableStore;
+import org.verisign.joid.IStore;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.metrics.Instrumentation;
+import org.verisign.joid.util.StoreUtils;
+
+
+/**
+ * A store timing every call to another store, under "store." followed by
+ * the name of the method. A call throwing an exception is recorded as
+ * failed.
+ */
+public class InstrumentedStore implements IReapableStore, INonceClaimingStore
+{
+    private final IStore store;
+
+
+    /**
+     * Creates a store.
+     *
+     * @param store the store to time.
+     */
+    public InstrumentedStore( IStore store )
+    {
+        this.store = store;
+    }
+
+
+    public IAssociation generateAssociation( AssociationRequest req, Crypto crypto )
+        throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            IAssociation a = store.generateAssociation( req, crypto );
+            ok = true;
+            return a;
+        }
+        finally
+        {
+            record( "store.generateAssociation", start, ok );
+        }
+    }
+
+
+    public void saveAssociation( IAssociation a ) throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            store.saveAssociation( a );
+            ok = true;
+        }
+        finally
+        {
+            record( "store.saveAssociation", start, ok );
+        }
+    }
+
+
+    public void deleteAssociation( IAssociation a ) throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            store.deleteAssociation( a );
+            ok = true;
+        }
+        finally
+        {
+            record( "store.deleteAssociation", start, ok );
+        }
+    }
+
+
+    public IAssociation findAssociation( String handle ) throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            IAssociation a = store.findAssociation( handle );
+            ok = true;
+            return a;
+        }
+        finally
+        {
+            record( "store.findAssociation", start, ok );
+        }
+    }
+
+
+    public INonce findNonce( String nonce ) throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            INonce n = store.findNonce( nonce );
+            ok = true;
+            return n;
+        }
+        finally
+        {
+            record( "store.findNonce", start, ok );
+        }
+    }
+
+
+    public void saveNonce( INonce n ) throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            store.saveNonce( n );
+            ok = true;
+        }
+        finally
+        {
+            record( "store.saveNonce", start, ok );
+        }
+    }
+
+
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            boolean claimed = StoreUtils.claimNonce( store, nonce );
+            ok = true;
+            return claimed;
+        }
+        finally
+        {
+            record( "store.claimNonce", start, ok );
+        }
+    }
+
+
+    public INonce generateNonce( String nonce ) throws OpenIdException
+    {
+        return store.generateNonce( nonce );
+    }
+
+
+    /**
+     * Purges the timed store if it supports it.
+     */
+    public int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException
+    {
+        if ( !( store instanceof IReapableStore ) )
+        {
+            return 0;
+        }
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            int purged = ( ( IReapableStore ) store ).purgeExpiredAssociations( now, limit );
+            ok = true;
+            return purged;
+        }
+        finally
+        {
+            record( "store.purgeExpiredAssociations", start, ok );
+        }
+    }
+
+
+    /**
+     * Purges the timed store if it supports it.
+     */
+    public int purgeNonces( Date checkedBefore, int limit ) throws OpenIdException
+    {
+        if ( !( store instanceof IReapableStore ) )
+        {
+            return 0;
+        }
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            int purged = ( ( IReapableStore ) store ).purgeNonces( checkedBefore, limit );
+            ok = true;
+            return purged;
+        }
+        finally
+        {
+            record( "store.purgeNonces", start, ok );
+        }
+    }
+
+
+    private static void record( String name, long start, boolean ok )
+    {
+        Instrumentation.getMetrics().recordTime( name, System.nanoTime() - start, ok );
+    }
+}
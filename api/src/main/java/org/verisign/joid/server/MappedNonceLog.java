@@ -0,0 +1,396 @@
+package org.verisign.joid.server;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * A replay log of checked nonces kept in a memory-mapped file, so that it
+ * survives restarts and stays out of the Java heap.
+ *
+ * The file is a fixed-size hash table of 16-byte slots, each holding the
+ * 64-bit fingerprint of a nonce and the time it was checked. Slots are
+ * grouped in buckets of {@link #BUCKET_SLOTS}; a nonce may sit in either of
+ * two buckets chosen from its fingerprint. A slot whose nonce was checked
+ * longer ago than the window is free again, so entries are evicted by time
+ * without any sweep.
+ *
+ * Checking a nonce allocates nothing. Two different nonces sharing a
+ * fingerprint make the second one look replayed, which rejects a login but
+ * never accepts a replay; with 64-bit fingerprints this is negligible. When
+ * both buckets of a nonce are full of live entries the claim fails for the
+ * same reason, and the table should be made larger. Fingerprints are keyed
+ * with a random key kept in the file header, so that nonces cannot be
+ * chosen to fill given buckets.
+ */
+public class MappedNonceLog
+{
+    /** The number of slots in a bucket. */
+    public static final int BUCKET_SLOTS = 16;
+
+    private static final long MAGIC = 0x4a4f49444e4c4f47L; // "JOIDNLOG"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final int BUCKET_SIZE = BUCKET_SLOTS * SLOT_SIZE;
+    private static final int STRIPES = 1024;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int buckets;
+    private final long k0;
+    private final long k1;
+    private final Object[] locks = new Object[STRIPES];
+
+    private volatile long windowMillis;
+
+
+    /**
+     * Opens the log in the given file, creating it if it does not exist.
+     *
+     * @param path the file holding the log.
+     * @param capacity the number of nonces the table can hold, or 0 to take
+     *  that of the existing file. Keep the expected number of nonces in a
+     *  window below half of it.
+     * @param window the time in seconds a checked nonce is remembered.
+     * @throws OpenIdException if the file cannot be opened, is not a log or
+     *  is damaged, or holds a table of another capacity.
+     */
+    public MappedNonceLog( File path, int capacity, long window ) throws OpenIdException
+    {
+        for ( int i = 0; i < STRIPES; i++ )
+        {
+            locks[i] = new Object();
+        }
+        this.windowMillis = window * 1000;
+
+        try
+        {
+            boolean exists = path.exists() && path.length() > 0;
+            int requested = Math.max( 2, ( capacity + BUCKET_SLOTS - 1 ) / BUCKET_SLOTS );
+            file = new RandomAccessFile( path, "rw" );
+            if ( exists )
+            {
+                if ( file.length() < HEADER_SIZE || file.readLong() != MAGIC || file.readInt() != VERSION )
+                {
+                    file.close();
+                    throw new OpenIdException( path + " is not a nonce log" );
+                }
+                buckets = file.readInt();
+                k0 = file.readLong();
+                k1 = file.readLong();
+                if ( buckets < 2 || file.length() != HEADER_SIZE + ( long ) buckets * BUCKET_SIZE )
+                {
+                    file.close();
+                    throw new OpenIdException( "Nonce log " + path + " is damaged" );
+                }
+                if ( capacity > 0 && buckets != requested )
+                {
+                    file.close();
+                    throw new OpenIdException( "Nonce log " + path + " holds " + buckets * BUCKET_SLOTS
+                        + " nonces, not " + requested * BUCKET_SLOTS + "; remove it to change its capacity" );
+                }
+            }
+            else
+            {
+                buckets = requested;
+                SecureRandom random = new SecureRandom();
+                k0 = random.nextLong();
+                k1 = random.nextLong();
+            }
+
+            long size = HEADER_SIZE + ( long ) buckets * BUCKET_SIZE;
+            if ( size > Integer.MAX_VALUE )
+            {
+                file.close();
+                throw new OpenIdException( "Nonce log capacity too large: " + capacity );
+            }
+            if ( file.length() < size )
+            {
+                file.setLength( size );
+            }
+            buffer = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+            if ( !exists )
+            {
+                buffer.putLong( 0, MAGIC );
+                buffer.putInt( 8, VERSION );
+                buffer.putInt( 12, buckets );
+                buffer.putLong( 16, k0 );
+                buffer.putLong( 24, k1 );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new OpenIdException( "Could not open nonce log " + path, e );
+        }
+    }
+
+
+    /**
+     * Records a nonce unless it was checked within the window.
+     *
+     * @param nonce the nonce.
+     * @param now the current time in milliseconds.
+     * @return true if the nonce was recorded; false if it is a replay.
+     * @throws OpenIdException if there is no room left for the nonce.
+     */
+    public boolean claim( String nonce, long now ) throws OpenIdException
+    {
+        return record( nonce, now, now, false );
+    }
+
+
+    /**
+     * Records a nonce as checked at the given time, whether or not it was
+     * checked before.
+     *
+     * @param nonce the nonce.
+     * @param checked the time it was checked, in milliseconds.
+     * @throws OpenIdException if there is no room left for the nonce.
+     */
+    public void put( String nonce, long checked ) throws OpenIdException
+    {
+        record( nonce, checked, System.currentTimeMillis(), true );
+    }
+
+
+    /**
+     * Returns when a nonce was checked, if that was within the window.
+     *
+     * @param nonce the nonce.
+     * @param now the current time in milliseconds.
+     * @return the time the nonce was checked, or -1 if it is not in the log.
+     */
+    public long lastChecked( String nonce, long now )
+    {
+        long fingerprint = fingerprint( nonce );
+        int first = firstBucket( fingerprint );
+        int second = secondBucket( fingerprint, first );
+        long oldest = now - windowMillis;
+
+        // stripes are always locked in the same order
+        int a = first % STRIPES;
+        int b = second % STRIPES;
+        synchronized ( locks[Math.min( a, b )] )
+        {
+            synchronized ( locks[Math.max( a, b )] )
+            {
+                int slot = find( first, fingerprint, oldest );
+                if ( slot < 0 )
+                {
+                    slot = find( second, fingerprint, oldest );
+                }
+                return slot < 0 ? -1 : buffer.getLong( slot + 8 );
+            }
+        }
+    }
+
+
+    /**
+     * Sets how long a checked nonce is remembered.
+     *
+     * @param window the time in seconds.
+     */
+    public void setWindow( long window )
+    {
+        this.windowMillis = window * 1000;
+    }
+
+
+    /**
+     * @return the number of nonces the table can hold.
+     */
+    public int getCapacity()
+    {
+        return buckets * BUCKET_SLOTS;
+    }
+
+
+    /**
+     * Writes the log out to the disk.
+     */
+    public void force()
+    {
+        buffer.force();
+    }
+
+
+    /**
+     * Writes the log out and closes the file. The log must not be used
+     * afterwards.
+     */
+    public void close() throws IOException
+    {
+        buffer.force();
+        file.close();
+    }
+
+
+    private boolean record( String nonce, long time, long now, boolean overwrite ) throws OpenIdException
+    {
+        long fingerprint = fingerprint( nonce );
+        int first = firstBucket( fingerprint );
+        int second = secondBucket( fingerprint, first );
+        long oldest = now - windowMillis;
+
+        // stripes are always locked in the same order
+        int a = first % STRIPES;
+        int b = second % STRIPES;
+        synchronized ( locks[Math.min( a, b )] )
+        {
+            synchronized ( locks[Math.max( a, b )] )
+            {
+                int slot = find( first, fingerprint, oldest );
+                if ( slot < 0 )
+                {
+                    slot = find( second, fingerprint, oldest );
+                }
+                if ( slot >= 0 )
+                {
+                    if ( overwrite )
+                    {
+                        buffer.putLong( slot + 8, time );
+                    }
+                    return overwrite;
+                }
+
+                slot = free( first, oldest );
+                if ( slot < 0 )
+                {
+                    slot = free( second, oldest );
+                }
+                if ( slot < 0 )
+                {
+                    throw new OpenIdException( "Nonce log is full" );
+                }
+                buffer.putLong( slot, fingerprint );
+                buffer.putLong( slot + 8, time );
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the offset of the live slot holding the fingerprint in a
+     * bucket, or -1.
+     */
+    private int find( int bucket, long fingerprint, long oldest )
+    {
+        int offset = HEADER_SIZE + bucket * BUCKET_SIZE;
+        for ( int i = 0; i < BUCKET_SLOTS; i++, offset += SLOT_SIZE )
+        {
+            if ( buffer.getLong( offset ) == fingerprint && buffer.getLong( offset + 8 ) > oldest )
+            {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Returns the offset of an empty or expired slot in a bucket, or -1.
+     */
+    private int free( int bucket, long oldest )
+    {
+        int offset = HEADER_SIZE + bucket * BUCKET_SIZE;
+        for ( int i = 0; i < BUCKET_SLOTS; i++, offset += SLOT_SIZE )
+        {
+            if ( buffer.getLong( offset ) == 0 || buffer.getLong( offset + 8 ) <= oldest )
+            {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+
+    private int firstBucket( long fingerprint )
+    {
+        return ( int ) ( ( fingerprint & Long.MAX_VALUE ) % buckets );
+    }
+
+
+    private int secondBucket( long fingerprint, int first )
+    {
+        int second = ( int ) ( ( ( fingerprint >>> 32 ) * 0x9e3779b9L & Long.MAX_VALUE ) % buckets );
+        return second == first ? ( first + 1 ) % buckets : second;
+    }
+
+
+    /**
+     * Hashes a nonce to a non-zero 64-bit fingerprint with SipHash-2-4 under
+     * the key of the log, taking its characters four to a word.
+     */
+    long fingerprint( String nonce )
+    {
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+
+        // the words of the nonce, the last one holding its length, then
+        // the finalization rounds
+        int words = nonce.length() / 4 + 1;
+        for ( int w = 0; w <= words; w++ )
+        {
+            long m = 0;
+            int rounds = 4;
+            if ( w < words )
+            {
+                m = word( nonce, w );
+                v3 ^= m;
+                rounds = 2;
+            }
+            else
+            {
+                v2 ^= 0xff;
+            }
+            for ( int r = 0; r < rounds; r++ )
+            {
+                v0 += v1;
+                v1 = Long.rotateLeft( v1, 13 );
+                v1 ^= v0;
+                v0 = Long.rotateLeft( v0, 32 );
+                v2 += v3;
+                v3 = Long.rotateLeft( v3, 16 );
+                v3 ^= v2;
+                v0 += v3;
+                v3 = Long.rotateLeft( v3, 21 );
+                v3 ^= v0;
+                v2 += v1;
+                v1 = Long.rotateLeft( v1, 17 );
+                v1 ^= v2;
+                v2 = Long.rotateLeft( v2, 32 );
+            }
+            v0 ^= m;
+        }
+        long h = v0 ^ v1 ^ v2 ^ v3;
+        return h == 0 ? 1 : h;
+    }
+
+
+    /**
+     * Packs four characters of a nonce into a word; the last word takes the
+     * remaining characters and the length in bytes in its top byte.
+     */
+    private static long word( String nonce, int w )
+    {
+        int length = nonce.length();
+        int start = w * 4;
+        long m = start + 4 <= length ? 0 : ( long ) ( length * 2 ) << 56;
+        for ( int i = 0; i < 4 && start + i < length; i++ )
+        {
+            m |= ( long ) nonce.charAt( start + i ) << ( i * 16 );
+        }
+        return m;
+    }
+}
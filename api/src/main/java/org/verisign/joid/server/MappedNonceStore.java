@@ -0,0 +1,148 @@
+package org.verisign.joid.server;
+
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.INonce;
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.IReapableStore;
+import org.verisign.joid.IStore;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * A store keeping nonces in a {@link MappedNonceLog} and associations in
+ * another store, for single-node servers without a database. Replay
+ * detection then survives restarts while checking a nonce allocates
+ * nothing on the heap.
+ *
+ * Nonces are remembered for the window of the log and expire in place, so
+ * purging nonces has nothing to do.
+ */
+public class MappedNonceStore implements IReapableStore, INonceClaimingStore
+{
+    private final IStore store;
+    private final MappedNonceLog log;
+
+
+    /**
+     * Creates a store.
+     *
+     * @param store the store for associations.
+     * @param log the log for nonces.
+     */
+    public MappedNonceStore( IStore store, MappedNonceLog log )
+    {
+        this.store = store;
+        this.log = log;
+    }
+
+
+    public IAssociation generateAssociation( AssociationRequest req, Crypto crypto )
+        throws OpenIdException
+    {
+        return store.generateAssociation( req, crypto );
+    }
+
+
+    public void saveAssociation( IAssociation a ) throws OpenIdException
+    {
+        store.saveAssociation( a );
+    }
+
+
+    public void deleteAssociation( IAssociation a ) throws OpenIdException
+    {
+        store.deleteAssociation( a );
+    }
+
+
+    public IAssociation findAssociation( String handle ) throws OpenIdException
+    {
+        return store.findAssociation( handle );
+    }
+
+
+    public INonce findNonce( String nonce ) throws OpenIdException
+    {
+        if ( nonce == null )
+        {
+            return null;
+        }
+        long checked = log.lastChecked( nonce, System.currentTimeMillis() );
+        if ( checked < 0 )
+        {
+            return null;
+        }
+        Nonce n = new Nonce();
+        n.setNonce( nonce );
+        n.setCheckedDate( new Date( checked ) );
+        return n;
+    }
+
+
+    public void saveNonce( INonce n ) throws OpenIdException
+    {
+        log.put( n.getNonce(), n.getCheckedDate().getTime() );
+    }
+
+
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        return log.claim( nonce, System.currentTimeMillis() );
+    }
+
+
+    public INonce generateNonce( String nonce ) throws OpenIdException
+    {
+        return store.generateNonce( nonce );
+    }
+
+
+    /**
+     * Purges the association store if it supports it.
+     */
+    public int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException
+    {
+        if ( store instanceof IReapableStore )
+        {
+            return ( ( IReapableStore ) store ).purgeExpiredAssociations( now, limit );
+        }
+        return 0;
+    }
+
+
+    /**
+     * Does nothing: the log reuses the slots of nonces older than its window.
+     */
+    public int purgeNonces( Date checkedBefore, int limit )
+    {
+        return 0;
+    }
+
+
+    /**
+     * Returns the log holding the nonces.
+     *
+     * @return the nonce log.
+     */
+    public MappedNonceLog getLog()
+    {
+        return log;
+    }
+
+
+    /**
+     * Writes the nonce log out and closes it.
+     *
+     * @throws IOException if the log could not be closed.
+     */
+    public void close() throws IOException
+    {
+        log.close();
+    }
+}
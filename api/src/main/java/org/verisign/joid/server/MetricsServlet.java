@@ -0,0 +1,69 @@
+package org.verisign.joid.server;
+
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.verisign.joid.metrics.Instrumentation;
+import org.verisign.joid.metrics.Metrics;
+import org.verisign.joid.metrics.MetricsRegistry;
+
+
+/**
+ * Prints the counters and timers of the {@link MetricsRegistry} in use as
+ * plain text, one per line. A POST with <code>reset=true</code> resets them.
+ *
+ * Map it behind the same access control as any other admin page.
+ */
+public class MetricsServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 5120937644761L;
+
+
+    public void doGet( HttpServletRequest request, HttpServletResponse response )
+        throws ServletException, IOException
+    {
+        MetricsRegistry registry = getRegistry( response );
+        if ( registry == null )
+        {
+            return;
+        }
+        response.setContentType( "text/plain; charset=UTF-8" );
+        PrintWriter out = response.getWriter();
+        out.print( registry.getReport() );
+        out.flush();
+    }
+
+
+    public void doPost( HttpServletRequest request, HttpServletResponse response )
+        throws ServletException, IOException
+    {
+        MetricsRegistry registry = getRegistry( response );
+        if ( registry == null )
+        {
+            return;
+        }
+        if ( Boolean.valueOf( request.getParameter( "reset" ) ).booleanValue() )
+        {
+            registry.reset();
+        }
+        doGet( request, response );
+    }
+
+
+    private static MetricsRegistry getRegistry( HttpServletResponse response ) throws IOException
+    {
+        Metrics metrics = Instrumentation.getMetrics();
+        if ( !( metrics instanceof MetricsRegistry ) )
+        {
+            response.sendError( HttpServletResponse.SC_NOT_FOUND, "Metrics are not enabled" );
+            return null;
+        }
+        return ( MetricsRegistry ) metrics;
+    }
+}
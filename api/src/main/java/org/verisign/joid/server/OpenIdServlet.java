@@ -5,22 +5,35 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.verisign.joid.AuthenticationRequest;
 import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellmanPool;
 import org.verisign.joid.InvalidOpenIdQueryException;
+import org.verisign.joid.Mode;
 import org.verisign.joid.OpenId;
 import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Request;
 import org.verisign.joid.RequestFactory;
+import org.verisign.joid.Response;
 import org.verisign.joid.ServerInfo;
+import org.verisign.joid.IReapableStore;
 import org.verisign.joid.IStore;
 import org.verisign.joid.StoreFactory;
+import org.verisign.joid.StoreReaper;
+import org.verisign.joid.handlers.EncodingMode;
+import org.verisign.joid.handlers.Encoders;
+import org.verisign.joid.metrics.Instrumentation;
+import org.verisign.joid.metrics.MetricsRegistry;
+import org.verisign.joid.metrics.NoopMetrics;
 import org.verisign.joid.util.CookieUtils;
 import org.verisign.joid.util.DependencyUtils;
 
+import javax.management.JMException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
@@ -29,6 +42,18 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.util.Enumeration;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -43,6 +68,9 @@ public class OpenIdServlet extends HttpServlet
     private static OpenId openId;
     private IStore store;
     private Crypto crypto;
+    private DiffieHellmanPool dhPool;
+    private StoreReaper reaper;
+    private MappedNonceStore nonceStore;
     private String loginPage;
     public static final String USERNAME_ATTRIBUTE = "username";
     public static final String ID_CLAIMED = "idClaimed";
@@ -50,6 +78,11 @@ public class OpenIdServlet extends HttpServlet
     public static final String COOKIE_AUTH_NAME = "authKey";
     public static final String COOKIE_USERNAME = "username";
     private static UserManager userManager;
+    private static final int DEFAULT_NONCE_LOG_CAPACITY = 1 << 20;
+    private static final long DEFAULT_PROCESSING_TIMEOUT = 10000;
+    private ExecutorService processor;
+    private long processingTimeout = DEFAULT_PROCESSING_TIMEOUT;
+    private MetricsRegistry metrics;
 
     public void init( ServletConfig config ) throws ServletException
     {
@@ -57,13 +90,154 @@ public class OpenIdServlet extends HttpServlet
         String storeClassName = config.getInitParameter( "storeClassName" );
         String userManagerClassName = config.getInitParameter( "userManagerClassName" );
         store = StoreFactory.getInstance( storeClassName );
-        MemoryStore mStore = ( MemoryStore ) store;
-        mStore.setAssociationLifetime( 600 );
+        if ( store instanceof ConcurrentMemoryStore )
+        {
+            ( ( ConcurrentMemoryStore ) store ).setAssociationLifetime( 600 );
+        }
+        if ( Boolean.valueOf( config.getInitParameter( "metrics" ) ).booleanValue() )
+        {
+            metrics = new MetricsRegistry();
+            try
+            {
+                metrics.register( MetricsRegistry.DEFAULT_OBJECT_NAME );
+            }
+            catch ( JMException e )
+            {
+                log.warn( "Could not register metrics with JMX", e );
+            }
+            Instrumentation.setMetrics( metrics );
+            // times the store itself, under the caches and filters
+            store = new InstrumentedStore( store );
+        }
+        // with a nonce window, checked nonces only have to be kept for the
+        // window plus the skew
+        String nonceWindow = config.getInitParameter( "nonceWindow" );
+        String nonceSkew = config.getInitParameter( "nonceSkew" );
+        long skew = nonceSkew == null ? ServerInfo.DEFAULT_NONCE_SKEW : Long.parseLong( nonceSkew );
+        String nonceMaxAgeParam = config.getInitParameter( "nonceMaxAge" );
+        long nonceMaxAge = nonceMaxAgeParam != null ? Long.parseLong( nonceMaxAgeParam )
+            : nonceWindow != null ? Long.parseLong( nonceWindow ) + skew : StoreReaper.DEFAULT_NONCE_MAX_AGE;
+        String nonceLogFile = config.getInitParameter( "nonceLogFile" );
+        if ( nonceLogFile != null )
+        {
+            String capacity = config.getInitParameter( "nonceLogCapacity" );
+            try
+            {
+                nonceStore = new MappedNonceStore( store, new MappedNonceLog( new File( nonceLogFile ),
+                    capacity == null ? DEFAULT_NONCE_LOG_CAPACITY : Integer.parseInt( capacity ),
+                    nonceMaxAge ) );
+            }
+            catch ( OpenIdException e )
+            {
+                throw new ServletException( e );
+            }
+            store = nonceStore;
+        }
+        String associationCacheSize = config.getInitParameter( "associationCacheSize" );
+        if ( associationCacheSize != null )
+        {
+            CachingStore cachingStore = new CachingStore( store );
+            cachingStore.setMaxSize( Integer.parseInt( associationCacheSize ) );
+            store = cachingStore;
+        }
         userManager = ( UserManager ) DependencyUtils.newInstance( userManagerClassName );
-        crypto = new Crypto();
+        String dhPoolSize = config.getInitParameter( "dhPoolSize" );
+        dhPool = new DiffieHellmanPool( dhPoolSize == null
+            ? DiffieHellmanPool.DEFAULT_CAPACITY : Integer.parseInt( dhPoolSize ) );
+        crypto = new Crypto( dhPool );
+        if ( store instanceof IReapableStore )
+        {
+            reaper = new StoreReaper( ( IReapableStore ) store );
+            reaper.setNonceMaxAge( nonceMaxAge );
+            String reaperLimit = config.getInitParameter( "reaperRunLimit" );
+            if ( reaperLimit != null )
+            {
+                reaper.setRunLimit( Integer.parseInt( reaperLimit ) );
+            }
+            String reaperInterval = config.getInitParameter( "reaperInterval" );
+            reaper.start( reaperInterval == null
+                ? StoreReaper.DEFAULT_INTERVAL : Long.parseLong( reaperInterval ) );
+        }
         loginPage = config.getInitParameter( "loginPage" );
         String endPointUrl = config.getInitParameter( "endPointUrl" );
-        openId = new OpenId( new ServerInfo( endPointUrl, store, crypto ) );
+        ServerInfo serverInfo = new ServerInfo( endPointUrl, store, crypto );
+        if ( nonceWindow != null )
+        {
+            serverInfo.setNonceWindow( Long.parseLong( nonceWindow ) );
+            serverInfo.setNonceSkew( skew );
+        }
+        openId = new OpenId( serverInfo );
+        // with processing threads, store and crypto work runs on a bounded
+        // pool and requests over its queue are turned away
+        String processingThreads = config.getInitParameter( "processingThreads" );
+        if ( processingThreads != null )
+        {
+            int threads = Integer.parseInt( processingThreads );
+            String processingQueue = config.getInitParameter( "processingQueue" );
+            int queue = processingQueue == null ? threads * 4 : Integer.parseInt( processingQueue );
+            processor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>( Math.max( 1, queue ) ), new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread( Runnable r )
+                    {
+                        Thread t = new Thread( r, "joid-processor-" + count.incrementAndGet() );
+                        t.setDaemon( true );
+                        return t;
+                    }
+                } );
+            String timeout = config.getInitParameter( "processingTimeout" );
+            if ( timeout != null )
+            {
+                processingTimeout = Long.parseLong( timeout );
+            }
+        }
+    }
+
+    public void destroy()
+    {
+        if ( processor != null )
+        {
+            processor.shutdownNow();
+        }
+        if ( dhPool != null )
+        {
+            dhPool.shutdown();
+        }
+        if ( reaper != null )
+        {
+            reaper.shutdown();
+        }
+        if ( nonceStore != null )
+        {
+            try
+            {
+                nonceStore.close();
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Could not close nonce log", e );
+            }
+        }
+        if ( metrics != null )
+        {
+            try
+            {
+                metrics.unregister( MetricsRegistry.DEFAULT_OBJECT_NAME );
+            }
+            catch ( JMException e )
+            {
+                log.warn( "Could not unregister metrics from JMX", e );
+            }
+            // stop recording into a registry nothing can read any more
+            if ( Instrumentation.getMetrics() == metrics )
+            {
+                Instrumentation.setMetrics( new NoopMetrics() );
+            }
+            metrics = null;
+        }
+        super.destroy();
     }
 
     public void doGet( HttpServletRequest request,
@@ -96,7 +270,9 @@ public class OpenIdServlet extends HttpServlet
         
         try
         {
-            boolean isAuth = openId.isAuthenticationRequest( queryString );
+            Request openIdRequest = RequestFactory.parse( queryString );
+            Mode mode = openIdRequest.getMode();
+            boolean isAuth = Mode.CHECKID_SETUP == mode || Mode.CHECKID_IMMEDIATE == mode;
             
             HttpSession session = request.getSession( true );
             
@@ -151,18 +327,28 @@ public class OpenIdServlet extends HttpServlet
                 }
                 else
                 {
-                    processAuthenticationRequest( request, response, queryString );
+                    processAuthenticationRequest( request, response, ( AuthenticationRequest ) openIdRequest );
                 }
             }
             else
             {
-                processAssocationRequest( response, queryString );
+                processAssocationRequest( response, openIdRequest );
             }
         }
         catch (InvalidOpenIdQueryException e) {
             returnError( queryString, response );
         }
         
+        catch ( BusyException e )
+        {
+            log.warn( e.getMessage() );
+            if ( e.isRetryable() )
+            {
+                response.setHeader( "Retry-After", "1" );
+            }
+            response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage() );
+        }
+        
         catch ( OpenIdException e )
         {
             e.printStackTrace();
@@ -172,15 +358,9 @@ public class OpenIdServlet extends HttpServlet
     }
 
     private void processAuthenticationRequest( HttpServletRequest request, HttpServletResponse response,
-        String queryString ) throws UnsupportedEncodingException,
-        OpenIdException, IOException, InvalidOpenIdQueryException
+        AuthenticationRequest authReq ) throws OpenIdException, IOException
     {
-        String openIdResponse = openId.handleRequest( queryString );
-        
-        
-        
-        AuthenticationRequest authReq = ( AuthenticationRequest )
-                RequestFactory.parse( queryString );
+        Response openIdResponse = process( authReq );
         
         String claimedId = (String) request.getSession().getAttribute(ID_CLAIMED);
 
@@ -202,7 +382,9 @@ public class OpenIdServlet extends HttpServlet
                         
             String delim = ( returnTo.indexOf( '?' ) >= 0 ) ? "&" : "?";
            
-            String returnToUrlWithOpenIdResponse = response.encodeRedirectURL( returnTo + delim + openIdResponse );
+            StringBuilder returnToUrl = new StringBuilder( returnTo ).append( delim );
+            Encoders.encode( openIdResponse, EncodingMode.URL_STRING, returnToUrl );
+            String returnToUrlWithOpenIdResponse = response.encodeRedirectURL( returnToUrl.toString() );
             
             //redirecting to relying party with OpenID response query
             response.sendRedirect( returnToUrlWithOpenIdResponse );
@@ -214,24 +396,111 @@ public class OpenIdServlet extends HttpServlet
         }
     }
 
-    private void processAssocationRequest( HttpServletResponse response, String queryString ) throws IOException, OpenIdException, InvalidOpenIdQueryException
+    private void processAssocationRequest( HttpServletResponse response, Request openIdRequest ) throws IOException, OpenIdException
     {
-        // Association request
-        String openIdResponse = openId.handleRequest( queryString );
-        
+        // Association or check authentication request
+        Response openIdResponse = process( openIdRequest );
         
-        int len = openIdResponse.length();
-        PrintWriter out = response.getWriter();
-        response.setHeader( "Content-Length", Integer.toString( len ) );
-        if ( openId.isAnErrorResponse( openIdResponse ) )
+        if ( openIdResponse.getError() != null )
         {
             response.setStatus( HttpServletResponse.SC_BAD_REQUEST );
         }
-        out.print( openIdResponse );
+        PrintWriter out = response.getWriter();
+        Encoders.encode( openIdResponse, EncodingMode.POST_STRING, out );
         out.flush();
         return;
     }
 
+    /**
+     * Processes a request on the processing threads if there are some, or
+     * else on the calling thread.
+     *
+     * A timeout never interrupts work that has started, so the store is not
+     * left half way through a call. A request that times out while still queued
+     * is dropped and may be retried. One that times out while running still
+     * completes, but its response is lost: a check_authentication request
+     * has then already used up its nonce, and retrying it fails as a replay,
+     * so no Retry-After is sent for it.
+     *
+     * @throws BusyException if the queue is full or the request took longer
+     * than the processing timeout.
+     */
+    private Response process( final Request openIdRequest ) throws OpenIdException
+    {
+        if ( processor == null )
+        {
+            return openId.processRequest( openIdRequest );
+        }
+
+        // claimed by whichever comes first, the processing thread starting
+        // the request or the caller giving up on it
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Future<Response> future;
+        try
+        {
+            future = processor.submit( new Callable<Response>()
+            {
+                public Response call() throws OpenIdException
+                {
+                    if ( !claimed.compareAndSet( false, true ) )
+                    {
+                        return null;
+                    }
+                    return openId.processRequest( openIdRequest );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            Instrumentation.getMetrics().increment( "request.rejected" );
+            throw new BusyException( "Too many requests in progress", true );
+        }
+
+        try
+        {
+            return future.get( processingTimeout, TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException e )
+        {
+            Instrumentation.getMetrics().increment( "request.timedOut" );
+            if ( claimed.compareAndSet( false, true ) )
+            {
+                future.cancel( false );
+                throw new BusyException( "Request timed out after " + processingTimeout
+                    + " ms in the queue", true );
+            }
+            throw new BusyException( "Request timed out after " + processingTimeout
+                + " ms and is still being processed", false );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            boolean queued = claimed.compareAndSet( false, true );
+            if ( queued )
+            {
+                future.cancel( false );
+            }
+            throw new BusyException( "Interrupted while processing request", queued );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof OpenIdException )
+            {
+                throw ( OpenIdException ) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw ( RuntimeException ) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw ( Error ) cause;
+            }
+            throw new OpenIdException( ( Exception ) cause );
+        }
+    }
+
     /**
      *
      * @param request
@@ -359,4 +628,28 @@ public class OpenIdServlet extends HttpServlet
     {
         return userManager;
     }
+
+    /**
+     * Thrown when a request cannot be processed for lack of capacity.
+     */
+    private static class BusyException extends OpenIdException
+    {
+        private static final long serialVersionUID = 7310894261038L;
+        private final boolean retryable;
+
+        BusyException( String s, boolean retryable )
+        {
+            super( s );
+            this.retryable = retryable;
+        }
+
+        /**
+         * @return whether the request was never processed, so that sending
+         * it again is safe.
+         */
+        boolean isRetryable()
+        {
+            return retryable;
+        }
+    }
 }
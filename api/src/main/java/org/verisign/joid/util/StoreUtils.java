@@ -0,0 +1,45 @@
+package org.verisign.joid.util;
+
+
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.IStore;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * Helpers for the optional capabilities of stores.
+ */
+public class StoreUtils
+{
+    private StoreUtils()
+    {
+    }
+
+
+    /**
+     * Records a nonce as checked unless it already is. Stores implementing
+     * {@link INonceClaimingStore} do so atomically; other stores are asked
+     * for the nonce first and save it when it is not found, which lets two
+     * concurrent checks of the same nonce both succeed.
+     *
+     * @param store the store to record the nonce in.
+     * @param nonce the nonce to record.
+     * @return true if the nonce was recorded by this call; false if it had
+     * been checked before.
+     *
+     * @throws OpenIdException at unrecoverable errors.
+     */
+    public static boolean claimNonce( IStore store, String nonce ) throws OpenIdException
+    {
+        if ( store instanceof INonceClaimingStore )
+        {
+            return ( ( INonceClaimingStore ) store ).claimNonce( nonce );
+        }
+        if ( store.findNonce( nonce ) != null )
+        {
+            return false;
+        }
+        store.saveNonce( store.generateNonce( nonce ) );
+        return true;
+    }
+}
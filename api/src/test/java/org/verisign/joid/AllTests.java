@@ -23,26 +23,61 @@ import org.verisign.joid.CheckAuthenticationRequest;
 import org.verisign.joid.CheckAuthenticationResponse;
 import org.verisign.joid.Crypto;
 import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.DiffieHellmanPool;
 import org.verisign.joid.MessageParser;
 import org.verisign.joid.OpenId;
 import org.verisign.joid.OpenIdException;
 import org.verisign.joid.Request;
 import org.verisign.joid.RequestFactory;
 import org.verisign.joid.Response;
+import org.verisign.joid.ResponseCallback;
 import org.verisign.joid.ResponseFactory;
 import org.verisign.joid.ServerInfo;
 import org.verisign.joid.SimpleRegistration;
+import org.verisign.joid.INonceClaimingStore;
 import org.verisign.joid.IStore;
 import org.verisign.joid.StoreFactory;
+import org.verisign.joid.StoreReaper;
 import org.verisign.joid.extension.PapeRequest;
 import org.verisign.joid.extension.PapeResponse;
+import org.verisign.joid.consumer.AssociationCache;
+import org.verisign.joid.consumer.CachingDiscoverer;
+import org.verisign.joid.consumer.ServerAndDelegate;
+import org.verisign.joid.consumer.Transport;
+import org.verisign.joid.consumer.TransportResponse;
+import org.verisign.joid.handlers.EncodingMode;
+import org.verisign.joid.handlers.Encoders;
+import org.verisign.joid.metrics.Instrumentation;
+import org.verisign.joid.metrics.MetricsRegistry;
+import org.verisign.joid.metrics.NoopMetrics;
+import org.verisign.joid.metrics.Timer;
 import org.verisign.joid.server.Association;
+import org.verisign.joid.server.CachingStore;
+import org.verisign.joid.server.ConcurrentMemoryStore;
+import org.verisign.joid.server.InstrumentedStore;
+import org.verisign.joid.server.MappedNonceLog;
+import org.verisign.joid.server.MappedNonceStore;
 import org.verisign.joid.server.MemoryStore;
+import org.verisign.joid.server.MemoryUserManager;
+import org.verisign.joid.server.OpenIdServlet;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.math.BigInteger;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -53,120 +88,1362 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.tsik.datatypes.DateTime;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 
-public class AllTests extends TestCase
-{
-    private long defaultLifespan;
+public class AllTests extends TestCase
+{
+    private long defaultLifespan;
+
+
+    public AllTests( String name )
+    {
+        super( name );
+    }
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        defaultLifespan = MemoryStore.DEFAULT_LIFESPAN;
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+    }
+
+    private static Crypto crypto = new Crypto();
+    private static IStore store = StoreFactory.getInstance( MemoryStore.class.getName() );
+    private static ServerInfo serverInfo = new ServerInfo( "http://example.com",
+                              store, crypto );
+
+
+    public static Test suite()
+    {
+        return new TestSuite( AllTests.class );
+    }
+
+    BigInteger p = DiffieHellman.DEFAULT_MODULUS;
+    BigInteger g = DiffieHellman.DEFAULT_GENERATOR;
+
+
+    private AssociationResponse associate( DiffieHellman dh )
+        throws Exception
+    {
+        BigInteger publicKey = dh.getPublicKey();
+
+        String s = "openid.mode=associate&openid.assoc_type=HMAC-SHA1"
+            + "&openid.session_type=DH-SHA1&openid.dh_consumer_public=";
+
+        s += URLEncoder.encode( Crypto.convertToString( publicKey ), "UTF-8" );
+
+        Request req = RequestFactory.parse( s );
+        assertTrue( req instanceof AssociationRequest );
+        Response resp = req.processUsing( serverInfo );
+        assertTrue( resp instanceof AssociationResponse );
+        s = resp.toUrlString();
+
+        Response resp2 = ResponseFactory.parse( s );
+        assertTrue( resp2 instanceof AssociationResponse );
+        AssociationResponse ar = ( AssociationResponse ) resp;
+        return ar;
+    }
+
+
+    private IAssociation getAssociation( String handle ) throws Exception {
+        IStore store = serverInfo.getStore();
+        IAssociation assoc = store.findAssociation(handle);
+        return assoc;
+    }
+
+
+    private void setAssociationSharing( String handle, boolean shared ) throws Exception {
+        IAssociation assoc = getAssociation(handle);
+        store.deleteAssociation(assoc);
+        assoc.setShared(shared);
+        store.saveAssociation(assoc);
+    }
+
+
+    @org.junit.Test
+    public void testUrlToMap() throws Exception
+    {
+        String testStr = "foo=bar&baz=qux";
+        Map<String, String> map = MessageParser.urlEncodedToMap( testStr );
+
+        assertTrue( map.size() == 2 );
+        assertTrue( ( map.get( "foo" ) ).equals( "bar" ) );
+        assertTrue( ( map.get( "baz" ) ).equals( "qux" ) );
+        testStr = "foo=bar;baz=qux";
+        map = MessageParser.urlEncodedToMap( testStr );
+        assertTrue( map.size() == 2 );
+        assertTrue( ( map.get( "foo" ) ).equals( "bar" ) );
+        assertTrue( ( map.get( "baz" ) ).equals( "qux" ) );
+        testStr = "foo=bar?baz&baz=qux";
+        map = MessageParser.urlEncodedToMap( testStr );
+        assertTrue( map.size() == 2 );
+        assertTrue( ( map.get( "foo" ) ).equals( "bar?baz" ) );
+        assertTrue( ( map.get( "baz" ) ).equals( "qux" ) );
+    }
+
+
+    public void testUrlToMapEqualsAndEncoding() throws Exception
+    {
+        String testStr = "openid.dh_consumer_public=MTIz%2B%3D%3D&raw=YWJj==&"
+            + "a+b=c%20d;empty=&bare&&x=1=2";
+        Map<String, String> map = MessageParser.urlEncodedToMap( testStr );
+
+        assertEquals( 6, map.size() );
+        assertEquals( "MTIz+==", map.get( "openid.dh_consumer_public" ) );
+        assertEquals( "YWJj==", map.get( "raw" ) );
+        assertEquals( "c d", map.get( "a b" ) );
+        assertTrue( map.containsKey( "empty" ) );
+        assertNull( map.get( "empty" ) );
+        assertTrue( map.containsKey( "bare" ) );
+        assertNull( map.get( "bare" ) );
+        assertEquals( "1=2", map.get( "x" ) );
+    }
+
+
+    public void testStreamedEncodingMatchesStrings() throws Exception
+    {
+        DiffieHellman dh = new DiffieHellman( p, g );
+        AssociationResponse ar = associate( dh );
+
+        StringWriter out = new StringWriter();
+        Encoders.encode( ar, EncodingMode.POST_STRING, out );
+        String post = out.toString();
+        assertEquals( ar.toPostString(), post );
+        assertTrue( post.endsWith( "\n" ) );
+        assertFalse( post.endsWith( "\n\n" ) );
+
+        AssociationResponse parsed = ( AssociationResponse ) ResponseFactory.parse( post );
+        assertEquals( ar.getAssociationHandle(), parsed.getAssociationHandle() );
+        assertEquals( ar.getDhServerPublic(), parsed.getDhServerPublic() );
+        assertTrue( Arrays.equals( ar.getEncryptedMacKey(), parsed.getEncryptedMacKey() ) );
+
+        Map<String, String> url = MessageParser.urlEncodedToMap( ar.toUrlString() );
+        assertEquals( ar.getAssociationHandle(), url.get( "assoc_handle" ) );
+    }
+
+
+    public void testParseResponseFromStream() throws Exception
+    {
+        DiffieHellman dh = new DiffieHellman( p, g );
+        AssociationResponse ar = associate( dh );
+
+        Response parsed = ResponseFactory.parse( new StringReader( ar.toPostString() ) );
+        assertTrue( parsed instanceof AssociationResponse );
+        AssociationResponse streamed = ( AssociationResponse ) parsed;
+        assertEquals( ar.getAssociationHandle(), streamed.getAssociationHandle() );
+        assertEquals( ar.getDhServerPublic(), streamed.getDhServerPublic() );
+        assertEquals( ar.getExpiresIn(), streamed.getExpiresIn() );
+
+        try
+        {
+            ResponseFactory.parse( new StringReader( "foo:bar\n" ) );
+            fail( "should not parse an unknown response" );
+        }
+        catch ( OpenIdException expected )
+        {
+        }
+    }
+
+
+    public void testDiscoveryNormalization()
+    {
+        assertEquals( "http://example.com/", CachingDiscoverer.normalize( " Example.COM " ) );
+        assertEquals( "https://example.com/Bob", CachingDiscoverer.normalize( "HTTPS://Example.com/Bob#frag" ) );
+        assertEquals( "http://example.com?a=/B", CachingDiscoverer.normalize( "http://EXAMPLE.com?a=/B" ) );
+        assertEquals( "=bob", CachingDiscoverer.normalize( "xri://=bob" ) );
+    }
+
+
+    public void testDiscoveryIsCachedAndShared() throws Exception
+    {
+        final AtomicInteger fetches = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch( 1 );
+        Transport transport = new Transport()
+        {
+            public Response send( Request req, String dest )
+            {
+                throw new UnsupportedOperationException();
+            }
+
+
+            public TransportResponse get( String url ) throws IOException
+            {
+                fetches.incrementAndGet();
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IOException( e.toString() );
+                }
+                if ( url.indexOf( "dead" ) >= 0 )
+                {
+                    throw new IOException( "connection refused" );
+                }
+                return htmlPage( "<link rel=\"openid.server\" href=\"http://op.example.com/\"/>", null );
+            }
+        };
+        final CachingDiscoverer discoverer = new CachingDiscoverer( transport );
+
+        final ServerAndDelegate[] found = new ServerAndDelegate[4];
+        Thread[] threads = new Thread[found.length];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int n = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        found[n] = discoverer.findIdServer( "Example.com" );
+                    }
+                    catch ( Exception e )
+                    {
+                        // leaves found[n] null
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep( 200 );
+        release.countDown();
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+            assertEquals( "http://op.example.com/", found[i].getServer() );
+        }
+
+        discoverer.findIdServer( "http://example.com/" );
+        assertEquals( 1, fetches.get() );
+
+        Exception[] failures = new Exception[2];
+        for ( int i = 0; i < failures.length; i++ )
+        {
+            try
+            {
+                discoverer.findIdServer( "http://dead.example.com/" );
+                fail( "discovery of a dead page should fail" );
+            }
+            catch ( Exception expected )
+            {
+                failures[i] = expected;
+            }
+        }
+        assertEquals( 2, fetches.get() );
+        assertEquals( failures[0].getClass(), failures[1].getClass() );
+        assertEquals( failures[0].getMessage(), failures[1].getMessage() );
+    }
+
+
+    public void testDiscoveryHonoursNoCache() throws Exception
+    {
+        final AtomicInteger fetches = new AtomicInteger();
+        CachingDiscoverer discoverer = new CachingDiscoverer( new Transport()
+        {
+            public Response send( Request req, String dest )
+            {
+                throw new UnsupportedOperationException();
+            }
+
+
+            public TransportResponse get( String url )
+            {
+                fetches.incrementAndGet();
+                return htmlPage( "<link rel=\"openid.server\" href=\"http://op/\"/>", "private, no-cache" );
+            }
+        } );
+        discoverer.findIdServer( "http://nocache.example.com/" );
+        discoverer.findIdServer( "http://nocache.example.com/" );
+        assertEquals( 2, fetches.get() );
+        assertEquals( 0, discoverer.size() );
+    }
+
+
+    private static TransportResponse htmlPage( final String html, final String cacheControl )
+    {
+        return new TransportResponse()
+        {
+            public int getStatus()
+            {
+                return 200;
+            }
+
+
+            public String getHeader( String name )
+            {
+                return "Cache-Control".equals( name ) ? cacheControl : null;
+            }
+
+
+            public InputStream getBody()
+            {
+                return new ByteArrayInputStream( html.getBytes() );
+            }
+
+
+            public void release()
+            {
+            }
+        };
+    }
+
+
+    public void testConsumerAssociationCache() throws Exception
+    {
+        final AtomicInteger associations = new AtomicInteger();
+        AssociationCache cache = new AssociationCache( new Transport()
+        {
+            public Response send( Request req, String dest ) throws OpenIdException
+            {
+                associations.incrementAndGet();
+                Response resp = req.processUsing( serverInfo );
+                return ResponseFactory.parse( resp.toPostString() );
+            }
+
+
+            public TransportResponse get( String url )
+            {
+                throw new UnsupportedOperationException();
+            }
+        } );
+
+        String server = "http://op.example.com/";
+        AssociationCache.Entry entry = cache.getCurrent( server );
+        assertSame( entry, cache.getCurrent( server ) );
+        assertEquals( 1, associations.get() );
+
+        IAssociation a = store.findAssociation( entry.getHandle() );
+        assertTrue( Arrays.equals( a.getMacKey(), entry.getSigningKey().getEncoded() ) );
+        assertSame( entry, cache.find( server, entry.getHandle() ) );
+        assertNull( cache.find( "http://other.example.com/", entry.getHandle() ) );
+
+        cache.remove( server, entry.getHandle() );
+        assertNull( cache.find( server, entry.getHandle() ) );
+        AssociationCache.Entry renewed = cache.getCurrent( server );
+        assertFalse( entry.getHandle().equals( renewed.getHandle() ) );
+        assertEquals( 2, associations.get() );
+
+    }
+
+
+    /**
+     * A response downgrading the requested Diffie-Hellman session, or
+     * lacking its parts, is refused rather than used.
+     */
+    public void testConsumerAssociationRefusesDowngrades() throws Exception
+    {
+        final List<String[]> tampering = new ArrayList<String[]>();
+        AssociationCache cache = new AssociationCache( new Transport()
+        {
+            public Response send( Request req, String dest ) throws OpenIdException
+            {
+                AssociationResponse genuine = ( AssociationResponse )
+                    ResponseFactory.parse( req.processUsing( serverInfo ).toPostString() );
+                Map<String,String> map = genuine.toMap();
+                String[] change = tampering.get( 0 );
+                for ( int i = 0; i < change.length; i += 2 )
+                {
+                    if ( change[i + 1] == null )
+                    {
+                        map.remove( change[i] );
+                    }
+                    else
+                    {
+                        map.put( change[i], change[i + 1] );
+                    }
+                }
+                return new AssociationResponse( map );
+            }
+
+
+            public TransportResponse get( String url )
+            {
+                throw new UnsupportedOperationException();
+            }
+        } );
+
+        String macKey = Crypto.convertToString( new byte[20] );
+        String[][] downgrades = {
+            { AssociationResponse.OPENID_SESSION_TYPE, SessionType.NO_ENCRYPTION.toString(),
+              AssociationResponse.OPENID_ENC_MAC_KEY, null,
+              AssociationResponse.OPENID_DH_SERVER_PUBLIC, null,
+              AssociationResponse.OPENID_MAC_KEY, macKey },
+            { AssociationResponse.OPENID_SESSION_TYPE, null },
+            { AssociationResponse.OPENID_ENC_MAC_KEY, null,
+              AssociationResponse.OPENID_MAC_KEY, macKey },
+            { AssociationResponse.OPENID_DH_SERVER_PUBLIC, null },
+        };
+        for ( int i = 0; i < downgrades.length; i++ )
+        {
+            tampering.clear();
+            tampering.add( downgrades[i] );
+            try
+            {
+                cache.getCurrent( "http://op" + i + ".example.com/" );
+                fail( "downgrade " + i + " should be refused" );
+            }
+            catch ( OpenIdException expected )
+            {
+            }
+        }
+
+        tampering.clear();
+        tampering.add( new String[0] );
+        assertNotNull( cache.getCurrent( "http://op.example.com/" ) );
+    }
+
+
+    public void testConsumerAssociationRenewal() throws Exception
+    {
+        ConcurrentMemoryStore shortLived = new ConcurrentMemoryStore();
+        shortLived.setAssociationLifetime( 2 );
+        final ServerInfo op = new ServerInfo( "http://example.com", shortLived, crypto );
+        AssociationCache cache = new AssociationCache( new Transport()
+        {
+            public Response send( Request req, String dest ) throws OpenIdException
+            {
+                return ResponseFactory.parse( req.processUsing( op ).toPostString() );
+            }
+
+
+            public TransportResponse get( String url )
+            {
+                throw new UnsupportedOperationException();
+            }
+        } );
+        cache.setRenewalMargin( 1 );
+
+        String server = "http://op.example.com/";
+        AssociationCache.Entry first = cache.getCurrent( server );
+        assertSame( first, cache.getCurrent( server ) );
+
+        // within the renewal margin the next caller renews, keeping the old handle valid
+        Thread.sleep( 1100 );
+        AssociationCache.Entry renewed = cache.getCurrent( server );
+        assertNotSame( first, renewed );
+        assertSame( first, cache.find( server, first.getHandle() ) );
+        assertSame( renewed, cache.getCurrent( server ) );
+    }
+
+
+    public void testAssociationLifeLength() throws Exception
+    {
+        IAssociation a = new Association();
+        ( ( Association ) a ).setIssuedDate( new Date() );
+        ( ( Association ) a ).setLifetime( new Long( 1 ) );
+        assertFalse( a.hasExpired() );
+        Thread.sleep( 1200 );
+        assertTrue( a.hasExpired() );
+    }
+
+
+    public void testMemoryStoreEvictsExpired() throws Exception
+    {
+        ConcurrentMemoryStore ms = new ConcurrentMemoryStore();
+        ms.setNonceLifetime( 1 );
+
+        Association a = new Association();
+        a.setHandle( Crypto.generateHandle() );
+        a.setIssuedDate( new Date() );
+        a.setLifetime( new Long( 1 ) );
+        ms.saveAssociation( a );
+        INonce n = ms.generateNonce( "2011-03-02T02:02:02Zabcd" );
+        ms.saveNonce( n );
+
+        assertSame( a, ms.findAssociation( a.getHandle() ) );
+        assertSame( n, ms.findNonce( n.getNonce() ) );
+        Thread.sleep( 1200 );
+        // lookups skip expired items, and the next write evicts them
+        assertNull( ms.findAssociation( a.getHandle() ) );
+        assertNull( ms.findNonce( n.getNonce() ) );
+        assertEquals( 1, ms.getAssociationCount() );
+        assertTrue( ms.claimNonce( n.getNonce() ) );
+        assertEquals( 0, ms.getAssociationCount() );
+        assertEquals( 1, ms.getNonceCount() );
+
+        // a deleted association can be saved again
+        Association b = new Association();
+        b.setHandle( Crypto.generateHandle() );
+        b.setIssuedDate( new Date() );
+        b.setLifetime( new Long( 60 ) );
+        ms.saveAssociation( b );
+        ms.deleteAssociation( b );
+        assertNull( ms.findAssociation( b.getHandle() ) );
+        ms.saveAssociation( b );
+        ms.evictExpired();
+        assertSame( b, ms.findAssociation( b.getHandle() ) );
+    }
+
+
+    public void testMemoryStoreClaimsNonceOnce() throws Exception
+    {
+        final ConcurrentMemoryStore ms = new ConcurrentMemoryStore();
+        final String nonce = "2011-03-02T02:02:02Zclaim";
+        final AtomicInteger winners = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if ( ms.claimNonce( nonce ) )
+                        {
+                            winners.incrementAndGet();
+                        }
+                    }
+                    catch ( OpenIdException e )
+                    {
+                        // counted as a loss
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+        assertEquals( 1, winners.get() );
+        assertNotNull( ms.findNonce( nonce ) );
+        assertFalse( ms.claimNonce( nonce ) );
+    }
+
+
+    public void testStoreReaperPurgesInChunks() throws Exception
+    {
+        ConcurrentMemoryStore ms = new ConcurrentMemoryStore();
+        ms.setNonceLifetime( 86400 );
+        long now = System.currentTimeMillis();
+        for ( int i = 0; i < 10; i++ )
+        {
+            Association a = new Association();
+            a.setHandle( Crypto.generateHandle() );
+            a.setIssuedDate( new Date( now ) );
+            a.setLifetime( new Long( i < 7 ? 5 : 60 ) );
+            ms.saveAssociation( a );
+
+            INonce n = ms.generateNonce( "2011-03-02T02:02:02Z" + i );
+            n.setCheckedDate( new Date( now - ( i < 4 ? 7200000 : 0 ) ) );
+            ms.saveNonce( n );
+        }
+
+        StoreReaper reaper = new StoreReaper( ms );
+        reaper.setChunkSize( 2 );
+        reaper.setRunLimit( 5 );
+        Date later = new Date( now + 10000 );
+        assertEquals( 5, reaper.purgeAssociations( later ) );
+        assertEquals( 2, reaper.purgeAssociations( later ) );
+        assertEquals( 3, ms.getAssociationCount() );
+
+        reaper.run();
+        assertEquals( 6, ms.getNonceCount() );
+        assertEquals( 3, ms.getAssociationCount() );
+    }
+
+
+    public void testCachingStoreReadsAndWritesThrough() throws Exception
+    {
+        final AtomicInteger lookups = new AtomicInteger();
+        ConcurrentMemoryStore backing = new ConcurrentMemoryStore()
+        {
+            public IAssociation findAssociation( String handle ) throws OpenIdException
+            {
+                lookups.incrementAndGet();
+                return super.findAssociation( handle );
+            }
+        };
+        Association a = new Association();
+        a.setHandle( Crypto.generateHandle() );
+        a.setIssuedDate( new Date() );
+        a.setLifetime( new Long( 60 ) );
+        backing.saveAssociation( a );
+
+        CachingStore cs = new CachingStore( backing );
+        assertSame( a, cs.findAssociation( a.getHandle() ) );
+        assertSame( a, cs.findAssociation( a.getHandle() ) );
+        assertEquals( 1, lookups.get() );
+
+        Association b = new Association();
+        b.setHandle( Crypto.generateHandle() );
+        b.setIssuedDate( new Date() );
+        b.setLifetime( new Long( 60 ) );
+        cs.saveAssociation( b );
+        assertSame( b, cs.findAssociation( b.getHandle() ) );
+        assertSame( b, backing.findAssociation( b.getHandle() ) );
+        assertEquals( 2, lookups.get() );
+
+        cs.deleteAssociation( a );
+        assertNull( cs.findAssociation( a.getHandle() ) );
+        assertNull( cs.findAssociation( null ) );
+
+        cs.setMaxSize( 1 );
+        cs.findAssociation( b.getHandle() );
+        assertTrue( cs.size() <= 1 );
+
+        assertTrue( cs.claimNonce( "2011-03-02T02:02:02Zcache" ) );
+        assertFalse( cs.claimNonce( "2011-03-02T02:02:02Zcache" ) );
+    }
+
+
+    /**
+     * A lookup that read an association just before it was deleted must not
+     * cache it again.
+     */
+    public void testCachingStoreDoesNotCacheWhatADeleteRacedWith() throws Exception
+    {
+        final CountDownLatch read = new CountDownLatch( 1 );
+        final CountDownLatch deleted = new CountDownLatch( 1 );
+        final ConcurrentMemoryStore backing = new ConcurrentMemoryStore()
+        {
+            public IAssociation findAssociation( String handle ) throws OpenIdException
+            {
+                IAssociation found = super.findAssociation( handle );
+                if ( read.getCount() > 0 )
+                {
+                    read.countDown();
+                    try
+                    {
+                        deleted.await();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return found;
+            }
+        };
+        final Association a = new Association();
+        a.setHandle( Crypto.generateHandle() );
+        a.setIssuedDate( new Date() );
+        a.setLifetime( new Long( 60 ) );
+        backing.saveAssociation( a );
+
+        final CachingStore cs = new CachingStore( backing );
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<IAssociation> lookup = executor.submit( new Callable<IAssociation>()
+            {
+                public IAssociation call() throws Exception
+                {
+                    return cs.findAssociation( a.getHandle() );
+                }
+            } );
+            assertTrue( read.await( 5, TimeUnit.SECONDS ) );
+            cs.deleteAssociation( a );
+            deleted.countDown();
+            assertSame( a, lookup.get( 5, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals( 0, cs.size() );
+        assertNull( cs.findAssociation( a.getHandle() ) );
+
+        // saving the handle again caches it as usual
+        cs.saveAssociation( a );
+        assertEquals( 1, cs.size() );
+    }
+
+
+    public void testMappedNonceLogSurvivesReopening() throws Exception
+    {
+        File file = File.createTempFile( "joid-nonces", ".log" );
+        file.delete();
+        try
+        {
+            long now = System.currentTimeMillis();
+            MappedNonceLog log = new MappedNonceLog( file, 64, 60 );
+            MappedNonceStore store = new MappedNonceStore( new ConcurrentMemoryStore(), log );
+            assertTrue( store.claimNonce( "2011-03-02T02:02:02Zmapped" ) );
+            assertFalse( store.claimNonce( "2011-03-02T02:02:02Zmapped" ) );
+            assertNotNull( store.findNonce( "2011-03-02T02:02:02Zmapped" ) );
+            assertNull( store.findNonce( "2011-03-02T02:02:02Zother" ) );
+            store.close();
+
+            log = new MappedNonceLog( file, 0, 60 );
+            assertEquals( 64, log.getCapacity() );
+            assertFalse( log.claim( "2011-03-02T02:02:02Zmapped", now ) );
+            // out of the window the slot is free again
+            assertTrue( log.claim( "2011-03-02T02:02:02Zmapped", now + 61000 ) );
+
+            // a full table refuses rather than forgets
+            int claimed = 0;
+            try
+            {
+                for ( int i = 0; i < 1000; i++ )
+                {
+                    assertTrue( log.claim( "2011-03-02T02:02:02Z" + i, now + 61000 ) );
+                    claimed++;
+                }
+                fail( "table should be full" );
+            }
+            catch ( OpenIdException expected )
+            {
+                assertTrue( claimed < 64 );
+            }
+            for ( int i = 0; i < claimed; i++ )
+            {
+                assertFalse( log.claim( "2011-03-02T02:02:02Z" + i, now + 61000 ) );
+            }
+            log.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+
+    public void testMappedNonceLogRejectsDamagedFiles() throws Exception
+    {
+        File file = File.createTempFile( "joid-nonces", ".log" );
+        File other = File.createTempFile( "joid-nonces", ".log" );
+        file.delete();
+        other.delete();
+        try
+        {
+            new MappedNonceLog( file, 64, 60 ).close();
+            new MappedNonceLog( other, 64, 60 ).close();
+            // each log hashes with its own key
+            assertFalse( Arrays.equals( readBytes( file, 16, 16 ), readBytes( other, 16, 16 ) ) );
+
+            try
+            {
+                new MappedNonceLog( file, 1024, 60 );
+                fail( "a log of another capacity must not be opened" );
+            }
+            catch ( OpenIdException expected )
+            {
+            }
+
+            RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            raf.setLength( raf.length() - 16 );
+            raf.close();
+            try
+            {
+                new MappedNonceLog( file, 0, 60 );
+                fail( "a truncated log must not be opened" );
+            }
+            catch ( OpenIdException expected )
+            {
+            }
+
+            raf = new RandomAccessFile( other, "rw" );
+            raf.seek( 12 );
+            raf.writeInt( Integer.MAX_VALUE / 256 );
+            raf.close();
+            try
+            {
+                new MappedNonceLog( other, 0, 60 );
+                fail( "a log whose header does not match its size must not be opened" );
+            }
+            catch ( OpenIdException expected )
+            {
+            }
+        }
+        finally
+        {
+            file.delete();
+            other.delete();
+        }
+    }
+
+
+    private static byte[] readBytes( File file, int offset, int length ) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try
+        {
+            byte[] b = new byte[length];
+            raf.seek( offset );
+            raf.readFully( b );
+            return b;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    public void testMetricsRecordRequestsStoresAndCrypto() throws Exception
+    {
+        MetricsRegistry registry = new MetricsRegistry();
+        Instrumentation.setMetrics( registry );
+        try
+        {
+            ServerInfo si = new ServerInfo( "http://example.com",
+                new InstrumentedStore( new ConcurrentMemoryStore() ), crypto );
+            OpenId openId = new OpenId( si );
+            Request req = RequestFactory.parse( Utils.readFileAsString( "2.txt" ) );
+            openId.handleRequest( req );
+
+            assertEquals( 1, registry.getCount( "request.associate" ) );
+            assertEquals( 1, registry.getCount( "store.generateAssociation" ) );
+            assertEquals( 0, registry.getTimer( "request.associate" ).getFailures() );
+            assertTrue( registry.getReport().indexOf( "request.associate count=1" ) >= 0 );
+
+            try
+            {
+                new InstrumentedStore( new ConcurrentMemoryStore() ).saveNonce( null );
+                fail( "a null nonce must not be saved" );
+            }
+            catch ( RuntimeException expected )
+            {
+            }
+            assertEquals( 1, registry.getTimer( "store.saveNonce" ).getFailures() );
+
+            registry.increment( "custom" );
+            registry.increment( "custom" );
+            assertEquals( 2, registry.getCount( "custom" ) );
+            registry.reset();
+            assertEquals( 0, registry.getCount( "custom" ) );
+            assertEquals( 0, registry.getCount( "request.associate" ) );
+        }
+        finally
+        {
+            Instrumentation.setMetrics( new NoopMetrics() );
+        }
+    }
+
+
+    public void testMetricsRegistrationReplacesAStaleRegistry() throws Exception
+    {
+        String objectName = "org.verisign.joid:type=Metrics,name=test";
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName( objectName );
+        MetricsRegistry stale = new MetricsRegistry();
+        MetricsRegistry current = new MetricsRegistry();
+        current.increment( "custom" );
+        stale.register( objectName );
+        try
+        {
+            current.register( objectName );
+            Object count = server.invoke( name, "getCount", new Object[] { "custom" },
+                new String[] { String.class.getName() } );
+            assertEquals( new Long( 1 ), count );
+        }
+        finally
+        {
+            current.unregister( objectName );
+        }
+        assertFalse( server.isRegistered( name ) );
+        // unregistering what is already gone is not an error
+        current.unregister( objectName );
+    }
+
+
+    public void testMetricsTimerPercentiles()
+    {
+        Timer timer = new Timer();
+        for ( int i = 1; i <= 1000; i++ )
+        {
+            timer.record( i * 1000L, true );
+        }
+        assertEquals( 1000, timer.getCount() );
+        assertEquals( 1000, timer.getMax() );
+        long p50 = timer.getPercentile( 0.5 );
+        assertTrue( "p50=" + p50, p50 >= 500 && p50 <= 500 * 1.125 );
+        long p99 = timer.getPercentile( 0.99 );
+        assertTrue( "p99=" + p99, p99 >= 990 && p99 <= 1000 );
+        assertEquals( 5, timer.getPercentile( 0.005 ) );
+    }
+
+
+    public void testAsyncProcessingCompletesOffTheCallingThread() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            OpenId openId = new OpenId( new ServerInfo( "http://example.com",
+                new ConcurrentMemoryStore(), crypto ) );
+            final Thread caller = Thread.currentThread();
+            final List<Object> outcomes = Collections.synchronizedList( new ArrayList<Object>() );
+            final CountDownLatch done = new CountDownLatch( 2 );
+            ResponseCallback callback = new ResponseCallback()
+            {
+                public void completed( Response response )
+                {
+                    outcomes.add( Thread.currentThread() == caller ? "caller" : response );
+                    done.countDown();
+                }
+
+
+                public void failed( Throwable t )
+                {
+                    outcomes.add( t );
+                    done.countDown();
+                }
+            };
+
+            Map<String, String> map = MessageParser.urlEncodedToMap( Utils.readFileAsString( "2.txt" ) );
+            Future<Response> future = openId.processRequest( RequestFactory.parse( map ), executor, callback );
+            AssociationResponse ar = ( AssociationResponse ) future.get( 10, TimeUnit.SECONDS );
+            assertNotNull( ar.getAssociationHandle() );
+
+            IStore failing = new ConcurrentMemoryStore()
+            {
+                public IAssociation generateAssociation( AssociationRequest req, Crypto c )
+                    throws OpenIdException
+                {
+                    throw new OpenIdException( "store down" );
+                }
+            };
+            future = new OpenId( new ServerInfo( "http://example.com", failing, crypto ) )
+                .processRequest( RequestFactory.parse( map ), executor, callback );
+            try
+            {
+                future.get( 10, TimeUnit.SECONDS );
+                fail( "the store failure must surface" );
+            }
+            catch ( ExecutionException expected )
+            {
+                assertTrue( expected.getCause() instanceof OpenIdException );
+            }
+
+            assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+            assertEquals( 2, outcomes.size() );
+            assertSame( ar, outcomes.get( 0 ) );
+            assertEquals( "store down", ( ( Throwable ) outcomes.get( 1 ) ).getMessage() );
+
+            assertNotNull( ResponseFactory.parse( openId.handleRequest( map ) ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    public void testCancelledRequestIsReportedOnTheCancellingThread() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch( 1 );
+        try
+        {
+            // keeps the only processing thread busy, so the request stays queued
+            executor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } );
+            final List<Thread> threads = Collections.synchronizedList( new ArrayList<Thread>() );
+            final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+            ResponseCallback callback = new ResponseCallback()
+            {
+                public void completed( Response response )
+                {
+                    fail( "a cancelled request must not complete" );
+                }
+
+
+                public void failed( Throwable t )
+                {
+                    threads.add( Thread.currentThread() );
+                    failures.add( t );
+                }
+            };
+            OpenId openId = new OpenId( new ServerInfo( "http://example.com",
+                new ConcurrentMemoryStore(), crypto ) );
+            Future<Response> future = openId.processRequest(
+                RequestFactory.parse( Utils.readFileAsString( "2.txt" ) ), executor, callback );
+            assertTrue( future.cancel( false ) );
+
+            assertEquals( 1, threads.size() );
+            assertSame( Thread.currentThread(), threads.get( 0 ) );
+            assertTrue( failures.get( 0 ) instanceof CancellationException );
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * A store whose associations wait until the test releases them, and
+     * then fail with {@link #failure} if it is set.
+     */
+    public static class SlowStore extends ConcurrentMemoryStore
+    {
+        static volatile CountDownLatch release;
+        static volatile Exception failure;
+        static final AtomicInteger started = new AtomicInteger();
+        static final AtomicInteger finished = new AtomicInteger();
 
 
-    public AllTests( String name )
-    {
-        super( name );
+        static void reset( int count )
+        {
+            release = new CountDownLatch( count );
+            failure = null;
+            started.set( 0 );
+            finished.set( 0 );
+        }
+
+
+        public IAssociation generateAssociation( AssociationRequest req, Crypto c ) throws OpenIdException
+        {
+            started.incrementAndGet();
+            try
+            {
+                if ( !release.await( 10, TimeUnit.SECONDS ) )
+                {
+                    throw new OpenIdException( "never released" );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                throw new OpenIdException( "interrupted" );
+            }
+            if ( failure instanceof OpenIdException )
+            {
+                throw ( OpenIdException ) failure;
+            }
+            if ( failure != null )
+            {
+                throw ( RuntimeException ) failure;
+            }
+            IAssociation a = super.generateAssociation( req, c );
+            finished.incrementAndGet();
+            return a;
+        }
     }
 
 
-    protected void setUp() throws Exception
+    /**
+     * Records what the servlet does to a response.
+     */
+    private static class RecordedResponse implements InvocationHandler
     {
-        super.setUp();
-        defaultLifespan = MemoryStore.DEFAULT_LIFESPAN;
+        volatile int status = HttpServletResponse.SC_OK;
+        volatile String message;
+        final Map<String, String> headers = Collections.synchronizedMap( new HashMap<String, String>() );
+        final StringWriter body = new StringWriter();
+
+
+        public Object invoke( Object proxy, Method method, Object[] args )
+        {
+            String name = method.getName();
+            if ( "setHeader".equals( name ) )
+            {
+                headers.put( ( String ) args[0], ( String ) args[1] );
+            }
+            else if ( "setStatus".equals( name ) || "sendError".equals( name ) )
+            {
+                status = ( ( Integer ) args[0] ).intValue();
+                message = args.length > 1 ? ( String ) args[1] : null;
+            }
+            else if ( "getWriter".equals( name ) )
+            {
+                return new PrintWriter( body );
+            }
+            return null;
+        }
+
+
+        HttpServletResponse response()
+        {
+            return stub( HttpServletResponse.class, this );
+        }
     }
 
 
-    protected void tearDown() throws Exception
+    private static <T> T stub( Class<T> type, InvocationHandler handler )
     {
-        super.tearDown();
+        return type.cast( Proxy.newProxyInstance( AllTests.class.getClassLoader(),
+            new Class[] { type }, handler ) );
     }
 
-    private static Crypto crypto = new Crypto();
-    private static IStore store = StoreFactory.getInstance( MemoryStore.class.getName() );
-    private static ServerInfo serverInfo = new ServerInfo( "http://example.com",
-                              store, crypto );
-
 
-    public static Test suite()
+    private static HttpServletRequest servletRequest()
     {
-        return new TestSuite( AllTests.class );
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final HttpSession session = stub( HttpSession.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                if ( "getAttribute".equals( method.getName() ) )
+                {
+                    return attributes.get( args[0] );
+                }
+                if ( "setAttribute".equals( method.getName() ) )
+                {
+                    attributes.put( ( String ) args[0], args[1] );
+                }
+                return null;
+            }
+        } );
+        return stub( HttpServletRequest.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                return "getSession".equals( method.getName() ) ? session : null;
+            }
+        } );
     }
 
-    BigInteger p = DiffieHellman.DEFAULT_MODULUS;
-    BigInteger g = DiffieHellman.DEFAULT_GENERATOR;
 
-
-    private AssociationResponse associate( DiffieHellman dh )
-        throws Exception
+    private static OpenIdServlet newServlet( String... initParameters ) throws Exception
     {
-        BigInteger publicKey = dh.getPublicKey();
+        final Map<String, String> params = new HashMap<String, String>();
+        params.put( "storeClassName", SlowStore.class.getName() );
+        params.put( "userManagerClassName", MemoryUserManager.class.getName() );
+        params.put( "endPointUrl", "http://example.com" );
+        for ( int i = 0; i < initParameters.length; i += 2 )
+        {
+            params.put( initParameters[i], initParameters[i + 1] );
+        }
+        OpenIdServlet servlet = new OpenIdServlet();
+        servlet.init( stub( ServletConfig.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                if ( "getInitParameter".equals( method.getName() ) )
+                {
+                    return params.get( args[0] );
+                }
+                if ( "getInitParameterNames".equals( method.getName() ) )
+                {
+                    return Collections.enumeration( params.keySet() );
+                }
+                return "getServletName".equals( method.getName() ) ? "openid" : null;
+            }
+        } ) );
+        return servlet;
+    }
 
-        String s = "openid.mode=associate&openid.assoc_type=HMAC-SHA1"
-            + "&openid.session_type=DH-SHA1&openid.dh_consumer_public=";
 
-        s += URLEncoder.encode( Crypto.convertToString( publicKey ), "UTF-8" );
+    /**
+     * Starts a thread sending the query to the servlet.
+     */
+    private static Thread send( final OpenIdServlet servlet, final String query,
+        final RecordedResponse recorded )
+    {
+        Thread t = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    servlet.doQuery( query, servletRequest(), recorded.response() );
+                }
+                catch ( Exception e )
+                {
+                    recorded.status = -1;
+                    recorded.message = e.toString();
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
 
-        Request req = RequestFactory.parse( s );
-        assertTrue( req instanceof AssociationRequest );
-        Response resp = req.processUsing( serverInfo );
-        assertTrue( resp instanceof AssociationResponse );
-        s = resp.toUrlString();
 
-        Response resp2 = ResponseFactory.parse( s );
-        assertTrue( resp2 instanceof AssociationResponse );
-        AssociationResponse ar = ( AssociationResponse ) resp;
-        return ar;
+    private static void awaitCondition( String what, Callable<Boolean> condition ) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( !condition.call().booleanValue() )
+        {
+            assertTrue( what, System.currentTimeMillis() < deadline );
+            Thread.sleep( 5 );
+        }
     }
 
 
-    private IAssociation getAssociation( String handle ) throws Exception {
-        IStore store = serverInfo.getStore();
-        IAssociation assoc = store.findAssociation(handle);
-        return assoc;
+    public void testServletTurnsAwayRequestsOverItsQueue() throws Exception
+    {
+        SlowStore.reset( 1 );
+        OpenIdServlet servlet = newServlet( "processingThreads", "1", "processingQueue", "1",
+            "metrics", "true" );
+        try
+        {
+            MetricsRegistry registry = ( MetricsRegistry ) Instrumentation.getMetrics();
+            String query = Utils.readFileAsString( "2.txt" );
+            RecordedResponse running = new RecordedResponse();
+            Thread first = send( servlet, query, running );
+            awaitCondition( "the first request never reached the store", new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return Boolean.valueOf( SlowStore.started.get() == 1 );
+                }
+            } );
+            RecordedResponse queued = new RecordedResponse();
+            final Thread second = send( servlet, query, queued );
+            // the only timed wait on the way is the one for the queued request
+            awaitCondition( "the second request was never queued", new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return Boolean.valueOf( second.getState() == Thread.State.TIMED_WAITING );
+                }
+            } );
+
+            RecordedResponse rejected = new RecordedResponse();
+            servlet.doQuery( query, servletRequest(), rejected.response() );
+            assertEquals( HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejected.status );
+            assertEquals( "1", rejected.headers.get( "Retry-After" ) );
+            assertEquals( 1, registry.getCount( "request.rejected" ) );
+
+            SlowStore.release.countDown();
+            first.join( 10000 );
+            second.join( 10000 );
+            assertEquals( HttpServletResponse.SC_OK, running.status );
+            assertTrue( running.body.toString().indexOf( "assoc_handle" ) >= 0 );
+            assertEquals( HttpServletResponse.SC_OK, queued.status );
+            assertTrue( queued.body.toString().indexOf( "assoc_handle" ) >= 0 );
+        }
+        finally
+        {
+            SlowStore.release.countDown();
+            servlet.destroy();
+        }
+        assertTrue( Instrumentation.getMetrics() instanceof NoopMetrics );
+        assertFalse( ManagementFactory.getPlatformMBeanServer().isRegistered(
+            new ObjectName( MetricsRegistry.DEFAULT_OBJECT_NAME ) ) );
     }
 
 
-    private void setAssociationSharing( String handle, boolean shared ) throws Exception {
-        IAssociation assoc = getAssociation(handle);
-        store.deleteAssociation(assoc);
-        assoc.setShared(shared);
-        store.saveAssociation(assoc);
+    public void testServletTimeoutOnlyInvitesRetriesOfQueuedRequests() throws Exception
+    {
+        SlowStore.reset( 1 );
+        OpenIdServlet servlet = newServlet( "processingThreads", "1", "processingQueue", "1",
+            "processingTimeout", "200" );
+        try
+        {
+            String query = Utils.readFileAsString( "2.txt" );
+            RecordedResponse running = new RecordedResponse();
+            Thread first = send( servlet, query, running );
+            awaitCondition( "the first request never reached the store", new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return Boolean.valueOf( SlowStore.started.get() == 1 );
+                }
+            } );
+
+            RecordedResponse queued = new RecordedResponse();
+            servlet.doQuery( query, servletRequest(), queued.response() );
+            assertEquals( HttpServletResponse.SC_SERVICE_UNAVAILABLE, queued.status );
+            assertEquals( "1", queued.headers.get( "Retry-After" ) );
+
+            // the running request may have used up a nonce, so it must not
+            // be retried
+            first.join( 10000 );
+            assertEquals( HttpServletResponse.SC_SERVICE_UNAVAILABLE, running.status );
+            assertNull( running.headers.get( "Retry-After" ) );
+
+            // the store call is left to finish rather than interrupted
+            SlowStore.release.countDown();
+            awaitCondition( "the running request was interrupted", new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return Boolean.valueOf( SlowStore.finished.get() == 1 );
+                }
+            } );
+
+            // the queued request that timed out never reaches the store
+            RecordedResponse retried = new RecordedResponse();
+            servlet.doQuery( query, servletRequest(), retried.response() );
+            assertEquals( HttpServletResponse.SC_OK, retried.status );
+            assertEquals( 2, SlowStore.started.get() );
+        }
+        finally
+        {
+            SlowStore.release.countDown();
+            servlet.destroy();
+        }
     }
 
 
-    @org.junit.Test
-    public void testUrlToMap() throws Exception
+    public void testServletUnwrapsProcessingFailures() throws Exception
     {
-        String testStr = "foo=bar&baz=qux";
-        Map<String, String> map = MessageParser.urlEncodedToMap( testStr );
-
-        assertTrue( map.size() == 2 );
-        assertTrue( ( map.get( "foo" ) ).equals( "bar" ) );
-        assertTrue( ( map.get( "baz" ) ).equals( "qux" ) );
-        testStr = "foo=bar;baz=qux";
-        map = MessageParser.urlEncodedToMap( testStr );
-        assertTrue( map.size() == 2 );
-        assertTrue( ( map.get( "foo" ) ).equals( "bar" ) );
-        assertTrue( ( map.get( "baz" ) ).equals( "qux" ) );
-        testStr = "foo=bar?baz&baz=qux";
-        map = MessageParser.urlEncodedToMap( testStr );
-        assertTrue( map.size() == 2 );
-        assertTrue( ( map.get( "foo" ) ).equals( "bar?baz" ) );
-        assertTrue( ( map.get( "baz" ) ).equals( "qux" ) );
+        SlowStore.reset( 0 );
+        OpenIdServlet servlet = newServlet( "processingThreads", "1" );
+        try
+        {
+            String query = Utils.readFileAsString( "2.txt" );
+            SlowStore.failure = new OpenIdException( "store down" );
+            RecordedResponse failed = new RecordedResponse();
+            servlet.doQuery( query, servletRequest(), failed.response() );
+            assertEquals( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, failed.status );
+            assertEquals( "store down", failed.message );
+
+            SlowStore.failure = new IllegalStateException( "broken" );
+            try
+            {
+                servlet.doQuery( query, servletRequest(), new RecordedResponse().response() );
+                fail( "a runtime failure must reach the container as it was thrown" );
+            }
+            catch ( IllegalStateException expected )
+            {
+                assertEquals( "broken", expected.getMessage() );
+            }
+        }
+        finally
+        {
+            servlet.destroy();
+        }
     }
 
 
-    public void testAssociationLifeLength() throws Exception
+    public void testNonceDateIsReadFromItsTimestamp() throws Exception
     {
-        IAssociation a = new Association();
-        ( ( Association ) a ).setIssuedDate( new Date() );
-        ( ( Association ) a ).setLifetime( new Long( 1 ) );
-        assertFalse( a.hasExpired() );
-        Thread.sleep( 1200 );
-        assertTrue( a.hasExpired() );
+        assertEquals( DateTime.parseISODateTime( "2011-03-02T02:02:02Z" ),
+            AuthenticationResponse.getNonceDate( "2011-03-02T02:02:02Zold" ) );
+        assertNull( AuthenticationResponse.getNonceDate( "not a nonce" ) );
+        assertNull( AuthenticationResponse.getNonceDate( "short" ) );
+        assertNull( AuthenticationResponse.getNonceDate( null ) );
     }
 
 
@@ -185,6 +1462,103 @@ public class AllTests extends TestCase
     }
 
 
+    public void testConcurrentDiffieHellmanAssociations() throws Exception
+    {
+        final ConcurrentMemoryStore ms = new ConcurrentMemoryStore();
+        final List<String> failures = Collections.synchronizedList( new ArrayList<String>() );
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( int j = 0; j < 5; j++ )
+                        {
+                            DiffieHellman dh = DiffieHellman.getDefault();
+                            AssociationRequest ar = AssociationRequest.create( dh );
+                            IAssociation a = ms.generateAssociation( ar, crypto );
+                            byte[] clearKey = crypto.decryptSecret( dh, a.getPublicDhKey(),
+                                a.getEncryptedMacKey() );
+                            if ( !Arrays.equals( a.getMacKey(), clearKey ) )
+                            {
+                                failures.add( a.getHandle() );
+                            }
+                        }
+                    }
+                    catch ( OpenIdException e )
+                    {
+                        failures.add( e.toString() );
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+        assertTrue( failures.toString(), failures.isEmpty() );
+    }
+
+
+    public void testDiffieHellmanPool() throws Exception
+    {
+        DiffieHellmanPool pool = new DiffieHellmanPool( 4 );
+        try
+        {
+            for ( int i = 0; i < 50 && pool.getAvailable() < 4; i++ )
+            {
+                Thread.sleep( 100 );
+            }
+            assertEquals( 4, pool.getAvailable() );
+
+            Crypto pooled = new Crypto( pool );
+            Set<BigInteger> seen = new HashSet<BigInteger>();
+            for ( int i = 0; i < 8; i++ )
+            {
+                DiffieHellman dh = pooled.generateDiffieHellman( p, g );
+                assertTrue( "key pair handed out twice", seen.add( dh.getPrivateKey() ) );
+                assertEquals( g.modPow( dh.getPrivateKey(), p ), dh.getPublicKey() );
+            }
+            assertTrue( pool.getMisses() <= 4 );
+
+            BigInteger otherGenerator = BigInteger.valueOf( 5 );
+            DiffieHellman other = pooled.generateDiffieHellman( p, otherGenerator );
+            assertEquals( otherGenerator.modPow( other.getPrivateKey(), p ), other.getPublicKey() );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+
+    public void testIncrementalSignMatchesKeyValueForm() throws Exception
+    {
+        StringBuffer longValue = new StringBuffer( "http://example.com/" );
+        for ( int i = 0; i < 300; i++ )
+        {
+            longValue.append( 'x' );
+        }
+        Map<String,String> map = new HashMap<String,String>();
+        map.put( "openid.mode", "id_res" );
+        map.put( "openid.identity", longValue.toString() );
+        map.put( "openid.return_to", "http://example.com/r\u00e9ponse?x=\u20ac" );
+        AuthenticationResponse resp = new AuthenticationResponse( map );
+
+        byte[] key = crypto.generateSecret( "HMAC-SHA256" );
+        String kv = "identity:" + longValue + "\nreturn_to:http://example.com/r\u00e9ponse?x=\u20ac\n";
+        String expected = Crypto.convertToString( Crypto.hmacSha256( key, kv.getBytes( "UTF-8" ) ) );
+
+        assertEquals( expected, resp.sign( AssociationType.HMAC_SHA256, key, "identity,return_to" ) );
+        assertEquals( expected, resp.sign(
+            Crypto.createMacKey( AssociationType.HMAC_SHA256, key ), "identity,return_to" ) );
+    }
+
+
     public void test2() throws Exception
     {
         String s = Utils.readFileAsString( "2.txt" );
@@ -220,6 +1594,32 @@ public class AllTests extends TestCase
     }
 
 
+    public void testModeDispatchOnParsedRequest() throws Exception
+    {
+        OpenId openId = new OpenId( serverInfo );
+        String s = "openid.assoc_handle=x&openid.xopenid.mode=associate&openid.mode=check_authentication";
+        assertTrue( openId.isCheckAuthenticationRequest( s ) );
+        assertFalse( openId.isAssociationRequest( s ) );
+        assertFalse( openId.isAuthenticationRequest( "openid.mode=bogus" ) );
+
+        s = Utils.readFileAsString( "2.txt" );
+        Request req = RequestFactory.parse( s );
+        assertEquals( Mode.ASSOCIATE, req.getMode() );
+        AssociationResponse ar = ( AssociationResponse ) ResponseFactory.parse( openId.handleRequest( req ) );
+        assertNull( ar.getErrorCode() );
+        assertNotNull( ar.getAssociationHandle() );
+
+        try
+        {
+            RequestFactory.parse( "openid.ns=foo" );
+            fail( "a query without a mode must not parse" );
+        }
+        catch ( InvalidOpenIdQueryException expected )
+        {
+        }
+    }
+
+
     // Test no encryption 1.1 association request
     public void testAssocNoEncryption() throws Exception
     {
@@ -1736,6 +3136,97 @@ public class AllTests extends TestCase
     }
 
 
+    public void testNonceOutsideWindowIsRejectedBeforeTheStore() throws Exception
+    {
+        ConcurrentMemoryStore nonces = new ConcurrentMemoryStore();
+        ServerInfo si = new ServerInfo( "http://example.com", nonces, crypto );
+        si.setNonceWindow( 300 );
+        long now = System.currentTimeMillis();
+        String[] rejected = {
+            DateTime.formatISODateTime( new Date( now - 301000 ) ) + "old",
+            DateTime.formatISODateTime( new Date( now + 120000 ) ) + "future",
+            "undated"
+        };
+        for ( int i = 0; i < rejected.length; i++ )
+        {
+            try
+            {
+                checkNonce( rejected[i], si );
+                fail( rejected[i] + " should be rejected" );
+            }
+            catch ( OpenIdException expected )
+            {
+            }
+            // never reached the store
+            assertTrue( nonces.claimNonce( rejected[i] ) );
+        }
+
+        String fresh = DateTime.formatISODateTime( new Date( now - 60000 ) ) + "fresh";
+        checkNonce( fresh, si );
+        try
+        {
+            checkNonce( fresh, si );
+            fail( "replay should be rejected" );
+        }
+        catch ( OpenIdException expected )
+        {
+        }
+
+        // without a window any nonce is claimed
+        si.setNonceWindow( 0 );
+        checkNonce( "undated2", si );
+    }
+
+
+    /**
+     * Stores that cannot claim a nonce atomically still detect a replay,
+     * through a lookup before the nonce is saved.
+     */
+    public void testReplayIsDetectedByStoresThatCannotClaimNonces() throws Exception
+    {
+        final ConcurrentMemoryStore nonces = new ConcurrentMemoryStore();
+        IStore store = stub( IStore.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+            {
+                return method.invoke( nonces, args );
+            }
+        } );
+        assertFalse( store instanceof INonceClaimingStore );
+        ServerInfo si = new ServerInfo( "http://example.com", store, crypto );
+
+        checkNonce( "plain", si );
+        assertNotNull( nonces.findNonce( "plain" ) );
+        try
+        {
+            checkNonce( "plain", si );
+            fail( "replay should be rejected" );
+        }
+        catch ( OpenIdException expected )
+        {
+        }
+
+        // wrappers fall back the same way
+        CachingStore cs = new CachingStore( store );
+        assertTrue( cs.claimNonce( "wrapped" ) );
+        assertFalse( cs.claimNonce( "wrapped" ) );
+    }
+
+
+    private static void checkNonce( String nonce, ServerInfo si ) throws OpenIdException
+    {
+        HashMap<String,String> map = new HashMap<String,String>();
+        map.put( CheckAuthenticationRequest.OPENID_ASSOC_HANDLE, "handle" );
+        map.put( "openid.mode", "check_authentication" );
+        map.put( AuthenticationResponse.OPENID_IDENTITY, "http://foo" );
+        map.put( AuthenticationResponse.OPENID_RETURN_TO, "http://bar" );
+        map.put( AuthenticationResponse.OPENID_NONCE, nonce );
+        map.put( AuthenticationResponse.OPENID_SIG, "siggy" );
+        map.put( AuthenticationResponse.OPENID_SIGNED, "identity,return_to" );
+        new CheckAuthenticationRequest( map, Mode.CHECK_AUTHENTICATION ).processUsing( si );
+    }
+
+
     public void testMessageMapToUrlStringNullParam() throws Exception
     {
         HashMap<String,String> testMap = new HashMap<String,String>();
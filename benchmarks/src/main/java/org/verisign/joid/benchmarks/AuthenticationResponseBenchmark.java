@@ -0,0 +1,97 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.verisign.joid.AssociationType;
+import org.verisign.joid.AuthenticationRequest;
+import org.verisign.joid.AuthenticationResponse;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.RequestFactory;
+import org.verisign.joid.Response;
+import org.verisign.joid.ServerInfo;
+
+
+/**
+ * Builds authentication responses: answering a checkid request, which
+ * creates and signs the response, signing alone, and reading a response
+ * back from its parameters as a relying party does.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class AuthenticationResponseBenchmark
+{
+    private ServerInfo serverInfo;
+
+    private AuthenticationRequest request;
+
+    private AuthenticationResponse response;
+
+    private SecretKey key;
+
+    private Map<String,String> map;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        serverInfo = fixture.serverInfo;
+        request = ( AuthenticationRequest ) RequestFactory.parse( fixture.checkidQuery );
+        response = fixture.authentication;
+        key = Crypto.createMacKey( AssociationType.HMAC_SHA1, fixture.getSecret() );
+        map = response.toMap();
+    }
+
+
+    @Benchmark
+    public Response respond() throws OpenIdException
+    {
+        return request.processUsing( serverInfo );
+    }
+
+
+    @Benchmark
+    public String sign() throws OpenIdException
+    {
+        return response.sign( key, response.getSignedList() );
+    }
+
+
+    @Benchmark
+    public AuthenticationResponse parse() throws OpenIdException
+    {
+        return new AuthenticationResponse( map );
+    }
+}
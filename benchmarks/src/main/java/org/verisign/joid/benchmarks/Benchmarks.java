@@ -0,0 +1,48 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate of
+ * each one is reported next to its time. Takes the usual JMH command line
+ * options, for instance a regular expression selecting benchmarks:
+ *
+ * <pre>
+ * java -jar benchmarks/target/joid-benchmarks.jar Store -f 1
+ * </pre>
+ */
+public class Benchmarks
+{
+    public static void main( String[] args ) throws Exception
+    {
+        CommandLineOptions commandLine = new CommandLineOptions( args );
+        new Runner( new OptionsBuilder()
+            .parent( commandLine )
+            .addProfiler( GCProfiler.class )
+            .build() ).run();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.verisign.joid.CheckAuthenticationRequest;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Response;
+import org.verisign.joid.ServerInfo;
+
+
+/**
+ * Verifies the signature of an authentication response as an OpenID
+ * provider does when answering check_authentication, for a response signed
+ * with a private association. The store accepts
+ * every nonce, so only parsing and verification are measured.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class CheckAuthenticationBenchmark
+{
+    private ServerInfo serverInfo;
+
+    private Map<String,String> map;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        serverInfo = fixture.serverInfo;
+        map = fixture.statelessAuthentication.toMap();
+    }
+
+
+    @Benchmark
+    public Response verify() throws OpenIdException
+    {
+        CheckAuthenticationRequest request =
+            new CheckAuthenticationRequest( map, org.verisign.joid.Mode.CHECK_AUTHENTICATION );
+        return request.processUsing( serverInfo );
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * Measures the Diffie-Hellman work of an association: generating a key pair
+ * and encrypting the MAC key for the relying party.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class CryptoBenchmark
+{
+    private Crypto crypto;
+
+    private DiffieHellman serverDh;
+
+    private BigInteger consumerPublic;
+
+    private byte[] secret;
+
+
+    @Setup
+    public void setUp()
+    {
+        crypto = new Crypto();
+        serverDh = DiffieHellman.getDefault();
+        consumerPublic = DiffieHellman.getDefault().getPublicKey();
+        secret = crypto.generateSecret( "HMAC-SHA1" );
+    }
+
+
+    @Benchmark
+    public DiffieHellman generateKeyPair()
+    {
+        return new DiffieHellman( DiffieHellman.DEFAULT_MODULUS, DiffieHellman.DEFAULT_GENERATOR );
+    }
+
+
+    @Benchmark
+    public byte[] encryptSecret() throws OpenIdException
+    {
+        return crypto.encryptSecret( serverDh, consumerPublic, secret );
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import org.verisign.joid.AssociationResponse;
+import org.verisign.joid.AuthenticationResponse;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.RequestFactory;
+import org.verisign.joid.ServerInfo;
+import org.verisign.joid.server.ConcurrentMemoryStore;
+
+
+/**
+ * An OpenID provider set up in memory, with an association made over
+ * Diffie-Hellman and signed authentication responses, shared by the
+ * benchmarks.
+ */
+class Fixture
+{
+    static final String ENDPOINT = "http://op.example.com/openid";
+
+    static final String RETURN_TO = "http://rp.example.com/return?session=4f2a9c";
+
+    final ConcurrentMemoryStore store = new NonceAcceptingStore();
+
+    final Crypto crypto = new Crypto();
+
+    final ServerInfo serverInfo = new ServerInfo( ENDPOINT, store, crypto );
+
+    /** The key pair of the relying party */
+    final DiffieHellman consumerDh = DiffieHellman.getDefault();
+
+    final String associateQuery;
+
+    final AssociationResponse association;
+
+    final String checkidQuery;
+
+    final AuthenticationResponse authentication;
+
+    /** A response signed with a private association, for check_authentication */
+    final AuthenticationResponse statelessAuthentication;
+
+    final String checkAuthenticationQuery;
+
+
+    Fixture() throws Exception
+    {
+        associateQuery = "openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0"
+            + "&openid.mode=associate&openid.assoc_type=HMAC-SHA1"
+            + "&openid.session_type=DH-SHA1&openid.dh_consumer_public="
+            + URLEncoder.encode( Crypto.convertToString( consumerDh.getPublicKey() ), "UTF-8" );
+        association = ( AssociationResponse ) RequestFactory.parse( associateQuery ).processUsing( serverInfo );
+
+        String statelessQuery = "openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0"
+            + "&openid.mode=checkid_setup"
+            + "&openid.identity=" + URLEncoder.encode( "http://user.example.com/", "UTF-8" )
+            + "&openid.claimed_id=" + URLEncoder.encode( "http://user.example.com/", "UTF-8" )
+            + "&openid.return_to=" + URLEncoder.encode( RETURN_TO, "UTF-8" )
+            + "&openid.realm=" + URLEncoder.encode( "http://rp.example.com/", "UTF-8" );
+        checkidQuery = statelessQuery
+            + "&openid.assoc_handle=" + URLEncoder.encode( association.getAssociationHandle(), "UTF-8" );
+        authentication = ( AuthenticationResponse ) RequestFactory.parse( checkidQuery ).processUsing( serverInfo );
+        statelessAuthentication =
+            ( AuthenticationResponse ) RequestFactory.parse( statelessQuery ).processUsing( serverInfo );
+
+        Map<String,String> map = statelessAuthentication.toMap();
+        map.put( "openid.mode", "check_authentication" );
+        StringBuilder query = new StringBuilder();
+        for ( Map.Entry<String,String> e : map.entrySet() )
+        {
+            if ( query.length() > 0 )
+            {
+                query.append( '&' );
+            }
+            query.append( URLEncoder.encode( e.getKey(), "UTF-8" ) ).append( '=' )
+                .append( URLEncoder.encode( e.getValue(), "UTF-8" ) );
+        }
+        checkAuthenticationQuery = query.toString();
+    }
+
+
+    /**
+     * Returns the secret of the association, decrypted by the relying party.
+     */
+    byte[] getSecret() throws OpenIdException
+    {
+        BigInteger serverPublic = association.getDhServerPublic();
+        return crypto.decryptSecret( consumerDh, serverPublic, association.getEncryptedMacKey() );
+    }
+
+
+    /**
+     * A memory store accepting every nonce, so that the same response can be
+     * checked over and over.
+     */
+    private static class NonceAcceptingStore extends ConcurrentMemoryStore
+    {
+        public boolean claimNonce( String nonce )
+        {
+            return true;
+        }
+    }
+}
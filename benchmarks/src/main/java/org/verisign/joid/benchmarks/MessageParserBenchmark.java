@@ -0,0 +1,73 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.verisign.joid.MessageParser;
+
+
+/**
+ * Parses a signed authentication response from its URL encoded and its
+ * key-value form.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class MessageParserBenchmark
+{
+    private String urlEncoded;
+
+    private String posted;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        urlEncoded = fixture.authentication.toUrlString();
+        posted = fixture.authentication.toPostString();
+    }
+
+
+    @Benchmark
+    public Map<String,String> urlEncodedToMap() throws UnsupportedEncodingException
+    {
+        return MessageParser.urlEncodedToMap( urlEncoded );
+    }
+
+
+    @Benchmark
+    public Map<String,String> postedToMap() throws IOException
+    {
+        return MessageParser.postedToMap( posted );
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Request;
+import org.verisign.joid.RequestFactory;
+
+
+/**
+ * Parses the query of an incoming request, for each mode an OpenID provider
+ * receives.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class RequestFactoryBenchmark
+{
+    @Param( { "associate", "checkid_setup", "check_authentication" } )
+    public String mode;
+
+    private String query;
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        if ( "associate".equals( mode ) )
+        {
+            query = fixture.associateQuery;
+        }
+        else if ( "checkid_setup".equals( mode ) )
+        {
+            query = fixture.checkidQuery;
+        }
+        else
+        {
+            query = fixture.checkAuthenticationQuery;
+        }
+    }
+
+
+    @Benchmark
+    public Request parse() throws OpenIdException, UnsupportedEncodingException
+    {
+        return RequestFactory.parse( query );
+    }
+}
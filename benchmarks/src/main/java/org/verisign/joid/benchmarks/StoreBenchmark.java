@@ -0,0 +1,92 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.benchmarks;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.RequestFactory;
+import org.verisign.joid.server.ConcurrentMemoryStore;
+
+
+/**
+ * Finds and saves associations and claims nonces in the in-memory store.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+public class StoreBenchmark
+{
+    private ConcurrentMemoryStore store;
+
+    private IAssociation association;
+
+    private String handle;
+
+    private final AtomicLong nonces = new AtomicLong();
+
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Fixture fixture = new Fixture();
+        store = new ConcurrentMemoryStore();
+        store.setNonceLifetime( 1 );
+
+        AssociationRequest request = ( AssociationRequest ) RequestFactory.parse( fixture.associateQuery );
+        association = store.generateAssociation( request, new Crypto() );
+        store.saveAssociation( association );
+        handle = association.getHandle();
+    }
+
+
+    @Benchmark
+    public IAssociation findAssociation() throws OpenIdException
+    {
+        return store.findAssociation( handle );
+    }
+
+
+    @Benchmark
+    public IAssociation saveAssociation() throws OpenIdException
+    {
+        store.saveAssociation( association );
+        return association;
+    }
+
+
+    @Benchmark
+    public boolean claimNonce() throws OpenIdException
+    {
+        return store.claimNonce( "2011-03-02T02:02:02Z" + nonces.incrementAndGet() );
+    }
+}
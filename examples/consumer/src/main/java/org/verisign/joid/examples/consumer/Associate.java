@@ -32,10 +32,7 @@ public class Associate
         throws IOException, OpenIdException
     {
         DiffieHellman dh = DiffieHellman.getDefault();
-        Crypto crypto = new Crypto();
-        crypto.setDiffieHellman( dh );
-
-        AssociationRequest ar = AssociationRequest.create( crypto );
+        AssociationRequest ar = AssociationRequest.create( dh );
 
         Response response = Util.send( ar, destination );
         System.out.println( "Response=" + response + "\n" );
@@ -60,8 +60,7 @@ public class Authenticate
 
         DiffieHellman dh = DiffieHellman.recreate( privKey, modulus );
         Crypto crypto = new Crypto();
-        crypto.setDiffieHellman( dh );
-        byte[] clearKey = crypto.decryptSecret( serverPublic, encryptedKey );
+        byte[] clearKey = crypto.decryptSecret( dh, serverPublic, encryptedKey );
 
         String signature = authr.getSignature();
         System.out.println( "Server's signature: " + signature );
@@ -0,0 +1,206 @@
+package org.verisign.joid.examples.loadtest;
+
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.SessionManager;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.FilterHolder;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
+import org.verisign.joid.consumer.HttpClientTransport;
+import org.verisign.joid.consumer.OpenIdFilter;
+import org.verisign.joid.server.ConcurrentMemoryStore;
+import org.verisign.joid.server.OpenIdServlet;
+
+
+/**
+ * An OpenID provider and a relying party running in two embedded Jetty
+ * servers on local ports.
+ *
+ * The provider serves {@link OpenIdServlet} at /server and an identity page
+ * per user at /id/&lt;user&gt; pointing at it. The relying party is an
+ * application protected by {@link OpenIdFilter} at its root; a request
+ * carrying a valid id_res response is redirected once the user is logged
+ * in, any other request is answered with 403.
+ */
+public class EmbeddedOpRp
+{
+    /** The time sessions are kept, in seconds; every flow opens new ones */
+    private static final int SESSION_TIMEOUT = 60;
+
+    private final Server op = new Server();
+    private final Server rp = new Server();
+    private final SelectChannelConnector opConnector = new SelectChannelConnector();
+    private final SelectChannelConnector rpConnector = new SelectChannelConnector();
+    private final HttpClientTransport transport;
+
+
+    /**
+     * Sets up both servers.
+     *
+     * @param threads the number of request threads of each server.
+     * @param checkAuthentication the phase the relying party's
+     *  check_authentication requests are counted in.
+     * @param discovery the phase the relying party's identity page fetches
+     *  are counted in.
+     */
+    public EmbeddedOpRp( int threads, PhaseStats checkAuthentication, PhaseStats discovery )
+    {
+        setUp( op, opConnector, threads );
+        setUp( rp, rpConnector, threads );
+
+        transport = new HttpClientTransport( HttpClientTransport.DEFAULT_CONNECT_TIMEOUT,
+            HttpClientTransport.DEFAULT_READ_TIMEOUT, threads, threads );
+        OpenIdFilter.joid().setTransport( new TimingTransport( transport, checkAuthentication, discovery ) );
+    }
+
+
+    /**
+     * Starts both servers and the servlets in them.
+     */
+    public void start() throws Exception
+    {
+        // the ports are known once the connectors are open
+        opConnector.open();
+        rpConnector.open();
+
+        Context opContext = new Context( op, "/", Context.SESSIONS );
+        SessionManager opSessions = opContext.getSessionHandler().getSessionManager();
+        opSessions.setMaxInactiveInterval( SESSION_TIMEOUT );
+        // the users ignore cookies, and jetty would otherwise put the session
+        // id in the id_res redirect to the relying party, on the same host
+        opSessions.setSessionURL( "none" );
+        ServletHolder provider = new ServletHolder( new OpenIdServlet() );
+        provider.setInitParameter( "storeClassName", ConcurrentMemoryStore.class.getName() );
+        provider.setInitParameter( "userManagerClassName", LoadTestUserManager.class.getName() );
+        provider.setInitParameter( "endPointUrl", getEndpointUrl() );
+        provider.setInitParameter( "loginPage", "/login" );
+        opContext.addServlet( provider, "/server" );
+        opContext.addServlet( new ServletHolder( new IdentityServlet( getEndpointUrl() ) ), "/id/*" );
+
+        Context rpContext = new Context( rp, "/", Context.SESSIONS );
+        rpContext.getSessionHandler().getSessionManager().setMaxInactiveInterval( SESSION_TIMEOUT );
+        rpContext.addFilter( new FilterHolder( new OpenIdFilter() ), "/*", Handler.DEFAULT );
+        rpContext.addServlet( new ServletHolder( new ProtectedServlet() ), "/*" );
+
+        op.start();
+        rp.start();
+    }
+
+
+    /**
+     * Stops both servers.
+     */
+    public void stop() throws Exception
+    {
+        rp.stop();
+        op.stop();
+        transport.shutdown();
+    }
+
+
+    /**
+     * @return the URL of the provider's OpenID endpoint.
+     */
+    public String getEndpointUrl()
+    {
+        return "http://localhost:" + opConnector.getLocalPort() + "/server";
+    }
+
+
+    /**
+     * @param user the name of a user.
+     * @return the identity URL of the user at the provider.
+     */
+    public String getIdentityUrl( String user )
+    {
+        return "http://localhost:" + opConnector.getLocalPort() + "/id/" + user;
+    }
+
+
+    /**
+     * @return the URL responses are returned to at the relying party, which
+     *  the filter requires to be its base URL.
+     */
+    public String getReturnToUrl()
+    {
+        return "http://localhost:" + rpConnector.getLocalPort();
+    }
+
+
+    private static void setUp( Server server, SelectChannelConnector connector, int threads )
+    {
+        connector.setHost( "localhost" );
+        connector.setPort( 0 );
+        connector.setAcceptQueueSize( threads * 4 );
+        server.setConnectors( new Connector[] { connector } );
+        QueuedThreadPool pool = new QueuedThreadPool();
+        pool.setMaxThreads( threads );
+        server.setThreadPool( pool );
+    }
+
+
+    /**
+     * Serves identity pages naming the provider, cacheable so that the
+     * relying party does not discover the provider on every flow.
+     */
+    private static class IdentityServlet extends HttpServlet
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String endpointUrl;
+
+
+        IdentityServlet( String endpointUrl )
+        {
+            this.endpointUrl = endpointUrl;
+        }
+
+
+        protected void doGet( HttpServletRequest request, HttpServletResponse response )
+            throws ServletException, IOException
+        {
+            response.setContentType( "text/html" );
+            response.setHeader( "Cache-Control", "max-age=3600" );
+            PrintWriter out = response.getWriter();
+            out.println( "<html><head>" );
+            out.println( "<link rel=\"openid.server\" href=\"" + endpointUrl + "\"/>" );
+            out.println( "</head><body></body></html>" );
+        }
+    }
+
+
+    /**
+     * The protected application: reached only when the filter did not log
+     * the user in from the request.
+     */
+    private static class ProtectedServlet extends HttpServlet
+    {
+        private static final long serialVersionUID = 1L;
+
+
+        protected void doGet( HttpServletRequest request, HttpServletResponse response )
+            throws ServletException, IOException
+        {
+            String identity = ( String ) request.getSession( true ).getAttribute( OpenIdFilter.OPENID_ATTRIBUTE );
+            if ( identity == null )
+            {
+                response.sendError( HttpServletResponse.SC_FORBIDDEN );
+                return;
+            }
+            response.setContentType( "text/plain" );
+            response.getWriter().println( identity );
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.verisign.joid.examples.loadtest;
+
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.cookie.CookiePolicy;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.AuthenticationRequest;
+import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Response;
+import org.verisign.joid.ResponseFactory;
+
+
+/**
+ * One virtual user running OpenID flows in a loop until told to stop.
+ *
+ * A flow first associates with the provider, as a relying party does
+ * whenever its association expires. The user then sends a checkid_setup
+ * request to the provider, which knows it from its remember-me cookies and
+ * redirects it with an id_res response; following that redirect to the
+ * relying party makes its filter check the response with the provider.
+ * The checkid request carries no association handle, so that the filter has
+ * to verify every response with check_authentication.
+ */
+public class FlowDriver implements Runnable
+{
+    private static final Log LOG = LogFactory.getLog( FlowDriver.class );
+
+    private final HttpClient client;
+    private final EmbeddedOpRp servers;
+    private final String user;
+    private final boolean associate;
+    private final LoadTest.Phases phases;
+
+    private volatile boolean running = true;
+
+
+    /**
+     * @param client the client making the requests, shared by the users.
+     * @param servers the provider and relying party.
+     * @param user the name of this user.
+     * @param associate whether each flow makes an association first.
+     * @param phases the statistics to record into.
+     */
+    public FlowDriver( HttpClient client, EmbeddedOpRp servers, String user, boolean associate,
+        LoadTest.Phases phases )
+    {
+        this.client = client;
+        this.servers = servers;
+        this.user = user;
+        this.associate = associate;
+        this.phases = phases;
+    }
+
+
+    public void run()
+    {
+        while ( running )
+        {
+            long start = System.nanoTime();
+            if ( runFlow() )
+            {
+                phases.flow.record( System.nanoTime() - start );
+            }
+            else
+            {
+                phases.flow.error();
+            }
+        }
+    }
+
+
+    /**
+     * Makes the user stop after its current flow.
+     */
+    public void stop()
+    {
+        running = false;
+    }
+
+
+    /**
+     * Runs one flow, stopping at the first phase failing.
+     *
+     * @return whether every phase succeeded.
+     */
+    private boolean runFlow()
+    {
+        PhaseStats phase = phases.associate;
+        try
+        {
+            if ( associate && !associate() )
+            {
+                return false;
+            }
+            phase = phases.checkidSetup;
+            String location = checkidSetup();
+            if ( location == null )
+            {
+                return false;
+            }
+            phase = phases.idRes;
+            return idRes( location );
+        }
+        catch ( Exception e )
+        {
+            phase.error();
+            LOG.warn( phase.getName() + " failed", e );
+            return false;
+        }
+    }
+
+
+    private boolean associate() throws IOException, OpenIdException
+    {
+        // the key pair is the relying party's work, not the provider's
+        DiffieHellman dh = DiffieHellman.getDefault();
+        PostMethod post = new PostMethod( servers.getEndpointUrl() );
+        post.setRequestEntity( new StringRequestEntity( AssociationRequest.create( dh ).toUrlString(),
+            "application/x-www-form-urlencoded", "UTF-8" ) );
+
+        long start = System.nanoTime();
+        try
+        {
+            int status = execute( post );
+            if ( status != HttpStatus.SC_OK )
+            {
+                return fail( phases.associate, "associate returned " + status );
+            }
+            Response response = ResponseFactory.parse( post.getResponseBodyAsString() );
+            if ( response.getError() != null )
+            {
+                return fail( phases.associate, "associate failed: " + response.getError() );
+            }
+            phases.associate.record( System.nanoTime() - start );
+            return true;
+        }
+        finally
+        {
+            post.releaseConnection();
+        }
+    }
+
+
+    /**
+     * Sends the checkid_setup request as the user's browser.
+     *
+     * @return the redirect to the relying party, or null if the phase failed.
+     */
+    private String checkidSetup() throws IOException, OpenIdException
+    {
+        String returnTo = servers.getReturnToUrl();
+        AuthenticationRequest request = AuthenticationRequest.create(
+            servers.getIdentityUrl( user ), returnTo, returnTo, null );
+        GetMethod get = new GetMethod( servers.getEndpointUrl() + "?" + request.toUrlString() );
+        get.setRequestHeader( "Cookie", "authKey=" + LoadTestUserManager.AUTH_KEY + "; username=" + user );
+
+        long start = System.nanoTime();
+        try
+        {
+            int status = execute( get );
+            Header location = get.getResponseHeader( "Location" );
+            if ( status != HttpStatus.SC_MOVED_TEMPORARILY || location == null
+                || location.getValue().indexOf( "openid.mode=id_res" ) < 0 )
+            {
+                fail( phases.checkidSetup, "checkid_setup returned " + status
+                    + ( location == null ? "" : " to " + location.getValue() ) );
+                return null;
+            }
+            phases.checkidSetup.record( System.nanoTime() - start );
+            return location.getValue();
+        }
+        finally
+        {
+            get.releaseConnection();
+        }
+    }
+
+
+    /**
+     * Follows the id_res redirect to the relying party, which logs the user
+     * in and redirects again once the response is verified.
+     */
+    private boolean idRes( String location ) throws IOException
+    {
+        GetMethod get = new GetMethod( location );
+
+        long start = System.nanoTime();
+        try
+        {
+            int status = execute( get );
+            if ( status != HttpStatus.SC_MOVED_TEMPORARILY )
+            {
+                return fail( phases.idRes, "id_res returned " + status );
+            }
+            phases.idRes.record( System.nanoTime() - start );
+            return true;
+        }
+        finally
+        {
+            get.releaseConnection();
+        }
+    }
+
+
+    private int execute( HttpMethod method ) throws IOException
+    {
+        method.setFollowRedirects( false );
+        method.getParams().setCookiePolicy( CookiePolicy.IGNORE_COOKIES );
+        return client.executeMethod( method );
+    }
+
+
+    private static boolean fail( PhaseStats phase, String message )
+    {
+        phase.error();
+        LOG.debug( message );
+        return false;
+    }
+}
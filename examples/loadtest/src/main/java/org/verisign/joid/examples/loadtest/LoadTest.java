@@ -0,0 +1,172 @@
+package org.verisign.joid.examples.loadtest;
+
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+
+/**
+ * Starts a provider and a relying party in process and drives full OpenID
+ * flows through them with a number of virtual users, then reports the
+ * throughput, latency percentiles and error rate of every phase.
+ *
+ * The module is only built with the <code>loadtest</code> profile:
+ *
+ * <pre>
+ * mvn -Ploadtest install
+ * cd examples/loadtest
+ * mvn exec:java -Dexec.mainClass=org.verisign.joid.examples.loadtest.LoadTest \
+ *     -Dexec.args="-concurrency 32 -duration 60 -warmup 10"
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ * <li>-concurrency: the number of virtual users, 16 by default.</li>
+ * <li>-duration: the time measured, in seconds, 60 by default.</li>
+ * <li>-warmup: the time run before measuring, in seconds, 10 by default.</li>
+ * <li>-associate: whether every flow associates first, true by default.</li>
+ * <li>-histogram: whether to print the latency histograms, false by
+ * default.</li>
+ * </ul>
+ */
+public class LoadTest
+{
+    /**
+     * The statistics of every phase of the flow.
+     */
+    public static class Phases
+    {
+        public final PhaseStats associate = new PhaseStats( "associate" );
+        public final PhaseStats checkidSetup = new PhaseStats( "checkid_setup" );
+        public final PhaseStats idRes = new PhaseStats( "id_res" );
+        public final PhaseStats checkAuthentication = new PhaseStats( "check_authentication" );
+        public final PhaseStats discovery = new PhaseStats( "discovery" );
+        public final PhaseStats flow = new PhaseStats( "flow" );
+
+
+        PhaseStats[] all()
+        {
+            return new PhaseStats[] { associate, checkidSetup, idRes, checkAuthentication, discovery, flow };
+        }
+
+
+        void reset()
+        {
+            PhaseStats[] all = all();
+            for ( int i = 0; i < all.length; i++ )
+            {
+                all[i].reset();
+            }
+        }
+    }
+
+
+    public static void main( String[] args ) throws Exception
+    {
+        int concurrency = 16;
+        long duration = 60;
+        long warmup = 10;
+        boolean associate = true;
+        boolean histogram = false;
+
+        for ( int i = 0; i + 1 < args.length; i += 2 )
+        {
+            String value = args[i + 1];
+            if ( "-concurrency".equals( args[i] ) )
+            {
+                concurrency = Integer.parseInt( value );
+            }
+            else if ( "-duration".equals( args[i] ) )
+            {
+                duration = Long.parseLong( value );
+            }
+            else if ( "-warmup".equals( args[i] ) )
+            {
+                warmup = Long.parseLong( value );
+            }
+            else if ( "-associate".equals( args[i] ) )
+            {
+                associate = Boolean.valueOf( value ).booleanValue();
+            }
+            else if ( "-histogram".equals( args[i] ) )
+            {
+                histogram = Boolean.valueOf( value ).booleanValue();
+            }
+            else
+            {
+                throw new IllegalArgumentException( "Unknown option " + args[i] );
+            }
+        }
+
+        Phases phases = new Phases();
+        EmbeddedOpRp servers = new EmbeddedOpRp( concurrency * 2, phases.checkAuthentication, phases.discovery );
+        servers.start();
+
+        MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connections.getParams();
+        params.setDefaultMaxConnectionsPerHost( concurrency );
+        params.setMaxTotalConnections( concurrency * 2 );
+        HttpClient client = new HttpClient( connections );
+
+        List<FlowDriver> drivers = new ArrayList<FlowDriver>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for ( int i = 0; i < concurrency; i++ )
+        {
+            FlowDriver driver = new FlowDriver( client, servers, "user" + i, associate, phases );
+            Thread thread = new Thread( driver, "joid-loadtest-" + i );
+            drivers.add( driver );
+            threads.add( thread );
+            thread.start();
+        }
+
+        PrintStream out = System.out;
+        out.println( "Running " + concurrency + " users against " + servers.getEndpointUrl()
+            + ", warming up for " + warmup + " s" );
+        Thread.sleep( warmup * 1000 );
+        phases.reset();
+        long start = System.nanoTime();
+        out.println( "Measuring for " + duration + " s" );
+        Thread.sleep( duration * 1000 );
+        double seconds = ( System.nanoTime() - start ) / 1e9;
+
+        // take the figures before the users wind down
+        report( out, phases, seconds, histogram );
+
+        for ( FlowDriver driver : drivers )
+        {
+            driver.stop();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        connections.shutdown();
+        servers.stop();
+    }
+
+
+    private static void report( PrintStream out, Phases phases, double seconds, boolean histogram )
+    {
+        out.println();
+        out.println( String.format( "%-22s %9s %7s %7s %9s %8s %8s %8s %8s %8s %8s",
+            "phase", "count", "errors", "error", "per s", "mean ms", "p50", "p90", "p99", "p99.9", "max" ) );
+        PhaseStats[] all = phases.all();
+        for ( int i = 0; i < all.length; i++ )
+        {
+            all[i].printSummary( out, seconds );
+        }
+        if ( histogram )
+        {
+            out.println();
+            for ( int i = 0; i < all.length; i++ )
+            {
+                all[i].printHistogram( out );
+            }
+        }
+    }
+}
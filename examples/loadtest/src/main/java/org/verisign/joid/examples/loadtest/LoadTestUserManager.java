@@ -0,0 +1,34 @@
+package org.verisign.joid.examples.loadtest;
+
+
+import org.verisign.joid.server.UserManager;
+
+
+/**
+ * A user manager letting every virtual user in through the remember-me
+ * cookies, so that the flows never stop at the login page. A user may claim
+ * the identities ending with its name, as with the MemoryUserManager.
+ */
+public class LoadTestUserManager implements UserManager
+{
+    /** The remember-me key every virtual user presents */
+    public static final String AUTH_KEY = "loadtest";
+
+
+    public void remember( String username, String authKey )
+    {
+    }
+
+
+    public String getRememberedUser( String username, String authKey )
+    {
+        return AUTH_KEY.equals( authKey ) ? username : null;
+    }
+
+
+    public boolean canClaim( String username, String claimedIdentity )
+    {
+        return username != null && claimedIdentity != null
+            && claimedIdentity.endsWith( "/" + username );
+    }
+}
@@ -0,0 +1,199 @@
+package org.verisign.joid.examples.loadtest;
+
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The counts, errors and latency histogram of one phase of the flow.
+ *
+ * Latencies are counted in microseconds in log-linear buckets: exact below
+ * 16 microseconds, then eight buckets per power of two, so that a reported
+ * value is within 12.5% of the real one. Recording allocates nothing and
+ * takes no lock.
+ */
+public class PhaseStats
+{
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = LINEAR + ( 64 - 4 ) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+
+    public PhaseStats( String name )
+    {
+        this.name = name;
+    }
+
+
+    public String getName()
+    {
+        return name;
+    }
+
+
+    /**
+     * Records a successful call.
+     *
+     * @param nanos the time it took, in nanoseconds.
+     */
+    public void record( long nanos )
+    {
+        long micros = Math.max( 0, nanos / 1000 );
+        buckets.incrementAndGet( bucket( micros ) );
+        count.incrementAndGet();
+        totalMicros.addAndGet( micros );
+        long max;
+        do
+        {
+            max = maxMicros.get();
+        }
+        while ( micros > max && !maxMicros.compareAndSet( max, micros ) );
+    }
+
+
+    /**
+     * Records a failed call. Its time is not part of the histogram.
+     */
+    public void error()
+    {
+        errors.incrementAndGet();
+    }
+
+
+    /**
+     * Forgets everything recorded so far, for instance the warm-up. Calls
+     * recorded meanwhile may be half counted.
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            buckets.set( i, 0 );
+        }
+        count.set( 0 );
+        errors.set( 0 );
+        totalMicros.set( 0 );
+        maxMicros.set( 0 );
+    }
+
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+
+    /**
+     * Returns the latency below which the given share of calls completed.
+     *
+     * @param fraction the share, between 0 and 1.
+     * @return the latency in microseconds, rounded up to its bucket.
+     */
+    public long getPercentile( double fraction )
+    {
+        long total = count.get();
+        if ( total == 0 )
+        {
+            return 0;
+        }
+        long rank = Math.max( 1, ( long ) Math.ceil( total * fraction ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += buckets.get( i );
+            if ( seen >= rank )
+            {
+                return Math.min( upperBound( i ), maxMicros.get() );
+            }
+        }
+        return maxMicros.get();
+    }
+
+
+    /**
+     * Prints a summary line for the phase.
+     *
+     * @param out where to print.
+     * @param seconds the time the calls were made over.
+     */
+    public void printSummary( PrintStream out, double seconds )
+    {
+        long n = count.get();
+        long failed = errors.get();
+        double errorRate = n + failed == 0 ? 0 : 100.0 * failed / ( n + failed );
+        out.println( String.format( "%-22s %9d %7d %6.2f%% %9.1f %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f",
+            name, n, failed, errorRate, n / seconds,
+            n == 0 ? 0.0 : totalMicros.get() / 1000.0 / n,
+            getPercentile( 0.5 ) / 1000.0, getPercentile( 0.9 ) / 1000.0,
+            getPercentile( 0.99 ) / 1000.0, getPercentile( 0.999 ) / 1000.0,
+            maxMicros.get() / 1000.0 ) );
+    }
+
+
+    /**
+     * Prints the non-empty buckets of the histogram with their share of the
+     * calls.
+     *
+     * @param out where to print.
+     */
+    public void printHistogram( PrintStream out )
+    {
+        long n = count.get();
+        out.println( name );
+        if ( n == 0 )
+        {
+            return;
+        }
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ )
+        {
+            long c = buckets.get( i );
+            if ( c == 0 )
+            {
+                continue;
+            }
+            seen += c;
+            out.println( String.format( "  <= %10.3f ms %9d %6.2f%% %7.3f%%",
+                upperBound( i ) / 1000.0, c, 100.0 * c / n, 100.0 * seen / n ) );
+        }
+    }
+
+
+    static int bucket( long micros )
+    {
+        if ( micros < LINEAR )
+        {
+            return ( int ) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( micros );
+        int sub = ( int ) ( micros >>> ( exponent - 3 ) ) & ( SUB_BUCKETS - 1 );
+        return LINEAR + ( exponent - 4 ) * SUB_BUCKETS + sub;
+    }
+
+
+    static long upperBound( int bucket )
+    {
+        if ( bucket < LINEAR )
+        {
+            return bucket;
+        }
+        int exponent = ( bucket - LINEAR ) / SUB_BUCKETS + 4;
+        int sub = ( bucket - LINEAR ) % SUB_BUCKETS;
+        return ( ( long ) ( SUB_BUCKETS + sub + 1 ) << ( exponent - 3 ) ) - 1;
+    }
+}
@@ -0,0 +1,91 @@
+package org.verisign.joid.examples.loadtest;
+
+
+import java.io.IOException;
+
+import org.verisign.joid.CheckAuthenticationRequest;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.Request;
+import org.verisign.joid.Response;
+import org.verisign.joid.consumer.Transport;
+import org.verisign.joid.consumer.TransportResponse;
+
+
+/**
+ * A transport timing the calls the relying party makes, so that its
+ * check_authentication requests and identity page fetches are reported as
+ * phases of their own.
+ */
+public class TimingTransport implements Transport
+{
+    private final Transport transport;
+    private final PhaseStats checkAuthentication;
+    private final PhaseStats discovery;
+
+
+    /**
+     * @param transport the transport doing the work.
+     * @param checkAuthentication the phase check_authentication requests
+     *  are counted in.
+     * @param discovery the phase identity page fetches are counted in.
+     */
+    public TimingTransport( Transport transport, PhaseStats checkAuthentication,
+        PhaseStats discovery )
+    {
+        this.transport = transport;
+        this.checkAuthentication = checkAuthentication;
+        this.discovery = discovery;
+    }
+
+
+    public Response send( Request req, String dest ) throws IOException, OpenIdException
+    {
+        PhaseStats phase = req instanceof CheckAuthenticationRequest ? checkAuthentication : null;
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            Response response = transport.send( req, dest );
+            ok = response.getError() == null;
+            return response;
+        }
+        finally
+        {
+            if ( phase != null )
+            {
+                if ( ok )
+                {
+                    phase.record( System.nanoTime() - start );
+                }
+                else
+                {
+                    phase.error();
+                }
+            }
+        }
+    }
+
+
+    public TransportResponse get( String url ) throws IOException
+    {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            TransportResponse response = transport.get( url );
+            ok = true;
+            return response;
+        }
+        finally
+        {
+            if ( ok )
+            {
+                discovery.record( System.nanoTime() - start );
+            }
+            else
+            {
+                discovery.error();
+            }
+        }
+    }
+}
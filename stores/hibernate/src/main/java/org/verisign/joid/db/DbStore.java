@@ -14,31 +14,63 @@
 package org.verisign.joid.db;
 
 
+import java.math.BigInteger;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
+import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
 import org.verisign.joid.IAssociation;
 import org.verisign.joid.AssociationRequest;
 import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
 import org.verisign.joid.INonce;
+import org.verisign.joid.INonceClaimingStore;
 import org.verisign.joid.OpenIdException;
-import org.verisign.joid.IStore;
+import org.verisign.joid.IReapableStore;
 import org.verisign.joid.server.Association;
 import org.verisign.joid.server.Nonce;
 
 
 /**
  * A database backed store.
+ *
+ * Nonces are claimed with a plain insert that the unique key on the nonce
+ * column refuses for a replay. Claims are group-committed by a background
+ * writer, see {@link #setNonceBatchSize(int)}. Tables created by earlier
+ * versions lack the key until <code>migrate-nonce-unique.sql</code> is run;
+ * the first claim checks for it, and without it nonces are looked up before
+ * they are saved, which lets concurrent replays through.
+ *
+ * Expired entries are purged in chunks: each call selects the ids of at
+ * most <code>limit</code> rows and deletes them by id in one transaction.
  */
-public class DbStore implements IStore
+public class DbStore implements IReapableStore, INonceClaimingStore
 {
+    /** The number of nonce claims written in one transaction at most, by default. */
+    public static final int DEFAULT_NONCE_BATCH_SIZE = 64;
+
+    /**
+     * The size of the publicDhKey column: the two's-complement encoding of
+     * a public key of an 8192-bit modulus, sign byte included.
+     */
+    public static final int MAX_PUBLIC_DH_KEY_BYTES = 1025;
+
     private final static Log log = LogFactory.getLog( DbStore.class );
 
     private long associationLifetime = 600;
+    private int nonceBatchSize = DEFAULT_NONCE_BATCH_SIZE;
+    private NonceWriter nonceWriter;
+    private volatile Boolean nonceKeyed;
 
 
     /**
@@ -59,10 +91,10 @@ public class DbStore implements IStore
         else
         {
             secret = crypto.generateSecret( req.getSessionType().toString() );
-            crypto.setDiffieHellman( req.getDhModulus(), req.getDhGenerator() );
-            byte[] encryptedSecret = crypto.encryptSecret( req.getDhConsumerPublic(), secret );
+            DiffieHellman dh = crypto.generateDiffieHellman( req.getDhModulus(), req.getDhGenerator() );
+            byte[] encryptedSecret = crypto.encryptSecret( dh, req.getDhConsumerPublic(), secret );
             a.setEncryptedMacKey( encryptedSecret );
-            a.setPublicDhKey( crypto.getPublicKey() );
+            a.setPublicDhKey( dh.getPublicKey() );
         }
         a.setMacKey( secret );
         a.setIssuedDate( new Date() );
@@ -102,8 +134,275 @@ public class DbStore implements IStore
     /**
      * {@inheritDoc}
      */
-    public void saveAssociation( IAssociation a )
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        INonce n = generateNonce( nonce );
+        if ( !isNonceKeyed() )
+        {
+            if ( findNonce( nonce ) != null )
+            {
+                return false;
+            }
+            saveNonce( n );
+            return true;
+        }
+        NonceWriter writer = getNonceWriter();
+        if ( writer == null )
+        {
+            return insertNonce( n );
+        }
+        return writer.claim( n );
+    }
+
+
+    /**
+     * Sets how many nonce claims are written in one transaction at most.
+     * A size of 1 writes every claim in the calling thread.
+     *
+     * @param nonceBatchSize the largest batch size.
+     */
+    public synchronized void setNonceBatchSize( int nonceBatchSize )
+    {
+        if ( nonceBatchSize < 1 )
+        {
+            throw new IllegalArgumentException( "batch size must be positive: " + nonceBatchSize );
+        }
+        this.nonceBatchSize = nonceBatchSize;
+        if ( nonceWriter != null )
+        {
+            nonceWriter.shutdown();
+            nonceWriter = null;
+        }
+    }
+
+
+    /**
+     * Stops the background nonce writer, if it was started.
+     */
+    public synchronized void shutdown()
+    {
+        if ( nonceWriter != null )
+        {
+            nonceWriter.shutdown();
+            nonceWriter = null;
+        }
+    }
+
+
+    private boolean isNonceKeyed() throws OpenIdException
+    {
+        Boolean keyed = nonceKeyed;
+        if ( keyed == null )
+        {
+            synchronized ( this )
+            {
+                keyed = nonceKeyed;
+                if ( keyed == null )
+                {
+                    keyed = Boolean.valueOf( hasUniqueNonceKey() );
+                    if ( !keyed.booleanValue() )
+                    {
+                        log.warn( "The Nonce table has no unique key on the nonce column, concurrent "
+                            + "replays will not be detected; run migrate-nonce-unique.sql to add it" );
+                    }
+                    nonceKeyed = keyed;
+                }
+            }
+        }
+        return keyed.booleanValue();
+    }
+
+
+    /**
+     * Tells whether a unique index on the nonce column alone exists.
+     *
+     * @return true if the database refuses duplicate nonces.
+     */
+    static boolean hasUniqueNonceKey() throws OpenIdException
     {
+        Session session = HibernateUtil.currentSession();
+        try
+        {
+            DatabaseMetaData meta = session.connection().getMetaData();
+            ResultSet rs = meta.getIndexInfo( null, null, "Nonce", true, false );
+            Set<String> onNonce = new HashSet<String>();
+            Set<String> onOthers = new HashSet<String>();
+            try
+            {
+                while ( rs.next() )
+                {
+                    String index = rs.getString( "INDEX_NAME" );
+                    if ( "nonce".equalsIgnoreCase( rs.getString( "COLUMN_NAME" ) ) )
+                    {
+                        onNonce.add( index );
+                    }
+                    else
+                    {
+                        onOthers.add( index );
+                    }
+                }
+            }
+            finally
+            {
+                rs.close();
+            }
+            onNonce.removeAll( onOthers );
+            return !onNonce.isEmpty();
+        }
+        catch ( SQLException e )
+        {
+            throw new OpenIdException( "Could not read the keys of the Nonce table", e );
+        }
+        catch ( HibernateException e )
+        {
+            throw new OpenIdException( "Could not read the keys of the Nonce table", e );
+        }
+        finally
+        {
+            HibernateUtil.closeSession();
+        }
+    }
+
+
+    private synchronized NonceWriter getNonceWriter()
+    {
+        if ( nonceWriter == null && nonceBatchSize > 1 )
+        {
+            nonceWriter = new NonceWriter( nonceBatchSize );
+        }
+        return nonceWriter;
+    }
+
+
+    /**
+     * Inserts a nonce in its own transaction.
+     *
+     * @return true if it was inserted; false if the unique key refused it.
+     */
+    static boolean insertNonce( INonce n ) throws OpenIdException
+    {
+        Session session = HibernateUtil.currentSession();
+        Transaction tx = null;
+        try
+        {
+            tx = session.beginTransaction();
+            session.save( n );
+            tx.commit();
+            return true;
+        }
+        catch ( ConstraintViolationException e )
+        {
+            NonceWriter.rollback( tx );
+            log.debug( "Nonce already checked: " + n.getNonce() );
+            return false;
+        }
+        catch ( HibernateException e )
+        {
+            NonceWriter.rollback( tx );
+            throw new OpenIdException( "Could not store nonce", e );
+        }
+        finally
+        {
+            HibernateUtil.closeSession();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * Expired associations are found through the index on their expiry date.
+     */
+    public int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException
+    {
+        Session session = HibernateUtil.currentSession();
+        Transaction tx = null;
+        try
+        {
+            tx = session.beginTransaction();
+            Query q = session.createQuery( "select a.id from Association as a where a.expiresAt <= :now" );
+            q.setParameter( "now", now );
+            int deleted = deleteByIds( session, "Association", q, limit );
+            tx.commit();
+            return deleted;
+        }
+        catch ( HibernateException e )
+        {
+            NonceWriter.rollback( tx );
+            throw new OpenIdException( "Could not purge associations", e );
+        }
+        finally
+        {
+            HibernateUtil.closeSession();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int purgeNonces( Date checkedBefore, int limit ) throws OpenIdException
+    {
+        Session session = HibernateUtil.currentSession();
+        Transaction tx = null;
+        try
+        {
+            tx = session.beginTransaction();
+            Query q = session.createQuery( "select n.id from Nonce as n where n.checkedDate < :before" );
+            q.setParameter( "before", checkedBefore );
+            int deleted = deleteByIds( session, "Nonce", q, limit );
+            tx.commit();
+            return deleted;
+        }
+        catch ( HibernateException e )
+        {
+            NonceWriter.rollback( tx );
+            throw new OpenIdException( "Could not purge nonces", e );
+        }
+        finally
+        {
+            HibernateUtil.closeSession();
+        }
+    }
+
+
+    private static int deleteByIds( Session session, String entity, Query select, int limit )
+    {
+        select.setMaxResults( limit );
+        List<?> ids = select.list();
+        if ( ids.isEmpty() )
+        {
+            return 0;
+        }
+        Query delete = session.createQuery( "delete from " + entity + " where id in (:ids)" );
+        delete.setParameterList( "ids", ids );
+        return delete.executeUpdate();
+    }
+
+
+    /**
+     * Sets the lifetime of associations generated by this store.
+     *
+     * @param associationLifetime the lifetime in seconds.
+     */
+    public void setAssociationLifetime( long associationLifetime )
+    {
+        this.associationLifetime = associationLifetime;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void saveAssociation( IAssociation a ) throws OpenIdException
+    {
+        // the key would otherwise be truncated or refused by the column
+        BigInteger publicKey = a.getPublicDhKey();
+        if ( publicKey != null && publicKey.bitLength() / 8 + 1 > MAX_PUBLIC_DH_KEY_BYTES )
+        {
+            throw new OpenIdException( "Diffie-Hellman public key too large: "
+                + publicKey.bitLength() + " bits" );
+        }
         Session session = HibernateUtil.currentSession();
         Transaction tx = session.beginTransaction();
         session.save( a );
@@ -115,10 +414,25 @@ public class DbStore implements IStore
     /**
      * {@inheritDoc}
      */
-    public void deleteAssociation( IAssociation a )
+    public void deleteAssociation( IAssociation a ) throws OpenIdException
     {
         Session session = HibernateUtil.currentSession();
-        session.delete( a );
+        Transaction tx = null;
+        try
+        {
+            tx = session.beginTransaction();
+            session.delete( a );
+            tx.commit();
+        }
+        catch ( HibernateException e )
+        {
+            NonceWriter.rollback( tx );
+            throw new OpenIdException( "Could not delete association", e );
+        }
+        finally
+        {
+            HibernateUtil.closeSession();
+        }
     }
 
 
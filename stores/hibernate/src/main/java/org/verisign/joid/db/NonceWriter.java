@@ -0,0 +1,303 @@
+//
+// (C) Copyright 2007 VeriSign, Inc.  All Rights Reserved.
+//
+// VeriSign, Inc. shall have no responsibility, financial or
+// otherwise, for any consequences arising out of the use of
+// this material. The program material is provided on an "AS IS"
+// BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+// express or implied.
+//
+// Distributed under an Apache License
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+
+package org.verisign.joid.db;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+import org.verisign.joid.INonce;
+import org.verisign.joid.OpenIdException;
+
+
+/**
+ * Group-commits nonce claims. Threads claiming a nonce queue it and wait;
+ * a single writer thread takes whatever claims have queued up and inserts
+ * them in one transaction. Under load many logins share one commit, and an
+ * idle store still writes a lone claim straight away.
+ *
+ * A claim is refused when the unique key on the nonce column rejects it.
+ * If a batch holds a nonce that is already stored, the batch is rolled
+ * back and its claims are inserted one by one to tell them apart.
+ */
+class NonceWriter
+{
+    private final static Log log = LogFactory.getLog( NonceWriter.class );
+
+    private final BlockingQueue<Claim> queue = new LinkedBlockingQueue<Claim>();
+    private final int maxBatchSize;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+
+    NonceWriter( int maxBatchSize )
+    {
+        this.maxBatchSize = maxBatchSize;
+        writer = new Thread( "joid-nonce-writer" )
+        {
+            public void run()
+            {
+                write();
+            }
+        };
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+
+    /**
+     * Queues a claim and waits for the batch holding it to be written.
+     *
+     * @param n the nonce to claim.
+     * @return true if the nonce was inserted; false if it was already stored.
+     * @throws OpenIdException if the nonce could not be written.
+     */
+    boolean claim( INonce n ) throws OpenIdException
+    {
+        if ( !running )
+        {
+            throw new OpenIdException( "Nonce writer has been shut down" );
+        }
+        Claim claim = new Claim( n );
+        queue.add( claim );
+        // the writer may have stopped and drained the queue since the check
+        // above; whoever removes the claim from the queue completes it
+        if ( !running && queue.remove( claim ) )
+        {
+            throw new OpenIdException( "Nonce writer has been shut down" );
+        }
+        return claim.await();
+    }
+
+
+    /**
+     * Stops the writer thread. Claims still queued are failed.
+     */
+    void shutdown()
+    {
+        running = false;
+        writer.interrupt();
+    }
+
+
+    private void write()
+    {
+        List<Claim> batch = new ArrayList<Claim>( maxBatchSize );
+        try
+        {
+            while ( running )
+            {
+                batch.add( queue.take() );
+                queue.drainTo( batch, maxBatchSize - 1 );
+                try
+                {
+                    writeBatch( batch );
+                }
+                catch ( Throwable t )
+                {
+                    // keep the writer alive, or every later claim would wait forever
+                    log.error( "Could not write nonces", t );
+                    OpenIdException failure = new OpenIdException( "Could not store nonces: " + t );
+                    for ( Claim c : batch )
+                    {
+                        c.fail( failure );
+                    }
+                }
+                batch.clear();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            log.debug( "Nonce writer stopped." );
+        }
+
+        OpenIdException stopped = new OpenIdException( "Nonce writer has been shut down" );
+        for ( Claim c : batch )
+        {
+            c.fail( stopped );
+        }
+        Claim c;
+        while ( ( c = queue.poll() ) != null )
+        {
+            c.fail( stopped );
+        }
+    }
+
+
+    private void writeBatch( List<Claim> batch )
+    {
+        // a nonce claimed twice in the same batch only goes in once
+        List<Claim> inserts = new ArrayList<Claim>( batch.size() );
+        Set<String> seen = new HashSet<String>();
+        for ( Claim c : batch )
+        {
+            if ( seen.add( c.nonce.getNonce() ) )
+            {
+                inserts.add( c );
+            }
+            else
+            {
+                c.done( false );
+            }
+        }
+
+        if ( inserts.size() == 1 )
+        {
+            writeOne( inserts.get( 0 ) );
+            return;
+        }
+
+        Session session = HibernateUtil.currentSession();
+        Transaction tx = null;
+        try
+        {
+            tx = session.beginTransaction();
+            for ( Claim c : inserts )
+            {
+                session.save( c.nonce );
+            }
+            tx.commit();
+        }
+        catch ( ConstraintViolationException e )
+        {
+            rollback( tx );
+            HibernateUtil.closeSession();
+            for ( Claim c : inserts )
+            {
+                writeOne( c );
+            }
+            return;
+        }
+        catch ( HibernateException e )
+        {
+            rollback( tx );
+            HibernateUtil.closeSession();
+            OpenIdException failure = new OpenIdException( "Could not store nonces", e );
+            for ( Claim c : inserts )
+            {
+                c.fail( failure );
+            }
+            return;
+        }
+        HibernateUtil.closeSession();
+        for ( Claim c : inserts )
+        {
+            c.done( true );
+        }
+    }
+
+
+    private void writeOne( Claim c )
+    {
+        try
+        {
+            c.done( DbStore.insertNonce( c.nonce ) );
+        }
+        catch ( OpenIdException e )
+        {
+            c.fail( e );
+        }
+    }
+
+
+    static void rollback( Transaction tx )
+    {
+        if ( tx == null )
+        {
+            return;
+        }
+        try
+        {
+            tx.rollback();
+        }
+        catch ( HibernateException e )
+        {
+            log.warn( "Rollback failed", e );
+        }
+    }
+
+
+    /**
+     * A nonce waiting to be written.
+     */
+    private static final class Claim
+    {
+        private final INonce nonce;
+        private final CountDownLatch written = new CountDownLatch( 1 );
+        private volatile boolean inserted;
+        private volatile OpenIdException failure;
+
+
+        Claim( INonce nonce )
+        {
+            this.nonce = nonce;
+        }
+
+
+        /**
+         * Completes the claim unless it already is.
+         */
+        synchronized void done( boolean inserted )
+        {
+            if ( written.getCount() > 0 )
+            {
+                this.inserted = inserted;
+                written.countDown();
+            }
+        }
+
+
+        /**
+         * Fails the claim unless it is already completed.
+         */
+        synchronized void fail( OpenIdException failure )
+        {
+            if ( written.getCount() > 0 )
+            {
+                this.failure = failure;
+                written.countDown();
+            }
+        }
+
+
+        boolean await() throws OpenIdException
+        {
+            try
+            {
+                written.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new OpenIdException( "Interrupted while claiming nonce", e );
+            }
+            if ( failure != null )
+            {
+                throw failure;
+            }
+            return inserted;
+        }
+    }
+}
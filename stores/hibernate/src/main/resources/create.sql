@@ -6,18 +6,24 @@ drop table if exists Association, Nonce;
 
 CREATE TABLE Association (
     id int(11) NOT NULL auto_increment,
-    handle varchar(255) default NULL,
-    secret varchar(255) default NULL,
+    handle varchar(255) NOT NULL,
+    macKey varbinary(64) default NULL,
+    encryptedMacKey varbinary(64) default NULL,
+    publicDhKey varbinary(1025) default NULL,
     issuedDate datetime default NULL,
     lifetime int(11) default NULL,
+    expiresAt datetime default NULL,
     associationType varchar(255) default NULL,
-    PRIMARY KEY  (id)
+    PRIMARY KEY  (id),
+    UNIQUE KEY association_handle (handle),
+    KEY association_expires (expiresAt)
 );
 
 
 CREATE TABLE Nonce (
    id int(11) NOT NULL auto_increment,
-   nonce varchar(255) default NULL,
+   nonce varchar(255) NOT NULL,
    checkedDate datetime default NULL,
-   PRIMARY KEY  (id)
+   PRIMARY KEY  (id),
+   UNIQUE KEY nonce_unique (nonce)
 );
@@ -0,0 +1,25 @@
+-- Migrates the Association table created by earlier versions, which kept
+-- the MAC key as a base64 string, to the schema of create.sql. Run it once
+-- against MySQL 5.6 or later with the server stopped.
+
+ALTER TABLE Association
+    ADD macKey varbinary(64) default NULL AFTER handle,
+    ADD encryptedMacKey varbinary(64) default NULL AFTER macKey,
+    ADD publicDhKey varbinary(1025) default NULL AFTER encryptedMacKey,
+    ADD expiresAt datetime default NULL AFTER lifetime;
+
+UPDATE Association
+    SET macKey = FROM_BASE64(secret),
+        expiresAt = DATE_ADD(issuedDate, INTERVAL lifetime SECOND);
+
+-- handles are random, duplicates can only come from a double save
+DELETE a FROM Association a JOIN Association b
+    ON a.handle = b.handle AND a.id > b.id;
+
+DELETE FROM Association WHERE handle IS NULL;
+
+ALTER TABLE Association
+    DROP COLUMN secret,
+    MODIFY handle varchar(255) NOT NULL,
+    ADD UNIQUE KEY association_handle (handle),
+    ADD KEY association_expires (expiresAt);
@@ -0,0 +1,14 @@
+-- Adds the unique key on the nonce column to a Nonce table created by
+-- earlier versions. Without it DbStore looks a nonce up before saving it,
+-- which lets concurrent replays through. Run it once against MySQL with the
+-- server stopped.
+
+-- replays recorded before the key existed, keep the first check
+DELETE a FROM Nonce a JOIN Nonce b
+    ON a.nonce = b.nonce AND a.id > b.id;
+
+DELETE FROM Nonce WHERE nonce IS NULL;
+
+ALTER TABLE Nonce
+    MODIFY nonce varchar(255) NOT NULL,
+    ADD UNIQUE KEY nonce_unique (nonce);
@@ -22,6 +22,10 @@ package org.verisign.joid.db;
 import static org.junit.Assert.*;
 
 
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -80,9 +84,8 @@ public class TestDbStore
     {
         DiffieHellman dh = DiffieHellman.getDefault();
         Crypto crypto = new Crypto();
-        crypto.setDiffieHellman(dh);
 
-        AssociationRequest associationRequest = AssociationRequest.create(crypto);
+        AssociationRequest associationRequest = AssociationRequest.create(dh);
         
         association = ( Association ) dbStore.generateAssociation(associationRequest,  crypto );
     }
@@ -94,9 +97,10 @@ public class TestDbStore
 
     /**
      * Test method for {@link org.verisign.joid.db.DbStore#saveAssociation(org.verisign.joid.Association)}.
+     * @throws OpenIdException 
      */
     @Test
-    public void testSaveAssociation()
+    public void testSaveAssociation() throws OpenIdException
     {
         dbStore.saveAssociation( association );
         
@@ -168,4 +172,141 @@ public class TestDbStore
         assertEquals( n.getNonce(), nonce.getNonce() );
     }
     
+
+
+    /**
+     * Test method for {@link org.verisign.joid.db.DbStore#claimNonce(java.lang.String)}.
+     * @throws OpenIdException 
+     */
+    @Test
+    public void testClaimNonce() throws OpenIdException
+    {
+        String claimed = "2026-10-18T00:00:00Zclaim";
+        assertTrue( dbStore.claimNonce( claimed ) );
+        assertFalse( dbStore.claimNonce( claimed ) );
+        assertNotNull( dbStore.findNonce( claimed ) );
+    }
+
+
+    /**
+     * The schema of create.sql has the unique key claims rely on.
+     * @throws OpenIdException 
+     */
+    @Test
+    public void testNonceTableIsKeyed() throws OpenIdException
+    {
+        assertTrue( DbStore.hasUniqueNonceKey() );
+    }
+
+
+    /**
+     * Concurrent claims of one nonce must let exactly one through.
+     * @throws Exception 
+     */
+    @Test
+    public void testConcurrentClaimNonce() throws Exception
+    {
+        final String claimed = "2026-10-18T00:00:00Zrace";
+        final AtomicInteger winners = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if ( dbStore.claimNonce( claimed ) )
+                        {
+                            winners.incrementAndGet();
+                        }
+                    }
+                    catch ( OpenIdException e )
+                    {
+                        // counted as a loss
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+        assertEquals( 1, winners.get() );
+    }
+
+
+    /**
+     * Test method for {@link org.verisign.joid.db.DbStore#purgeNonces(java.util.Date, int)}.
+     * @throws OpenIdException 
+     */
+    @Test
+    public void testPurgeNonces() throws OpenIdException
+    {
+        Date future = new Date( System.currentTimeMillis() + 60000 );
+        while ( dbStore.purgeNonces( future, 1 ) == 1 )
+        {
+            // purged one by one
+        }
+        assertTrue( dbStore.claimNonce( "2026-10-18T00:00:00Zpurge" ) );
+        assertEquals( 1, dbStore.purgeNonces( future, 10 ) );
+        assertNull( dbStore.findNonce( "2026-10-18T00:00:00Zpurge" ) );
+    }
+
+
+    /**
+     * A public key larger than the publicDhKey column must be refused, not
+     * truncated, while one that just fits is kept whole.
+     * @throws OpenIdException 
+     */
+    @Test
+    public void testOversizedPublicKeyIsRefused() throws OpenIdException
+    {
+        AssociationRequest request = AssociationRequest.create( DiffieHellman.getDefault() );
+        Association a = ( Association ) dbStore.generateAssociation( request, new Crypto() );
+        // 2^8192 has 8193 bits and takes exactly 1025 bytes with its sign byte
+        BigInteger largest = BigInteger.ONE.shiftLeft( 8192 );
+        a.setPublicDhKey( largest );
+        dbStore.saveAssociation( a );
+        assertEquals( largest, dbStore.findAssociation( a.getHandle() ).getPublicDhKey() );
+
+        Association b = ( Association ) dbStore.generateAssociation( request, new Crypto() );
+        // 2^8200 takes 1026 bytes
+        b.setPublicDhKey( BigInteger.ONE.shiftLeft( 8200 ) );
+        try
+        {
+            dbStore.saveAssociation( b );
+            fail( "an oversized public key must not be saved" );
+        }
+        catch ( OpenIdException expected )
+        {
+        }
+        assertNull( dbStore.findAssociation( b.getHandle() ) );
+    }
+
+
+    /**
+     * Test method for {@link org.verisign.joid.db.DbStore#purgeExpiredAssociations(java.util.Date, int)}
+     * and the binary columns of the association mapping.
+     * @throws OpenIdException 
+     */
+    @Test
+    public void testAssociationKeysAndExpiry() throws OpenIdException
+    {
+        AssociationRequest request = AssociationRequest.create( DiffieHellman.getDefault() );
+        Association a = ( Association ) dbStore.generateAssociation( request, new Crypto() );
+        a.setIssuedDate( new Date( System.currentTimeMillis() - 7200000 ) );
+        dbStore.saveAssociation( a );
+
+        Association found = ( Association ) dbStore.findAssociation( a.getHandle() );
+        assertArrayEquals( a.getMacKey(), found.getMacKey() );
+        assertArrayEquals( a.getEncryptedMacKey(), found.getEncryptedMacKey() );
+        assertEquals( a.getPublicDhKey(), found.getPublicDhKey() );
+        assertEquals( a.getExpiresAt().getTime() / 1000, found.getExpiresAt().getTime() / 1000 );
+
+        assertEquals( 1, dbStore.purgeExpiredAssociations( new Date(), 10 ) );
+        assertNull( dbStore.findAssociation( a.getHandle() ) );
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.jdbc;
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A pooled connection with the statements prepared on it. A statement is
+ * prepared the first time its SQL is used on the connection and reused
+ * afterwards. Only one thread uses a connection at a time, so the cache
+ * needs no locking.
+ */
+class CachedConnection
+{
+    private static final Log LOG = LogFactory.getLog( CachedConnection.class );
+
+    private final Connection connection;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    private long releasedAt;
+
+
+    CachedConnection( Connection connection )
+    {
+        this.connection = connection;
+    }
+
+
+    /**
+     * @return the underlying connection.
+     */
+    Connection getConnection()
+    {
+        return connection;
+    }
+
+
+    /**
+     * @return the time the connection was last given back to the pool, in
+     *  milliseconds.
+     */
+    long getReleasedAt()
+    {
+        return releasedAt;
+    }
+
+
+    void setReleasedAt( long releasedAt )
+    {
+        this.releasedAt = releasedAt;
+    }
+
+
+    /**
+     * Runs the query, through a statement prepared on this connection like
+     * any other.
+     *
+     * @param query the validation query.
+     * @return true if the query succeeded.
+     */
+    boolean validate( String query )
+    {
+        try
+        {
+            ResultSet rs = prepare( query ).executeQuery();
+            rs.close();
+            return true;
+        }
+        catch ( SQLException e )
+        {
+            LOG.debug( "Idle connection failed validation", e );
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns the statement prepared for the SQL, preparing it if needed.
+     * Its parameters are cleared.
+     *
+     * @param sql the statement SQL.
+     * @return the prepared statement.
+     * @throws SQLException if the statement could not be prepared.
+     */
+    PreparedStatement prepare( String sql ) throws SQLException
+    {
+        PreparedStatement statement = statements.get( sql );
+
+        if ( statement == null )
+        {
+            statement = connection.prepareStatement( sql );
+            statements.put( sql, statement );
+        }
+        else
+        {
+            statement.clearParameters();
+        }
+
+        return statement;
+    }
+
+
+    /**
+     * Closes the statements and the connection, ignoring failures.
+     */
+    void close()
+    {
+        for ( PreparedStatement statement : statements.values() )
+        {
+            try
+            {
+                statement.close();
+            }
+            catch ( SQLException e )
+            {
+                LOG.debug( "Failed to close statement", e );
+            }
+        }
+
+        statements.clear();
+
+        try
+        {
+            connection.close();
+        }
+        catch ( SQLException e )
+        {
+            LOG.debug( "Failed to close connection", e );
+        }
+    }
+}
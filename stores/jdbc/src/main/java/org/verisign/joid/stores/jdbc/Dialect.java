@@ -0,0 +1,141 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.jdbc;
+
+
+/**
+ * The SQL flavours a {@link JdbcStore} can talk. Each one brings the
+ * statements that differ between databases: the upserts saving an
+ * association or a nonce in one statement, the nonce claim that inserts
+ * nothing when the nonce is already stored, and the deletes bounded to a
+ * number of rows. Statements are written so that every dialect takes the
+ * same parameters in the same order.
+ */
+public enum Dialect
+{
+    H2(
+        "MERGE INTO Association (handle, macKey, issuedDate, lifetime, associationType, expiresAt) "
+            + "KEY (handle) VALUES (?, ?, ?, ?, ?, ?)",
+        "MERGE INTO Nonce (nonce, checkedDate) KEY (nonce) VALUES (?, ?)",
+        "INSERT INTO Nonce (nonce, checkedDate) VALUES (?, ?)",
+        "DELETE FROM Association WHERE expiresAt <= ? LIMIT ?",
+        "DELETE FROM Nonce WHERE checkedDate < ? LIMIT ?" ),
+
+    POSTGRESQL(
+        "INSERT INTO Association (handle, macKey, issuedDate, lifetime, associationType, expiresAt) "
+            + "VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT (handle) DO UPDATE SET macKey = EXCLUDED.macKey, "
+            + "issuedDate = EXCLUDED.issuedDate, lifetime = EXCLUDED.lifetime, "
+            + "associationType = EXCLUDED.associationType, expiresAt = EXCLUDED.expiresAt",
+        "INSERT INTO Nonce (nonce, checkedDate) VALUES (?, ?) "
+            + "ON CONFLICT (nonce) DO UPDATE SET checkedDate = EXCLUDED.checkedDate",
+        "INSERT INTO Nonce (nonce, checkedDate) VALUES (?, ?) ON CONFLICT (nonce) DO NOTHING",
+        "DELETE FROM Association WHERE handle IN "
+            + "(SELECT handle FROM Association WHERE expiresAt <= ? LIMIT ?)",
+        "DELETE FROM Nonce WHERE nonce IN (SELECT nonce FROM Nonce WHERE checkedDate < ? LIMIT ?)" ),
+
+    MYSQL(
+        "INSERT INTO Association (handle, macKey, issuedDate, lifetime, associationType, expiresAt) "
+            + "VALUES (?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE macKey = VALUES(macKey), "
+            + "issuedDate = VALUES(issuedDate), lifetime = VALUES(lifetime), "
+            + "associationType = VALUES(associationType), expiresAt = VALUES(expiresAt)",
+        "INSERT INTO Nonce (nonce, checkedDate) VALUES (?, ?) "
+            + "ON DUPLICATE KEY UPDATE checkedDate = VALUES(checkedDate)",
+        "INSERT IGNORE INTO Nonce (nonce, checkedDate) VALUES (?, ?)",
+        "DELETE FROM Association WHERE expiresAt <= ? LIMIT ?",
+        "DELETE FROM Nonce WHERE checkedDate < ? LIMIT ?" );
+
+    private final String saveAssociation;
+    private final String saveNonce;
+    private final String claimNonce;
+    private final String purgeAssociations;
+    private final String purgeNonces;
+
+
+    private Dialect( String saveAssociation, String saveNonce, String claimNonce,
+        String purgeAssociations, String purgeNonces )
+    {
+        this.saveAssociation = saveAssociation;
+        this.saveNonce = saveNonce;
+        this.claimNonce = claimNonce;
+        this.purgeAssociations = purgeAssociations;
+        this.purgeNonces = purgeNonces;
+    }
+
+
+    /**
+     * @return the statement inserting or replacing an association, taking
+     *  the handle, MAC key, issued date, lifetime, type and expiry date.
+     */
+    public String getSaveAssociation()
+    {
+        return saveAssociation;
+    }
+
+
+    /**
+     * @return the statement inserting or replacing a nonce, taking the nonce
+     *  and its checked date.
+     */
+    public String getSaveNonce()
+    {
+        return saveNonce;
+    }
+
+
+    /**
+     * @return the statement inserting a nonce, taking the nonce and its
+     *  checked date. It either updates no row or fails with an integrity
+     *  constraint violation when the nonce is already stored.
+     */
+    public String getClaimNonce()
+    {
+        return claimNonce;
+    }
+
+
+    /**
+     * @return the statement deleting associations expired at a date, taking
+     *  the date and the largest number of rows to delete.
+     */
+    public String getPurgeAssociations()
+    {
+        return purgeAssociations;
+    }
+
+
+    /**
+     * @return the statement deleting nonces checked before a date, taking
+     *  the date and the largest number of rows to delete.
+     */
+    public String getPurgeNonces()
+    {
+        return purgeNonces;
+    }
+
+
+    /**
+     * @return the name of the resource holding the schema of this dialect,
+     *  relative to this class.
+     */
+    public String getSchemaResource()
+    {
+        return name().toLowerCase() + ".sql";
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.jdbc;
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+
+/**
+ * A bounded pool of JDBC connections for a {@link JdbcStore}. Connections
+ * are opened as they are needed, up to the maximum size, and kept open with
+ * the statements prepared on them. A thread asking for a connection while
+ * all of them are in use waits for one to be released, for the acquire
+ * timeout at most.
+ *
+ * A connection released after a failure is closed rather than reused, so a
+ * connection the database dropped does not linger in the pool. A connection
+ * left idle for longer than the validation interval may have been dropped
+ * meanwhile, by the database or a firewall, so it is checked with the
+ * validation query before it is handed out again.
+ */
+public class JdbcConnectionPool
+{
+    public static final int DEFAULT_MAX_SIZE = 10;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 5000;
+    public static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+    public static final String DEFAULT_VALIDATION_QUERY = "SELECT 1";
+
+    private final DataSource dataSource;
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private final Semaphore permits;
+    private final BlockingQueue<CachedConnection> idle = new LinkedBlockingQueue<CachedConnection>();
+
+    private volatile long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+    private volatile long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+    private volatile String validationQuery = DEFAULT_VALIDATION_QUERY;
+    private volatile boolean closed;
+
+
+    /**
+     * Creates a pool opening connections through the driver manager.
+     *
+     * @param url the JDBC URL of the database.
+     * @param user the database user.
+     * @param password the password of the user.
+     * @param maxSize the largest number of connections open at once.
+     */
+    public JdbcConnectionPool( String url, String user, String password, int maxSize )
+    {
+        this.dataSource = null;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.permits = new Semaphore( maxSize, true );
+    }
+
+
+    /**
+     * Creates a pool opening connections from a data source.
+     *
+     * @param dataSource the data source of the database.
+     * @param maxSize the largest number of connections open at once.
+     */
+    public JdbcConnectionPool( DataSource dataSource, int maxSize )
+    {
+        this.dataSource = dataSource;
+        this.url = null;
+        this.user = null;
+        this.password = null;
+        this.permits = new Semaphore( maxSize, true );
+    }
+
+
+    /**
+     * Sets how long to wait for a connection when all are in use.
+     *
+     * @param acquireTimeout the time in milliseconds.
+     */
+    public void setAcquireTimeout( long acquireTimeout )
+    {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+
+    /**
+     * Sets how long a connection may stay idle before it is validated on
+     * its next use.
+     *
+     * @param validationInterval the time in milliseconds.
+     */
+    public void setValidationInterval( long validationInterval )
+    {
+        this.validationInterval = validationInterval;
+    }
+
+
+    /**
+     * Sets the query validating an idle connection. The default suits every
+     * {@link Dialect}.
+     *
+     * @param validationQuery a query that succeeds on a working connection.
+     */
+    public void setValidationQuery( String validationQuery )
+    {
+        this.validationQuery = validationQuery;
+    }
+
+
+    /**
+     * @return the number of open connections not in use.
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+
+    /**
+     * Takes a connection, opening one if none is idle. Idle connections
+     * failing validation are closed and passed over.
+     *
+     * @return a connection in auto-commit mode.
+     * @throws SQLException if the pool is closed, no connection was released
+     *  in time or a connection could not be opened.
+     */
+    CachedConnection acquire() throws SQLException
+    {
+        if ( closed )
+        {
+            throw new SQLException( "Connection pool is closed" );
+        }
+
+        try
+        {
+            if ( !permits.tryAcquire( acquireTimeout, TimeUnit.MILLISECONDS ) )
+            {
+                throw new SQLException( "Timed out waiting for a connection" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            SQLException failure = new SQLException( "Interrupted while waiting for a connection" );
+            failure.initCause( e );
+            throw failure;
+        }
+
+        CachedConnection connection;
+
+        while ( ( connection = idle.poll() ) != null )
+        {
+            if ( System.currentTimeMillis() - connection.getReleasedAt() < validationInterval
+                || connection.validate( validationQuery ) )
+            {
+                return connection;
+            }
+
+            connection.close();
+        }
+
+        try
+        {
+            return new CachedConnection( connect() );
+        }
+        catch ( SQLException e )
+        {
+            permits.release();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Gives a connection back.
+     *
+     * @param connection the connection taken from this pool.
+     * @param broken true if the connection failed and must be closed.
+     */
+    void release( CachedConnection connection, boolean broken )
+    {
+        if ( broken || closed )
+        {
+            connection.close();
+        }
+        else
+        {
+            connection.setReleasedAt( System.currentTimeMillis() );
+            idle.offer( connection );
+        }
+
+        permits.release();
+    }
+
+
+    /**
+     * Closes the idle connections. Connections in use are closed as they are
+     * released.
+     */
+    public void close()
+    {
+        closed = true;
+        CachedConnection connection;
+
+        while ( ( connection = idle.poll() ) != null )
+        {
+            connection.close();
+        }
+    }
+
+
+    private Connection connect() throws SQLException
+    {
+        if ( dataSource != null )
+        {
+            return dataSource.getConnection();
+        }
+
+        return DriverManager.getConnection( url, user, password );
+    }
+}
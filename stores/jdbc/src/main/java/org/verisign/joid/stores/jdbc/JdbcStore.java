@@ -0,0 +1,556 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.jdbc;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.AssociationType;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.INonce;
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.IReapableStore;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.server.Association;
+import org.verisign.joid.server.Nonce;
+
+
+/**
+ * An IStore on plain JDBC. Every operation is a single prepared statement,
+ * run on a connection of a {@link JdbcConnectionPool} in auto-commit mode:
+ * associations and nonces are saved with upserts, and a nonce is claimed
+ * with an insert the primary key lets through only once.
+ *
+ * The tables are created with {@link #createSchema()} from the schema of
+ * the {@link Dialect}.
+ */
+public class JdbcStore implements IReapableStore, INonceClaimingStore
+{
+    private final static Log LOG = LogFactory.getLog( JdbcStore.class );
+
+    private static final String FIND_ASSOCIATION =
+        "SELECT macKey, issuedDate, lifetime, associationType FROM Association WHERE handle = ?";
+
+    private static final String DELETE_ASSOCIATION = "DELETE FROM Association WHERE handle = ?";
+
+    private static final String FIND_NONCE = "SELECT checkedDate FROM Nonce WHERE nonce = ?";
+
+    /** SQL states of this class report integrity constraint violations */
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+    private final JdbcConnectionPool pool;
+    private final Dialect dialect;
+
+    /** The association life time */
+    private long associationLifetime = 600;
+
+
+    /**
+     * Creates a store.
+     *
+     * @param pool the pool of connections to the database.
+     * @param dialect the SQL flavour of the database.
+     */
+    public JdbcStore( JdbcConnectionPool pool, Dialect dialect )
+    {
+        this.pool = pool;
+        this.dialect = dialect;
+    }
+
+
+    /**
+     * @param associationLifetime the associationLifetime to set
+     */
+    public void setAssociationLifetime( long associationLifetime )
+    {
+        this.associationLifetime = associationLifetime;
+    }
+
+
+    /**
+     * @return the associationLifetime
+     */
+    public long getAssociationLifetime()
+    {
+        return associationLifetime;
+    }
+
+
+    /**
+     * Creates the tables and indexes missing from the database.
+     *
+     * @throws OpenIdException if the schema could not be read or run.
+     */
+    public void createSchema() throws OpenIdException
+    {
+        final String[] statements = readSchema().split( ";" );
+
+        execute( "create schema", new Call<Void>()
+        {
+            public Void run( CachedConnection connection ) throws SQLException
+            {
+                Statement statement = connection.getConnection().createStatement();
+
+                try
+                {
+                    for ( String sql : statements )
+                    {
+                        if ( sql.trim().length() > 0 )
+                        {
+                            statement.execute( sql );
+                        }
+                    }
+                }
+                finally
+                {
+                    statement.close();
+                }
+
+                return null;
+            }
+        } );
+    }
+
+
+    public IAssociation generateAssociation( AssociationRequest req, Crypto crypto )
+        throws OpenIdException
+    {
+        Association a = new Association();
+        a.setHandle( Crypto.generateHandle() );
+        a.setSessionType( req.getSessionType() );
+
+        byte[] secret = null;
+        if ( req.isNotEncrypted() )
+        {
+            secret = crypto.generateSecret( req.getAssociationType().toString() );
+        }
+        else
+        {
+            secret = crypto.generateSecret( req.getSessionType().toString() );
+            DiffieHellman dh = crypto.generateDiffieHellman( req.getDhModulus(), req.getDhGenerator() );
+            byte[] encryptedSecret = crypto.encryptSecret( dh, req.getDhConsumerPublic(), secret );
+            a.setEncryptedMacKey( encryptedSecret );
+            a.setPublicDhKey( dh.getPublicKey() );
+        }
+        a.setMacKey( secret );
+        a.setIssuedDate( new Date() );
+        // lifetime in seconds
+        a.setLifetime( new Long( associationLifetime ) );
+
+        a.setAssociationType( req.getAssociationType() );
+        return a;
+    }
+
+
+    public void saveAssociation( final IAssociation a ) throws OpenIdException
+    {
+        execute( "save association", new Call<Void>()
+        {
+            public Void run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( dialect.getSaveAssociation() );
+                bindAssociation( statement, a );
+                statement.executeUpdate();
+                return null;
+            }
+        } );
+    }
+
+
+    /**
+     * Saves associations in one batch and one transaction.
+     *
+     * @param associations the associations to save.
+     * @throws OpenIdException if the batch failed; none is saved then.
+     */
+    public void saveAssociations( final Collection<? extends IAssociation> associations )
+        throws OpenIdException
+    {
+        execute( "save associations", new Call<Void>()
+        {
+            public Void run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( dialect.getSaveAssociation() );
+
+                for ( IAssociation a : associations )
+                {
+                    bindAssociation( statement, a );
+                    statement.addBatch();
+                }
+
+                executeBatch( connection, statement );
+                return null;
+            }
+        } );
+    }
+
+
+    public void deleteAssociation( final IAssociation a ) throws OpenIdException
+    {
+        execute( "delete association", new Call<Void>()
+        {
+            public Void run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( DELETE_ASSOCIATION );
+                statement.setString( 1, a.getHandle() );
+                statement.executeUpdate();
+                return null;
+            }
+        } );
+    }
+
+
+    public IAssociation findAssociation( final String handle ) throws OpenIdException
+    {
+        if ( handle == null )
+        {
+            return null;
+        }
+
+        return execute( "find association", new Call<IAssociation>()
+        {
+            public IAssociation run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( FIND_ASSOCIATION );
+                statement.setString( 1, handle );
+                ResultSet rs = statement.executeQuery();
+
+                try
+                {
+                    if ( !rs.next() )
+                    {
+                        return null;
+                    }
+
+                    Association a = new Association();
+                    a.setHandle( handle );
+                    a.setMacKey( rs.getBytes( 1 ) );
+                    a.setIssuedDate( new Date( rs.getTimestamp( 2 ).getTime() ) );
+                    a.setLifetime( new Long( rs.getLong( 3 ) ) );
+                    a.setAssociationType( AssociationType.parse( rs.getString( 4 ) ) );
+                    return a;
+                }
+                finally
+                {
+                    rs.close();
+                }
+            }
+        } );
+    }
+
+
+    public INonce findNonce( final String nonce ) throws OpenIdException
+    {
+        return execute( "find nonce", new Call<INonce>()
+        {
+            public INonce run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( FIND_NONCE );
+                statement.setString( 1, nonce );
+                ResultSet rs = statement.executeQuery();
+
+                try
+                {
+                    if ( !rs.next() )
+                    {
+                        return null;
+                    }
+
+                    Nonce n = new Nonce();
+                    n.setNonce( nonce );
+                    n.setCheckedDate( new Date( rs.getTimestamp( 1 ).getTime() ) );
+                    return n;
+                }
+                finally
+                {
+                    rs.close();
+                }
+            }
+        } );
+    }
+
+
+    public void saveNonce( final INonce n ) throws OpenIdException
+    {
+        execute( "save nonce", new Call<Void>()
+        {
+            public Void run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( dialect.getSaveNonce() );
+                bindNonce( statement, n );
+                statement.executeUpdate();
+                return null;
+            }
+        } );
+    }
+
+
+    /**
+     * Saves nonces in one batch and one transaction.
+     *
+     * @param nonces the nonces to save.
+     * @throws OpenIdException if the batch failed; none is saved then.
+     */
+    public void saveNonces( final Collection<? extends INonce> nonces ) throws OpenIdException
+    {
+        execute( "save nonces", new Call<Void>()
+        {
+            public Void run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( dialect.getSaveNonce() );
+
+                for ( INonce n : nonces )
+                {
+                    bindNonce( statement, n );
+                    statement.addBatch();
+                }
+
+                executeBatch( connection, statement );
+                return null;
+            }
+        } );
+    }
+
+
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        final INonce n = generateNonce( nonce );
+
+        return execute( "claim nonce", new Call<Boolean>()
+        {
+            public Boolean run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( dialect.getClaimNonce() );
+                bindNonce( statement, n );
+
+                try
+                {
+                    return Boolean.valueOf( statement.executeUpdate() > 0 );
+                }
+                catch ( SQLException e )
+                {
+                    if ( isConstraintViolation( e ) )
+                    {
+                        return Boolean.FALSE;
+                    }
+                    throw e;
+                }
+            }
+        } ).booleanValue();
+    }
+
+
+    public INonce generateNonce( String nonce ) throws OpenIdException
+    {
+        Nonce n = new Nonce();
+        n.setNonce( nonce );
+        n.setCheckedDate( new Date() );
+        return n;
+    }
+
+
+    public int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException
+    {
+        return purge( "purge associations", dialect.getPurgeAssociations(), now, limit );
+    }
+
+
+    public int purgeNonces( Date checkedBefore, int limit ) throws OpenIdException
+    {
+        return purge( "purge nonces", dialect.getPurgeNonces(), checkedBefore, limit );
+    }
+
+
+    /**
+     * Closes the connection pool.
+     */
+    public void shutdown()
+    {
+        pool.close();
+    }
+
+
+    private int purge( String what, final String sql, final Date date, final int limit )
+        throws OpenIdException
+    {
+        return execute( what, new Call<Integer>()
+        {
+            public Integer run( CachedConnection connection ) throws SQLException
+            {
+                PreparedStatement statement = connection.prepare( sql );
+                statement.setTimestamp( 1, new Timestamp( date.getTime() ) );
+                statement.setInt( 2, limit );
+                return Integer.valueOf( statement.executeUpdate() );
+            }
+        } ).intValue();
+    }
+
+
+    private static void bindAssociation( PreparedStatement statement, IAssociation a ) throws SQLException
+    {
+        long issued = a.getIssuedDate().getTime();
+        statement.setString( 1, a.getHandle() );
+        statement.setBytes( 2, a.getMacKey() );
+        statement.setTimestamp( 3, new Timestamp( issued ) );
+        statement.setLong( 4, a.getLifetime().longValue() );
+        statement.setString( 5, a.getAssociationType().toString() );
+        statement.setTimestamp( 6, new Timestamp( issued + a.getLifetime().longValue() * 1000 ) );
+    }
+
+
+    private static void bindNonce( PreparedStatement statement, INonce n ) throws SQLException
+    {
+        statement.setString( 1, n.getNonce() );
+        statement.setTimestamp( 2, new Timestamp( n.getCheckedDate().getTime() ) );
+    }
+
+
+    private static void executeBatch( CachedConnection cached, PreparedStatement statement )
+        throws SQLException
+    {
+        Connection connection = cached.getConnection();
+        connection.setAutoCommit( false );
+
+        try
+        {
+            statement.executeBatch();
+            connection.commit();
+        }
+        catch ( SQLException e )
+        {
+            statement.clearBatch();
+            connection.rollback();
+            throw e;
+        }
+        finally
+        {
+            connection.setAutoCommit( true );
+        }
+    }
+
+
+    private static boolean isConstraintViolation( SQLException e )
+    {
+        return e.getSQLState() != null && e.getSQLState().startsWith( INTEGRITY_CONSTRAINT_VIOLATION );
+    }
+
+
+    private String readSchema() throws OpenIdException
+    {
+        InputStream in = JdbcStore.class.getResourceAsStream( dialect.getSchemaResource() );
+
+        if ( in == null )
+        {
+            throw new OpenIdException( "No schema found for " + dialect );
+        }
+
+        try
+        {
+            Reader reader = new InputStreamReader( in, "UTF-8" );
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[1024];
+            int n;
+
+            while ( ( n = reader.read( buffer ) ) > 0 )
+            {
+                sb.append( buffer, 0, n );
+            }
+
+            return sb.toString();
+        }
+        catch ( IOException e )
+        {
+            throw new OpenIdException( "Could not read schema for " + dialect, e );
+        }
+        finally
+        {
+            try
+            {
+                in.close();
+            }
+            catch ( IOException e )
+            {
+                LOG.debug( "Failed to close schema", e );
+            }
+        }
+    }
+
+
+    /**
+     * Runs a call on a pooled connection. The connection is closed instead
+     * of being reused if the call fails.
+     */
+    private <T> T execute( String what, Call<T> call ) throws OpenIdException
+    {
+        CachedConnection connection;
+
+        try
+        {
+            connection = pool.acquire();
+        }
+        catch ( SQLException e )
+        {
+            throw new OpenIdException( "Could not " + what + ": " + e.getMessage(), e );
+        }
+
+        boolean broken = true;
+
+        try
+        {
+            T result = call.run( connection );
+            broken = false;
+            return result;
+        }
+        catch ( SQLException e )
+        {
+            LOG.error( "Could not " + what, e );
+            throw new OpenIdException( "Could not " + what + ": " + e.getMessage(), e );
+        }
+        finally
+        {
+            pool.release( connection, broken );
+        }
+    }
+
+
+    /**
+     * A piece of work done on a pooled connection.
+     */
+    private interface Call<T>
+    {
+        T run( CachedConnection connection ) throws SQLException;
+    }
+}
@@ -0,0 +1,17 @@
+CREATE TABLE IF NOT EXISTS Association (
+    handle varchar(255) NOT NULL,
+    macKey varbinary(64) NOT NULL,
+    issuedDate datetime NOT NULL,
+    lifetime bigint NOT NULL,
+    associationType varchar(32) NOT NULL,
+    expiresAt datetime NOT NULL,
+    PRIMARY KEY (handle),
+    KEY association_expires (expiresAt)
+) ENGINE=InnoDB;
+
+CREATE TABLE IF NOT EXISTS Nonce (
+    nonce varchar(255) NOT NULL,
+    checkedDate datetime NOT NULL,
+    PRIMARY KEY (nonce),
+    KEY nonce_checked (checkedDate)
+) ENGINE=InnoDB;
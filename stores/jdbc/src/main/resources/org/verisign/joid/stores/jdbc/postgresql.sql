@@ -0,0 +1,19 @@
+CREATE TABLE IF NOT EXISTS Association (
+    handle varchar(255) NOT NULL,
+    macKey bytea NOT NULL,
+    issuedDate timestamp NOT NULL,
+    lifetime bigint NOT NULL,
+    associationType varchar(32) NOT NULL,
+    expiresAt timestamp NOT NULL,
+    PRIMARY KEY (handle)
+);
+
+CREATE INDEX IF NOT EXISTS association_expires ON Association (expiresAt);
+
+CREATE TABLE IF NOT EXISTS Nonce (
+    nonce varchar(255) NOT NULL,
+    checkedDate timestamp NOT NULL,
+    PRIMARY KEY (nonce)
+);
+
+CREATE INDEX IF NOT EXISTS nonce_checked ON Nonce (checkedDate);
@@ -0,0 +1,225 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.jdbc;
+
+import static org.junit.Assert.*;
+
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.INonce;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.server.Association;
+import org.verisign.joid.server.Nonce;
+
+
+/**
+ * Tests for {@link JdbcStore} against an embedded H2 database.
+ */
+public class TestJdbcStore
+{
+    private static JdbcConnectionPool pool;
+    private static JdbcStore store;
+
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        Class.forName( "org.h2.Driver" );
+        pool = new JdbcConnectionPool( "jdbc:h2:mem:joid;DB_CLOSE_DELAY=-1", "sa", "", 4 );
+        store = new JdbcStore( pool, Dialect.H2 );
+        store.createSchema();
+        // creating the schema twice leaves it as it is
+        store.createSchema();
+    }
+
+
+    @AfterClass
+    public static void tearDownClass() throws Exception
+    {
+        store.shutdown();
+        store = null;
+    }
+
+
+    private static Association generateAssociation() throws OpenIdException
+    {
+        AssociationRequest request = AssociationRequest.create( DiffieHellman.getDefault() );
+        return ( Association ) store.generateAssociation( request, new Crypto() );
+    }
+
+
+    private static Nonce nonce( String value, Date checkedDate )
+    {
+        Nonce n = new Nonce();
+        n.setNonce( value );
+        n.setCheckedDate( checkedDate );
+        return n;
+    }
+
+
+    @Test
+    public void testSaveFindAndDeleteAssociation() throws OpenIdException
+    {
+        Association association = generateAssociation();
+        store.saveAssociation( association );
+
+        IAssociation found = store.findAssociation( association.getHandle() );
+        assertNotNull( found );
+        assertEquals( association.getSecret(), found.getSecret() );
+        assertEquals( association.getLifetime(), found.getLifetime() );
+        assertEquals( association.getAssociationType(), found.getAssociationType() );
+        assertEquals( association.getIssuedDate().getTime() / 1000, found.getIssuedDate().getTime() / 1000 );
+
+        // saving again replaces the row
+        association.setLifetime( new Long( 60 ) );
+        store.saveAssociation( association );
+        assertEquals( new Long( 60 ), store.findAssociation( association.getHandle() ).getLifetime() );
+
+        store.deleteAssociation( association );
+        assertNull( store.findAssociation( association.getHandle() ) );
+        assertNull( store.findAssociation( null ) );
+    }
+
+
+    @Test
+    public void testIdleConnectionsAreValidated() throws Exception
+    {
+        JdbcConnectionPool validating = new JdbcConnectionPool( "jdbc:h2:mem:joid;DB_CLOSE_DELAY=-1", "sa", "", 1 );
+        validating.setValidationInterval( 0 );
+
+        CachedConnection dropped = validating.acquire();
+        validating.release( dropped, false );
+        assertSame( dropped, validating.acquire() );
+
+        // the database drops the connection while it is idle
+        dropped.getConnection().close();
+        validating.release( dropped, false );
+        CachedConnection fresh = validating.acquire();
+        assertNotSame( dropped, fresh );
+        assertTrue( fresh.validate( JdbcConnectionPool.DEFAULT_VALIDATION_QUERY ) );
+        validating.release( fresh, false );
+        validating.close();
+    }
+
+
+    @Test
+    public void testSaveAndFindNonce() throws OpenIdException
+    {
+        assertNull( store.findNonce( "jdbc-saved" ) );
+        store.saveNonce( store.generateNonce( "jdbc-saved" ) );
+        store.saveNonce( store.generateNonce( "jdbc-saved" ) );
+        assertEquals( "jdbc-saved", store.findNonce( "jdbc-saved" ).getNonce() );
+    }
+
+
+    @Test
+    public void testClaimNonce() throws OpenIdException
+    {
+        assertTrue( store.claimNonce( "jdbc-claimed" ) );
+        assertFalse( store.claimNonce( "jdbc-claimed" ) );
+        assertNotNull( store.findNonce( "jdbc-claimed" ) );
+    }
+
+
+    @Test
+    public void testConcurrentClaimNonce() throws Exception
+    {
+        final AtomicInteger claimed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        Thread[] threads = new Thread[8];
+
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        if ( store.claimNonce( "jdbc-contended" ) )
+                        {
+                            claimed.incrementAndGet();
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        failed.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for ( Thread t : threads )
+        {
+            t.join();
+        }
+
+        assertEquals( 0, failed.get() );
+        assertEquals( 1, claimed.get() );
+        // the pool never opens more connections than its size
+        assertTrue( pool.getIdleCount() <= 4 );
+    }
+
+
+    @Test
+    public void testBatchesAndPurges() throws OpenIdException
+    {
+        Date old = new Date( System.currentTimeMillis() - 7200 * 1000L );
+        List<INonce> nonces = new ArrayList<INonce>();
+        for ( int i = 0; i < 5; i++ )
+        {
+            nonces.add( nonce( "jdbc-old-" + i, old ) );
+        }
+        store.saveNonces( nonces );
+
+        Date cutoff = new Date( System.currentTimeMillis() - 3600 * 1000L );
+        assertEquals( 2, store.purgeNonces( cutoff, 2 ) );
+        assertEquals( 3, store.purgeNonces( cutoff, 10 ) );
+        assertEquals( 0, store.purgeNonces( cutoff, 10 ) );
+
+        Association expired = generateAssociation();
+        expired.setIssuedDate( old );
+        Association live = generateAssociation();
+        List<IAssociation> associations = new ArrayList<IAssociation>();
+        associations.add( expired );
+        associations.add( live );
+        store.saveAssociations( associations );
+
+        assertEquals( 1, store.purgeExpiredAssociations( new Date(), 10 ) );
+        assertNull( store.findAssociation( expired.getHandle() ) );
+        assertNotNull( store.findAssociation( live.getHandle() ) );
+    }
+}
@@ -22,20 +22,21 @@ package org.verisign.joid.stores.ldap;
 
 import java.text.ParseException; 
 import java.util.Calendar;
+import java.util.Date;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.shared.ldap.model.constants.SchemaConstants;
-import org.apache.directory.shared.ldap.model.cursor.EntryCursor;
 import org.apache.directory.shared.ldap.model.entry.DefaultEntry;
 import org.apache.directory.shared.ldap.model.entry.Entry;
 import org.apache.directory.shared.ldap.model.entry.Modification;
+import org.apache.directory.shared.ldap.model.exception.LdapEntryAlreadyExistsException;
 import org.apache.directory.shared.ldap.model.exception.LdapException;
 import org.apache.directory.shared.ldap.model.exception.LdapInvalidDnException;
 import org.apache.directory.shared.ldap.model.exception.LdapNoSuchObjectException;
-import org.apache.directory.shared.ldap.model.message.SearchScope;
 import org.apache.directory.shared.ldap.model.name.Dn;
+import org.apache.directory.shared.ldap.model.name.Rdn;
 import org.apache.directory.shared.util.GeneralizedTime;
 import org.verisign.joid.AssociationType;
 import org.verisign.joid.IAssociation;
@@ -55,6 +56,8 @@ class AssociationDao implements LdapDao<IAssociation, String>
     
     private LdapConnectionManager connMan;
     
+    private LdapConnectionManager readConnMan;
+    
     private Dn baseDn;
 
     static final String ASSOCIATION_TYPE_AT = "opAssociationTypeAt";
@@ -67,7 +70,13 @@ class AssociationDao implements LdapDao<IAssociation, String>
 
     static final String SECRET_AT = "opSecretAt";
 
+    static final String EXPIRES_AT = "opExpiresAt";
+
     static final String ASSOCIATION_OC = "opAssociationOc";
+
+    /** The attributes read back to rebuild an association */
+    private static final String[] READ_ATTRIBUTES = 
+        { ASSOCIATION_TYPE_AT, HANDLE_AT, ISSUED_DATE_AT, LIFETIME_AT, SECRET_AT };
     
     
     /**
@@ -77,8 +86,23 @@ class AssociationDao implements LdapDao<IAssociation, String>
      * @param baseDn The baseDn under which association entries are found.
      */
     AssociationDao( LdapConnectionManager connMan, Dn baseDn )
+    {
+        this( connMan, connMan, baseDn );
+    }
+    
+    
+    /**
+     * Creates a new instance of AssociationDao reading from other servers 
+     * than those it writes to.
+     *
+     * @param connMan The LDAP connection manager to write with.
+     * @param readConnMan The LDAP connection manager to read with.
+     * @param baseDn The baseDn under which association entries are found.
+     */
+    AssociationDao( LdapConnectionManager connMan, LdapConnectionManager readConnMan, Dn baseDn )
     {
         this.connMan = connMan;
+        this.readConnMan = readConnMan;
         this.baseDn = baseDn;
     }
     
@@ -92,6 +116,7 @@ class AssociationDao implements LdapDao<IAssociation, String>
     public AssociationDao( LdapConnectionManager connMan, String baseDn ) throws OpenIdException
     {
         this.connMan = connMan;
+        this.readConnMan = connMan;
         
         try
         {
@@ -117,7 +142,7 @@ class AssociationDao implements LdapDao<IAssociation, String>
     public Dn getDn( String handle ) throws OpenIdException
     {
         StringBuilder sb = new StringBuilder( HANDLE_AT );
-        sb.append( '=' ).append( handle );
+        sb.append( '=' ).append( Rdn.escapeValue( handle ) );
 
         Dn associationDn = null;
     
@@ -199,6 +224,42 @@ class AssociationDao implements LdapDao<IAssociation, String>
     }
 
     
+    /**
+     * Stores an association in a single round trip when it is new: the entry
+     * is added, and only if it already exists are its attributes replaced.
+     *
+     * @param association the association to store.
+     * @throws OpenIdException if the entry could be neither added nor modified.
+     */
+    public void save( IAssociation association ) throws OpenIdException
+    {
+        LdapConnection conn = connMan.acquireConnection();
+        Entry entry = toEntry( association );
+
+        try
+        {
+            try
+            {
+                conn.add( entry );
+            }
+            catch ( LdapEntryAlreadyExistsException e )
+            {
+                conn.modify( entry.getDn(), LdapStore.replaceModifications( entry, HANDLE_AT ) );
+            }
+        }
+        catch ( LdapException e )
+        {
+            String msg = "save( IAssociation ): unexpected failure";
+            LOG.error( msg, e );
+            throw new OpenIdException( msg, e );
+        }
+        finally
+        {
+            connMan.releaseConnection( conn );
+        }
+    }
+
+    
     /**
      * {@inheritDoc}
      */
@@ -234,44 +295,92 @@ class AssociationDao implements LdapDao<IAssociation, String>
     }
 
 
+    /**
+     * Deletes associations that have expired by the given time. Entries
+     * written before the expiry attribute existed lack it; those issued
+     * before the cutoff with a lifetime no longer than the given one are
+     * deleted instead.
+     *
+     * @param now the time against which to check expiry.
+     * @param issuedBefore the cutoff issue date for entries without expiry.
+     * @param maxLifetime the longest lifetime to consider for entries
+     * without expiry, in seconds.
+     * @param limit the largest number of associations to delete.
+     * @return the number of associations deleted.
+     * @throws OpenIdException on search or delete failures.
+     */
+    public int deleteExpired( Date now, Date issuedBefore, long maxLifetime, int limit ) throws OpenIdException
+    {
+        StringBuilder sb = new StringBuilder( "(&(" );
+        sb.append( SchemaConstants.OBJECT_CLASS_AT ).append( '=' ).append( ASSOCIATION_OC ).append( ")(|(" );
+        sb.append( EXPIRES_AT ).append( "<=" ).append( toGeneralizedTime( now ) ).append( ")(&(!(" );
+        sb.append( EXPIRES_AT ).append( "=*))(" );
+        sb.append( ISSUED_DATE_AT ).append( "<=" ).append( toGeneralizedTime( issuedBefore ) ).append( ")(" );
+        sb.append( LIFETIME_AT ).append( "<=" ).append( maxLifetime ).append( "))))" );
+        return LdapStore.deleteMatching( connMan, baseDn, sb.toString(), limit );
+    }
+
+
+    private static String toGeneralizedTime( Date date )
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime( date );
+        return new GeneralizedTime( calendar ).toGeneralizedTime();
+    }
+
+
     /**
      * {@inheritDoc}
      */
     public IAssociation read( String handle ) throws OpenIdException
     {
-        LdapConnection conn = connMan.acquireConnection();
-        StringBuilder sb = new StringBuilder( "(" );
-        sb.append( HANDLE_AT );
-        sb.append( '=' ).append( handle ).append( ')' );
+        Dn dn = getDn( handle );
+        Entry entry = null;
 
-        try
+        if ( readConnMan != connMan )
         {
-            EntryCursor cursor = conn.search( baseDn, sb.toString(), SearchScope.ONELEVEL, "*" );
-            Entry response = null;
-            
-            if ( cursor.next() )
+            try
             {
-                response = ( Entry ) cursor.get();
+                entry = lookup( readConnMan, dn, handle );
+            }
+            catch ( OpenIdException e )
+            {
+                LOG.warn( "Reading association " + handle + " from a replica failed, reading it from the master" );
+            }
+        }
 
-                if ( cursor.next() == true )
-                {
-                    throw new OpenIdException( "Did not expect to get more than one association back." );
-                }
+        // a replica may not have caught up with an association just written
+        if ( entry == null )
+        {
+            entry = lookup( connMan, dn, handle );
+        }
 
-                return toObject( response );
-            }
+        return entry == null ? null : toObject( entry );
+    }
 
+
+    private Entry lookup( LdapConnectionManager manager, Dn dn, String handle ) throws OpenIdException
+    {
+        LdapConnection conn = manager.acquireConnection();
+
+        try
+        {
+            return conn.lookup( dn, READ_ATTRIBUTES );
+        }
+        catch ( LdapNoSuchObjectException e )
+        {
             return null;
         }
-        catch ( Exception e )
+        catch ( LdapException e )
         {
+            LdapStore.connectionFailed( manager, conn );
             String msg = "Failed to find association with handle: " + handle;
             LOG.error( msg, e );
             throw new OpenIdException( msg, e );
         }
         finally
         {
-            connMan.releaseConnection( conn );
+            manager.releaseConnection( conn );
         }
     }
 
@@ -317,7 +426,7 @@ class AssociationDao implements LdapDao<IAssociation, String>
      */
     public void deleteEntry( IAssociation entity ) throws OpenIdException
     {
-        delete( entity.getHandle() );
+        LdapStore.deleteEntry( connMan, getDn( entity.getHandle() ) );
     }
 
 
@@ -367,10 +476,10 @@ class AssociationDao implements LdapDao<IAssociation, String>
             entry.add( LIFETIME_AT, Long.toString( association.getLifetime() ) );
             entry.add( SECRET_AT, association.getSecret() );
             
-            Calendar calendar = Calendar.getInstance();
-            calendar.setTime( association.getIssuedDate() );
-            GeneralizedTime gt = new GeneralizedTime( calendar );
-            entry.add( ISSUED_DATE_AT, gt.toGeneralizedTime() );
+            Date issuedDate = association.getIssuedDate();
+            entry.add( ISSUED_DATE_AT, toGeneralizedTime( issuedDate ) );
+            Date expiresAt = new Date( issuedDate.getTime() + association.getLifetime() * 1000 );
+            entry.add( EXPIRES_AT, toGeneralizedTime( expiresAt ) );
         }
         catch ( LdapException e )
         {
@@ -0,0 +1,231 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.ldap;
+
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.verisign.joid.OpenIdRuntimeException;
+
+
+/**
+ * An {@link LdapConnectionManager} spreading connections over several
+ * servers holding the same entries, typically the replicas of a directory.
+ * Members are used in turn; a member failing to hand out a connection, or
+ * one a connection of which is reported through
+ * {@link #connectionFailed(LdapConnection)}, is left out for the retry
+ * interval, or until {@link #checkHealth()} finds it working again. When
+ * every member fails, the fallback manager is used.
+ */
+public class FailoverConnectionManager implements LdapConnectionManager
+{
+    private static final Log LOG = LogFactory.getLog( FailoverConnectionManager.class );
+
+    /** The default time a failed member is left out, in milliseconds */
+    public static final long DEFAULT_RETRY_INTERVAL = 30000;
+
+    private final LdapConnectionManager[] members;
+
+    private final LdapConnectionManager fallback;
+
+    /** The time until which each member is left out, 0 when it is healthy */
+    private final AtomicLongArray downUntil;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** The manager each connection handed out has to be released to */
+    private final ConcurrentMap<LdapConnection, LdapConnectionManager> owners =
+        new ConcurrentHashMap<LdapConnection, LdapConnectionManager>();
+
+    private volatile long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+
+    /**
+     * Creates a new instance of FailoverConnectionManager.
+     *
+     * @param members The managers of the servers to spread connections over.
+     * @param fallback The manager to use when no member works, or null.
+     */
+    public FailoverConnectionManager( List<LdapConnectionManager> members, LdapConnectionManager fallback )
+    {
+        this.members = members.toArray( new LdapConnectionManager[members.size()] );
+        this.fallback = fallback;
+        this.downUntil = new AtomicLongArray( this.members.length );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LdapConnection acquireConnection()
+    {
+        long now = System.currentTimeMillis();
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+
+        for ( int i = 0; i < members.length; i++ )
+        {
+            int index = ( start + i ) % members.length;
+
+            if ( downUntil.get( index ) > now )
+            {
+                continue;
+            }
+
+            LdapConnection conn = acquire( index );
+
+            if ( conn != null )
+            {
+                return conn;
+            }
+        }
+
+        if ( fallback != null )
+        {
+            LdapConnection conn = fallback.acquireConnection();
+            owners.put( conn, fallback );
+            return conn;
+        }
+
+        throw new OpenIdRuntimeException( "No LDAP server available" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void releaseConnection( LdapConnection conn )
+    {
+        if ( conn == null )
+        {
+            return;
+        }
+
+        LdapConnectionManager owner = owners.remove( conn );
+
+        if ( owner == null )
+        {
+            LOG.warn( "Releasing a connection this manager did not hand out" );
+            return;
+        }
+
+        owner.releaseConnection( conn );
+    }
+
+
+    /**
+     * Leaves out the member that handed out a connection an operation failed
+     * on, so that the next connections come from the other members. Call it
+     * before releasing the connection. Connections handed out by the fallback
+     * manager are ignored.
+     *
+     * @param conn The connection an operation failed on.
+     */
+    public void connectionFailed( LdapConnection conn )
+    {
+        LdapConnectionManager owner = conn == null ? null : owners.get( conn );
+
+        for ( int i = 0; i < members.length; i++ )
+        {
+            if ( members[i] == owner )
+            {
+                leaveOut( i, null );
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Tries every member left out and takes back those handing out a
+     * connection again.
+     *
+     * @return The number of members currently left out.
+     */
+    public int checkHealth()
+    {
+        int down = 0;
+
+        for ( int i = 0; i < members.length; i++ )
+        {
+            if ( downUntil.get( i ) == 0 )
+            {
+                continue;
+            }
+
+            try
+            {
+                members[i].releaseConnection( members[i].acquireConnection() );
+                downUntil.set( i, 0 );
+                LOG.info( "LDAP server " + i + " is available again" );
+            }
+            catch ( RuntimeException e )
+            {
+                down++;
+            }
+        }
+
+        return down;
+    }
+
+
+    /**
+     * @param retryInterval the time a failed member is left out, in milliseconds
+     */
+    public void setRetryInterval( long retryInterval )
+    {
+        this.retryInterval = retryInterval;
+    }
+
+
+    private LdapConnection acquire( int index )
+    {
+        try
+        {
+            LdapConnection conn = members[index].acquireConnection();
+
+            if ( downUntil.get( index ) != 0 )
+            {
+                downUntil.set( index, 0 );
+            }
+
+            owners.put( conn, members[index] );
+            return conn;
+        }
+        catch ( RuntimeException e )
+        {
+            leaveOut( index, e );
+            return null;
+        }
+    }
+
+
+    private void leaveOut( int index, RuntimeException cause )
+    {
+        LOG.warn( "LDAP server " + index + " failed, leaving it out for " + retryInterval + " ms", cause );
+        downUntil.set( index, System.currentTimeMillis() + retryInterval );
+    }
+}
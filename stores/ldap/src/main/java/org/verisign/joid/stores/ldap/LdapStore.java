@@ -31,19 +31,26 @@ import org.apache.directory.ldap.client.api.LdapConnectionConfig;
 import org.apache.directory.ldap.client.api.LdapConnectionPool;
 import org.apache.directory.ldap.client.api.PoolableLdapConnectionFactory;
 import org.apache.directory.server.HttpDirectoryService;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.shared.ldap.model.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.model.cursor.EntryCursor;
 import org.apache.directory.shared.ldap.model.entry.Attribute;
 import org.apache.directory.shared.ldap.model.entry.DefaultModification;
 import org.apache.directory.shared.ldap.model.entry.Entry;
 import org.apache.directory.shared.ldap.model.entry.Modification;
 import org.apache.directory.shared.ldap.model.entry.ModificationOperation;
 import org.apache.directory.shared.ldap.model.exception.LdapException;
+import org.apache.directory.shared.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.shared.ldap.model.message.SearchScope;
 import org.apache.directory.shared.ldap.model.name.Dn;
 import org.apache.directory.shared.ldap.model.schema.AttributeType;
 import org.verisign.joid.AssociationRequest;
 import org.verisign.joid.Crypto;
+import org.verisign.joid.DiffieHellman;
 import org.verisign.joid.IAssociation;
 import org.verisign.joid.INonce;
-import org.verisign.joid.IStore;
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.IReapableStore;
 import org.verisign.joid.OpenIdException;
 import org.verisign.joid.server.Association;
 import org.verisign.joid.server.Nonce;
@@ -54,7 +61,7 @@ import org.verisign.joid.server.Nonce;
  *
  * @author <a href="mailto:akarasulu@gmail.com">Alex Karasulu</a>
  */
-public class LdapStore implements IStore
+public class LdapStore implements IReapableStore, INonceClaimingStore
 {
     private final static Log LOG = LogFactory.getLog( LdapStore.class );
 
@@ -72,9 +79,19 @@ public class LdapStore implements IStore
     private LdapConnectionConfig connConfig;
     private LdapConnectionPool connPool;
     
+    private List<LdapConnectionConfig> replicaConfigs = new ArrayList<LdapConnectionConfig>();
+    private List<LdapConnectionPool> replicaPools = new ArrayList<LdapConnectionPool>();
+    private FailoverConnectionManager replicaConnMan;
+    
     
     private Boolean useEmbeddedApacheDs = false;
     
+    /**
+     * Connects to the server of the connection configuration, through which
+     * entries are written. When replicas are configured, entries are read 
+     * from them in turn, and from this server only when no replica is 
+     * available.
+     */
     public void initialize()
     {
         if( useEmbeddedApacheDs )
@@ -84,14 +101,49 @@ public class LdapStore implements IStore
         else
         {
             connPool = new LdapConnectionPool( new PoolableLdapConnectionFactory( getConnConfig() ) );
+            LdapConnectionManager connMan = new LdapNetworkConnectionManager( connPool );
+            LdapConnectionManager readConnMan = connMan;
+            
+            if ( !replicaConfigs.isEmpty() )
+            {
+                List<LdapConnectionManager> replicas = new ArrayList<LdapConnectionManager>();
+                
+                for ( LdapConnectionConfig config : replicaConfigs )
+                {
+                    LdapConnectionPool pool = new LdapConnectionPool( new PoolableLdapConnectionFactory( config ) );
+                    replicaPools.add( pool );
+                    replicas.add( new LdapNetworkConnectionManager( pool ) );
+                }
+                
+                replicaConnMan = new FailoverConnectionManager( replicas, connMan );
+                readConnMan = replicaConnMan;
+            }
             
-            associationDao = new AssociationDao( new LdapNetworkConnectionManager( connPool ), associationBaseDn );
-            nonceDao = new NonceDao( new LdapNetworkConnectionManager( connPool ), associationBaseDn );
+            initialize( connMan, readConnMan );
+        }
+    }
+    
+    
+    /**
+     * Uses the given connection managers to write and to read entries. A
+     * {@link FailoverConnectionManager} to read with is checked by
+     * {@link #checkHealth()}.
+     *
+     * @param connMan the manager of connections to write with.
+     * @param readConnMan the manager of connections to read with.
+     */
+    public void initialize( LdapConnectionManager connMan, LdapConnectionManager readConnMan )
+    {
+        if ( readConnMan instanceof FailoverConnectionManager )
+        {
+            replicaConnMan = ( FailoverConnectionManager ) readConnMan;
         }
         
-        
+        associationDao = new AssociationDao( connMan, readConnMan, associationBaseDn );
+        nonceDao = new NonceDao( connMan, readConnMan, nonceBaseDn );
     }
     
+    
     public void initialize( HttpDirectoryService directoryService ) throws IllegalStateException
     {
         if( directoryService == null )
@@ -104,6 +156,48 @@ public class LdapStore implements IStore
        
     }
     
+    
+    /**
+     * Tries the replicas left out after a failure and takes back those
+     * available again.
+     *
+     * @return the number of replicas still unavailable.
+     */
+    public int checkHealth()
+    {
+        return replicaConnMan == null ? 0 : replicaConnMan.checkHealth();
+    }
+    
+    
+    /**
+     * Closes the connection pools opened by {@link #initialize()}.
+     */
+    public void shutdown()
+    {
+        List<LdapConnectionPool> pools = new ArrayList<LdapConnectionPool>( replicaPools );
+        
+        if ( connPool != null )
+        {
+            pools.add( connPool );
+        }
+        
+        for ( LdapConnectionPool pool : pools )
+        {
+            try
+            {
+                pool.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to close LDAP connection pool", e );
+            }
+        }
+        
+        replicaPools.clear();
+        connPool = null;
+        replicaConnMan = null;
+    }
+    
 
     /**
      * @param connConfig the connConfig to set
@@ -123,6 +217,24 @@ public class LdapStore implements IStore
     }
 
 
+    /**
+     * @param replicaConfigs the configurations of the replicas to read from
+     */
+    public void setReplicaConfigs( List<LdapConnectionConfig> replicaConfigs )
+    {
+        this.replicaConfigs = new ArrayList<LdapConnectionConfig>( replicaConfigs );
+    }
+
+
+    /**
+     * @return the configurations of the replicas to read from
+     */
+    public List<LdapConnectionConfig> getReplicaConfigs()
+    {
+        return replicaConfigs;
+    }
+
+
     /**
      * @param nonceBaseDn the nonceBaseDn to set
      */
@@ -199,10 +311,10 @@ public class LdapStore implements IStore
         else
         {
             secret = crypto.generateSecret( req.getSessionType().toString() );
-            crypto.setDiffieHellman( req.getDhModulus(), req.getDhGenerator() );
-            byte[] encryptedSecret = crypto.encryptSecret( req.getDhConsumerPublic(), secret );
+            DiffieHellman dh = crypto.generateDiffieHellman( req.getDhModulus(), req.getDhGenerator() );
+            byte[] encryptedSecret = crypto.encryptSecret( dh, req.getDhConsumerPublic(), secret );
             a.setEncryptedMacKey( encryptedSecret );
-            a.setPublicDhKey( crypto.getPublicKey() );
+            a.setPublicDhKey( dh.getPublicKey() );
         }
         a.setMacKey( secret );
         a.setIssuedDate( new Date() );
@@ -228,16 +340,7 @@ public class LdapStore implements IStore
      */
     public void saveAssociation( IAssociation association ) throws OpenIdException
     {
-        Entry entry = associationDao.getEntry( association.getHandle() );
-        
-        if ( entry == null )
-        {
-            associationDao.create( association );
-        }
-        else
-        {
-            associationDao.update( association, entry );
-        }
+        associationDao.save( association );
     }
     
 
@@ -264,16 +367,39 @@ public class LdapStore implements IStore
      */
     public void saveNonce( INonce nonce ) throws OpenIdException
     {
-        Entry entry = nonceDao.getEntry( nonce.getNonce() );
-        
-        if ( entry == null )
-        {
-            nonceDao.create( nonce );
-        }
-        else
-        {
-            nonceDao.update( nonce, entry );
-        }
+        nonceDao.save( nonce );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        return nonceDao.createIfAbsent( generateNonce( nonce ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * Associations are found by their expiry attribute. Of those written
+     * before it existed, only the ones whose lifetime does not exceed the
+     * lifetime this store currently hands out are purged.
+     */
+    public int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException
+    {
+        Date cutoff = new Date( now.getTime() - getAssociationLifetime() * 1000 );
+        return associationDao.deleteExpired( now, cutoff, getAssociationLifetime(), limit );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int purgeNonces( Date checkedBefore, int limit ) throws OpenIdException
+    {
+        return nonceDao.deleteCheckedBefore( checkedBefore, limit );
     }
 
 
@@ -294,6 +420,138 @@ public class LdapStore implements IStore
     // -----------------------------------------------------------------------
     
     
+    /**
+     * Deletes at most <code>limit</code> entries directly below the base that
+     * match the filter. The matching names are collected first, asking for
+     * no attributes, and the search is abandoned once the limit is reached;
+     * the entries are deleted afterwards.
+     *
+     * @return the number of entries deleted.
+     */
+    static int deleteMatching( LdapConnectionManager connMan, Dn baseDn, String filter, int limit )
+        throws OpenIdException
+    {
+        LdapConnection conn = connMan.acquireConnection();
+        EntryCursor cursor = null;
+        try
+        {
+            List<Dn> dns = new ArrayList<Dn>();
+            cursor = conn.search( baseDn, filter, SearchScope.ONELEVEL, "1.1" );
+            while ( dns.size() < limit && cursor.next() )
+            {
+                dns.add( cursor.get().getDn() );
+            }
+            cursor.close();
+            cursor = null;
+
+            int deleted = 0;
+            for ( Dn dn : dns )
+            {
+                try
+                {
+                    conn.delete( dn );
+                    deleted++;
+                }
+                catch ( LdapNoSuchObjectException e )
+                {
+                    // removed concurrently
+                }
+            }
+            return deleted;
+        }
+        catch ( Exception e )
+        {
+            String msg = "Failed to delete entries matching " + filter + " below " + baseDn;
+            LOG.error( msg, e );
+            throw new OpenIdException( msg, e );
+        }
+        finally
+        {
+            if ( cursor != null )
+            {
+                try
+                {
+                    cursor.close();
+                }
+                catch ( Exception e )
+                {
+                    LOG.warn( "Failed to properly close a cursor.", e );
+                }
+            }
+            connMan.releaseConnection( conn );
+        }
+    }
+
+
+    /**
+     * Reports an operation failing on a connection to its manager, so that
+     * a {@link FailoverConnectionManager} leaves out the server it came from.
+     */
+    static void connectionFailed( LdapConnectionManager connMan, LdapConnection conn )
+    {
+        if ( connMan instanceof FailoverConnectionManager )
+        {
+            ( ( FailoverConnectionManager ) connMan ).connectionFailed( conn );
+        }
+    }
+
+
+    /**
+     * Deletes an entry by name, doing nothing if it does not exist.
+     */
+    static void deleteEntry( LdapConnectionManager connMan, Dn dn ) throws OpenIdException
+    {
+        LdapConnection conn = connMan.acquireConnection();
+        try
+        {
+            conn.delete( dn );
+        }
+        catch ( LdapNoSuchObjectException e )
+        {
+            if ( LOG.isDebugEnabled() )
+            {
+                LOG.debug( "Entry " + dn + " to delete was not found in store." );
+            }
+        }
+        catch ( LdapException e )
+        {
+            String msg = "Failed to delete entry: " + dn;
+            LOG.error( msg, e );
+            throw new OpenIdException( msg, e );
+        }
+        finally
+        {
+            connMan.releaseConnection( conn );
+        }
+    }
+
+
+    /**
+     * Builds the modifications replacing every attribute of an existing entry
+     * with those of the given one, leaving alone the object classes and the
+     * naming attribute which cannot change for an entry of the same name.
+     */
+    static Modification[] replaceModifications( Entry entry, String namingAttribute )
+    {
+        List<Modification> modList = new ArrayList<Modification>();
+
+        for ( Attribute attribute : entry )
+        {
+            String id = attribute.getUpId();
+            
+            if ( SchemaConstants.OBJECT_CLASS_AT.equalsIgnoreCase( id ) 
+                || namingAttribute.equalsIgnoreCase( id ) )
+            {
+                continue;
+            }
+            
+            modList.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attribute ) );
+        }
+
+        return modList.toArray( EMPTY_MODS );
+    }
+
+
     static Modification[] calculateModifications( Entry before, Entry after ) throws LdapException 
     {
         List<Modification> modList = new ArrayList<Modification>();
@@ -22,20 +22,21 @@ package org.verisign.joid.stores.ldap;
 
 import java.text.ParseException;
 import java.util.Calendar;
+import java.util.Date;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.shared.ldap.model.constants.SchemaConstants;
-import org.apache.directory.shared.ldap.model.cursor.EntryCursor;
 import org.apache.directory.shared.ldap.model.entry.DefaultEntry;
 import org.apache.directory.shared.ldap.model.entry.Entry;
 import org.apache.directory.shared.ldap.model.entry.Modification;
+import org.apache.directory.shared.ldap.model.exception.LdapEntryAlreadyExistsException;
 import org.apache.directory.shared.ldap.model.exception.LdapException;
 import org.apache.directory.shared.ldap.model.exception.LdapInvalidDnException;
 import org.apache.directory.shared.ldap.model.exception.LdapNoSuchObjectException;
-import org.apache.directory.shared.ldap.model.message.SearchScope;
 import org.apache.directory.shared.ldap.model.name.Dn;
+import org.apache.directory.shared.ldap.model.name.Rdn;
 import org.apache.directory.shared.util.GeneralizedTime;
 import org.verisign.joid.INonce;
 import org.verisign.joid.OpenIdException;
@@ -54,10 +55,16 @@ public class NonceDao implements LdapDao<INonce, String>
     static final String NONCE_AT = "opNonceAt";
     static final String NONCE_OC = "opNonceOc";
 
+    /** The attributes read back to rebuild a nonce */
+    private static final String[] READ_ATTRIBUTES = 
+        { SchemaConstants.OBJECT_CLASS_AT, NONCE_AT, CHECKED_DATE_AT };
+
     private static final Log LOG = LogFactory.getLog( NonceDao.class );
     
     private LdapConnectionManager connMan;
     
+    private LdapConnectionManager readConnMan;
+    
     private Dn baseDn;
 
 
@@ -68,8 +75,23 @@ public class NonceDao implements LdapDao<INonce, String>
      * @param baseDn The baseDn under which nonce entries are found.
      */
     NonceDao( LdapConnectionManager connMan, Dn baseDn )
+    {
+        this( connMan, connMan, baseDn );
+    }
+
+    
+    /**
+     * Creates a new instance of NonceDao reading from other servers than 
+     * those it writes to.
+     *
+     * @param connMan The LDAP Connection manager to write with.
+     * @param readConnMan The LDAP Connection manager to read with.
+     * @param baseDn The baseDn under which nonce entries are found.
+     */
+    NonceDao( LdapConnectionManager connMan, LdapConnectionManager readConnMan, Dn baseDn )
     {
         this.connMan = connMan;
+        this.readConnMan = readConnMan;
         this.baseDn = baseDn;
     }
 
@@ -83,6 +105,7 @@ public class NonceDao implements LdapDao<INonce, String>
     NonceDao( LdapConnectionManager connMan, String baseDn ) throws OpenIdException
     {
         this.connMan = connMan;
+        this.readConnMan = connMan;
         
         try
         {
@@ -128,56 +151,148 @@ public class NonceDao implements LdapDao<INonce, String>
 
 
     /**
-     * {@inheritDoc}
+     * Adds the entry of a nonce unless one already exists. The directory
+     * rejects an add of an existing entry, which makes this atomic.
+     *
+     * @param entity the nonce to add.
+     * @return true if the entry was added; false if it already existed.
+     * @throws OpenIdException at any other failure.
      */
-    public INonce read( String nonce ) throws OpenIdException
+    public boolean createIfAbsent( INonce entity ) throws OpenIdException
     {
-        LdapConnection conn = connMan.acquireConnection();
-        StringBuilder sb = new StringBuilder( "(" );
-        sb.append( NONCE_AT );
-        sb.append( '=' ).append( nonce ).append( ')' );
+        final LdapConnection conn = connMan.acquireConnection();
+        Entry entry = toEntry( entity );
 
-        EntryCursor cursor = null;
         try
         {
-            cursor = conn.search( baseDn, sb.toString(), SearchScope.ONELEVEL, "*" );
+            conn.add( entry );
+            return true;
+        }
+        catch ( LdapEntryAlreadyExistsException e )
+        {
+            return false;
+        }
+        catch ( LdapException e )
+        {
+            String msg = "createIfAbsent( INonce ): unexpected failure";
+            LOG.error( msg, e );
+            throw new OpenIdException( msg, e );
+        }
+        finally
+        {
+            connMan.releaseConnection( conn );
+        }
+    }
+
 
-            if ( cursor.next() )
+    /**
+     * Stores a nonce in a single round trip when it is new: the entry is
+     * added, and only if it already exists is its checked date replaced.
+     *
+     * @param entity the nonce to store.
+     * @throws OpenIdException if the entry could be neither added nor modified.
+     */
+    public void save( INonce entity ) throws OpenIdException
+    {
+        final LdapConnection conn = connMan.acquireConnection();
+        Entry entry = toEntry( entity );
+
+        try
+        {
+            try
             {
-                DefaultEntry response = ( DefaultEntry ) cursor.get();
+                conn.add( entry );
+            }
+            catch ( LdapEntryAlreadyExistsException e )
+            {
+                conn.modify( entry.getDn(), LdapStore.replaceModifications( entry, NONCE_AT ) );
+            }
+        }
+        catch ( LdapException e )
+        {
+            String msg = "save( INonce ): unexpected failure";
+            LOG.error( msg, e );
+            throw new OpenIdException( msg, e );
+        }
+        finally
+        {
+            connMan.releaseConnection( conn );
+        }
+    }
 
-                if ( cursor.next() == true )
-                {
-                    throw new OpenIdException( "Did not expect to get more than one nonce back." );
-                }
 
-                return toObject( response );
+    /**
+     * Deletes nonces checked before the given time.
+     *
+     * @param checkedBefore the oldest checked date to keep.
+     * @param limit the largest number of nonces to delete.
+     * @return the number of nonces deleted.
+     * @throws OpenIdException on search or delete failures.
+     */
+    public int deleteCheckedBefore( Date checkedBefore, int limit ) throws OpenIdException
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime( checkedBefore );
+        StringBuilder sb = new StringBuilder( "(&(" );
+        sb.append( SchemaConstants.OBJECT_CLASS_AT ).append( '=' ).append( NONCE_OC ).append( ")(" );
+        sb.append( CHECKED_DATE_AT ).append( "<=" );
+        sb.append( new GeneralizedTime( calendar ).toGeneralizedTime() ).append( "))" );
+        return LdapStore.deleteMatching( connMan, baseDn, sb.toString(), limit );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public INonce read( String nonce ) throws OpenIdException
+    {
+        Dn dn = getDn( nonce );
+
+        if ( readConnMan != connMan )
+        {
+            try
+            {
+                return lookup( readConnMan, dn, nonce );
+            }
+            catch ( OpenIdException e )
+            {
+                LOG.warn( "Reading nonce " + nonce + " from a replica failed, reading it from the master" );
             }
-            else
+        }
+
+        return lookup( connMan, dn, nonce );
+    }
+
+
+    private INonce lookup( LdapConnectionManager manager, Dn dn, String nonce ) throws OpenIdException
+    {
+        LdapConnection conn = manager.acquireConnection();
+
+        try
+        {
+            Entry entry = conn.lookup( dn, READ_ATTRIBUTES );
+
+            if ( entry == null )
             {
                 return null;
             }
+
+            return toObject( entry );
         }
-        catch ( Exception e )
+        catch ( LdapNoSuchObjectException e )
         {
+            return null;
+        }
+        catch ( LdapException e )
+        {
+            LdapStore.connectionFailed( manager, conn );
             String msg = "Failed to find nonce with handle: " + nonce;
             LOG.error( msg, e );
             throw new OpenIdException( msg, e );
         }
         finally
         {
-            if ( cursor != null )
-            {
-                try
-                {
-                    cursor.close();
-                }
-                catch ( Exception e )
-                {
-                    LOG.warn( "Failed to properly close a cursor.", e );
-                }
-            }
-            connMan.releaseConnection( conn );
+            manager.releaseConnection( conn );
         }
     }
 
@@ -258,7 +373,7 @@ public class NonceDao implements LdapDao<INonce, String>
      */
     public void deleteEntry( INonce entity ) throws OpenIdException
     {
-        delete( entity.getNonce() );
+        LdapStore.deleteEntry( connMan, getDn( entity.getNonce() ) );
     }
 
     
@@ -367,7 +482,7 @@ public class NonceDao implements LdapDao<INonce, String>
     public Dn getDn( String nonce ) throws OpenIdException
     {
         StringBuilder sb = new StringBuilder( NONCE_AT );
-        sb.append( '=' ).append( nonce );
+        sb.append( '=' ).append( Rdn.escapeValue( nonce ) );
 
         Dn dn = null;
     
@@ -0,0 +1,394 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.ldap;
+
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.verisign.joid.AssociationRequest;
+import org.verisign.joid.Crypto;
+import org.verisign.joid.IAssociation;
+import org.verisign.joid.INonce;
+import org.verisign.joid.INonceClaimingStore;
+import org.verisign.joid.IReapableStore;
+import org.verisign.joid.OpenIdException;
+import org.verisign.joid.OpenIdRuntimeException;
+
+
+/**
+ * An IStore spreading associations and nonces over several directories,
+ * each served by its own {@link LdapStore}. An association is owned by the
+ * shard its handle hashes to on a consistent hash ring, and a nonce by the
+ * shard its value hashes to, so that adding a shard only moves the entries
+ * of the ring segments it takes over.
+ *
+ * Each shard writes to its master and reads from its replicas when it has
+ * some; replicas are checked periodically once one has failed.
+ */
+public class ShardedLdapStore implements IReapableStore, INonceClaimingStore
+{
+    private final static Log LOG = LogFactory.getLog( ShardedLdapStore.class );
+
+    /** The number of points each shard has on the hash ring */
+    private static final int POINTS_PER_SHARD = 160;
+
+    private List<LdapStore> shards = new ArrayList<LdapStore>();
+
+    private volatile SortedMap<Long, LdapStore> ring = new TreeMap<Long, LdapStore>();
+
+    /** The time between health checks of the replicas, in seconds */
+    private long healthCheckInterval = 30;
+
+    private ScheduledExecutorService healthChecker;
+
+
+    /**
+     * @param shards the stores of the directories to spread entries over
+     */
+    public void setShards( List<LdapStore> shards )
+    {
+        this.shards = new ArrayList<LdapStore>( shards );
+    }
+
+
+    /**
+     * @return the stores of the directories entries are spread over
+     */
+    public List<LdapStore> getShards()
+    {
+        return shards;
+    }
+
+
+    /**
+     * @param healthCheckInterval the time between health checks in seconds,
+     * 0 to disable them
+     */
+    public void setHealthCheckInterval( long healthCheckInterval )
+    {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+
+    /**
+     * Initializes every shard, builds the hash ring and starts the health
+     * checks.
+     */
+    public synchronized void initialize()
+    {
+        if ( shards.isEmpty() )
+        {
+            throw new IllegalStateException( "no shard configured" );
+        }
+
+        SortedMap<Long, LdapStore> points = new TreeMap<Long, LdapStore>();
+
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            LdapStore shard = shards.get( i );
+            shard.initialize();
+            String name = getShardName( shard, i );
+
+            for ( int point = 0; point < POINTS_PER_SHARD; point++ )
+            {
+                points.put( hash( name + '#' + point ), shard );
+            }
+        }
+
+        ring = points;
+
+        if ( healthCheckInterval > 0 && healthChecker == null )
+        {
+            healthChecker = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "joid-ldap-health-check" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            healthChecker.scheduleWithFixedDelay( new Runnable()
+            {
+                public void run()
+                {
+                    checkHealth();
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.SECONDS );
+        }
+    }
+
+
+    /**
+     * Stops the health checks and closes the connection pools of every shard.
+     */
+    public synchronized void shutdown()
+    {
+        if ( healthChecker != null )
+        {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+
+        for ( LdapStore shard : shards )
+        {
+            shard.shutdown();
+        }
+    }
+
+
+    /**
+     * Checks the replicas of every shard.
+     *
+     * @return the number of replicas unavailable.
+     */
+    public int checkHealth()
+    {
+        int down = 0;
+
+        for ( LdapStore shard : shards )
+        {
+            try
+            {
+                down += shard.checkHealth();
+            }
+            catch ( RuntimeException e )
+            {
+                LOG.warn( "Health check failed", e );
+            }
+        }
+
+        if ( down > 0 )
+        {
+            LOG.warn( down + " LDAP replicas unavailable" );
+        }
+
+        return down;
+    }
+
+
+    /**
+     * Finds the shard owning a key: the first one at or after the hash of the
+     * key on the ring.
+     *
+     * @param key the association handle or nonce.
+     * @return the store of the owning shard.
+     */
+    public LdapStore getShard( String key )
+    {
+        SortedMap<Long, LdapStore> points = ring;
+
+        if ( points.isEmpty() )
+        {
+            throw new IllegalStateException( "store is not initialized" );
+        }
+
+        SortedMap<Long, LdapStore> tail = points.tailMap( hash( key ) );
+        return tail.isEmpty() ? points.get( points.firstKey() ) : tail.get( tail.firstKey() );
+    }
+
+
+    // -----------------------------------------------------------------------
+    // IStore implementation methods
+    // -----------------------------------------------------------------------
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IAssociation generateAssociation( AssociationRequest req, Crypto crypto ) throws OpenIdException
+    {
+        return shards.get( 0 ).generateAssociation( req, crypto );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deleteAssociation( IAssociation association ) throws OpenIdException
+    {
+        getShard( association.getHandle() ).deleteAssociation( association );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void saveAssociation( IAssociation association ) throws OpenIdException
+    {
+        getShard( association.getHandle() ).saveAssociation( association );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IAssociation findAssociation( String handle ) throws OpenIdException
+    {
+        return getShard( handle ).findAssociation( handle );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public INonce findNonce( String nonce ) throws OpenIdException
+    {
+        return getShard( nonce ).findNonce( nonce );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void saveNonce( INonce nonce ) throws OpenIdException
+    {
+        getShard( nonce.getNonce() ).saveNonce( nonce );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean claimNonce( String nonce ) throws OpenIdException
+    {
+        return getShard( nonce ).claimNonce( nonce );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public INonce generateNonce( String nonce ) throws OpenIdException
+    {
+        return shards.get( 0 ).generateNonce( nonce );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * The shards are purged in turn until the limit is reached.
+     */
+    public int purgeExpiredAssociations( Date now, int limit ) throws OpenIdException
+    {
+        int purged = 0;
+
+        for ( LdapStore shard : shards )
+        {
+            if ( purged >= limit )
+            {
+                break;
+            }
+
+            purged += shard.purgeExpiredAssociations( now, limit - purged );
+        }
+
+        return purged;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * The shards are purged in turn until the limit is reached.
+     */
+    public int purgeNonces( Date checkedBefore, int limit ) throws OpenIdException
+    {
+        int purged = 0;
+
+        for ( LdapStore shard : shards )
+        {
+            if ( purged >= limit )
+            {
+                break;
+            }
+
+            purged += shard.purgeNonces( checkedBefore, limit - purged );
+        }
+
+        return purged;
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Utility methods
+    // -----------------------------------------------------------------------
+
+
+    /**
+     * Names a shard after its master so that its ring points do not move when
+     * shards are reordered.
+     */
+    private static String getShardName( LdapStore shard, int index )
+    {
+        LdapConnectionConfig config = shard.getConnConfig();
+
+        if ( config == null )
+        {
+            return "shard-" + index;
+        }
+
+        return config.getLdapHost() + ':' + config.getLdapPort();
+    }
+
+
+    /**
+     * Hashes a key to a ring position with the first eight bytes of its MD5
+     * digest, which spreads similar keys evenly.
+     */
+    static long hash( String key )
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( "MD5" ).digest( key.getBytes( "UTF-8" ) );
+            long h = 0;
+
+            for ( int i = 0; i < 8; i++ )
+            {
+                h = ( h << 8 ) | ( digest[i] & 0xFF );
+            }
+
+            return h;
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new OpenIdRuntimeException( "MD5 is not available", e );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new OpenIdRuntimeException( "UTF-8 is not available", e );
+        }
+    }
+}
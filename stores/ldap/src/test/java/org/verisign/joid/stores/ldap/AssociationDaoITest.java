@@ -382,6 +382,42 @@ public class AssociationDaoITest extends AbstractLdapTestUnit
         String issuedDate = entry.get( AssociationDao.ISSUED_DATE_AT ).getString();
         GeneralizedTime gt = new GeneralizedTime( issuedDate );
         assertEquals( gt.getCalendar().getTime(), association.getIssuedDate() );
+
+        String expiresAt = entry.get( AssociationDao.EXPIRES_AT ).getString();
+        gt = new GeneralizedTime( expiresAt );
+        assertEquals( gt.getCalendar().getTime().getTime(), 
+            association.getIssuedDate().getTime() + association.getLifetime() * 1000 );
+    }
+
+
+    /**
+     * Tests that expired associations are deleted by their expiry, whatever
+     * their lifetime, while live ones are kept.
+     */
+    @Test
+    public void testDeleteExpired() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        Association expired = ( Association ) generateAssociation();
+        expired.setIssuedDate( new Date( now - 7200000L ) );
+        dao.create( expired );
+
+        // lives longer than the lifetime given for entries without expiry
+        Association expiredLongLived = ( Association ) generateAssociation();
+        expiredLongLived.setIssuedDate( new Date( now - 2 * 86400000L ) );
+        expiredLongLived.setLifetime( 86400L );
+        dao.create( expiredLongLived );
+
+        Association live = ( Association ) generateAssociation();
+        live.setIssuedDate( new Date( now - 7200000L ) );
+        live.setLifetime( 86400L );
+        dao.create( live );
+
+        Date cutoff = new Date( now - 600000L );
+        assertTrue( dao.deleteExpired( new Date( now ), cutoff, 600L, 100 ) >= 2 );
+        assertNull( dao.read( expired.getHandle() ) );
+        assertNull( dao.read( expiredLongLived.getHandle() ) );
+        assertNotNull( dao.read( live.getHandle() ) );
     }
 
 
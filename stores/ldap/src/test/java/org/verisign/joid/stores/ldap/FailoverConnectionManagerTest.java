@@ -0,0 +1,216 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.ldap;
+
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.shared.ldap.model.name.Dn;
+import org.junit.Before;
+import org.junit.Test;
+import org.verisign.joid.OpenIdRuntimeException;
+
+
+/**
+ * Tests the FailoverConnectionManager, and the reads of the DAOs through it.
+ */
+public class FailoverConnectionManagerTest
+{
+    StubConnectionManager master;
+    StubConnectionManager replica1;
+    StubConnectionManager replica2;
+    FailoverConnectionManager replicas;
+
+
+    @Before
+    public void setUp()
+    {
+        master = new StubConnectionManager( "master" );
+        replica1 = new StubConnectionManager( "replica1" );
+        replica2 = new StubConnectionManager( "replica2" );
+        List<LdapConnectionManager> members = Arrays.<LdapConnectionManager> asList( replica1, replica2 );
+        replicas = new FailoverConnectionManager( members, master );
+        replicas.setRetryInterval( 60000 );
+    }
+
+
+    /**
+     * Connections are spread over the members and released to the one that
+     * handed them out.
+     */
+    @Test
+    public void testMembersAreUsedInTurn()
+    {
+        for ( int i = 0; i < 4; i++ )
+        {
+            replicas.releaseConnection( replicas.acquireConnection() );
+        }
+
+        assertEquals( 2, replica1.acquired.get() );
+        assertEquals( 2, replica1.released.get() );
+        assertEquals( 2, replica2.acquired.get() );
+        assertEquals( 2, replica2.released.get() );
+        assertEquals( 0, master.acquired.get() );
+    }
+
+
+    /**
+     * A member refusing connections is left out until the health check finds
+     * it working again.
+     */
+    @Test
+    public void testHealthCheckTakesBackAMemberThatRefusedConnections()
+    {
+        replica1.down = true;
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            replicas.releaseConnection( replicas.acquireConnection() );
+        }
+
+        assertEquals( 0, replica1.acquired.get() );
+        assertEquals( 4, replica2.acquired.get() );
+        assertEquals( 1, replicas.checkHealth() );
+
+        // back up, but left out until checked
+        replica1.down = false;
+        replicas.releaseConnection( replicas.acquireConnection() );
+        replicas.releaseConnection( replicas.acquireConnection() );
+        assertEquals( 0, replica1.acquired.get() );
+
+        assertEquals( 0, replicas.checkHealth() );
+        int before = replica1.acquired.get();
+        replicas.releaseConnection( replicas.acquireConnection() );
+        replicas.releaseConnection( replicas.acquireConnection() );
+        assertEquals( before + 1, replica1.acquired.get() );
+    }
+
+
+    /**
+     * When every member is down, connections come from the fallback, and
+     * without one none can be had.
+     */
+    @Test
+    public void testEveryMemberDownFallsBackToTheMaster()
+    {
+        replica1.down = true;
+        replica2.down = true;
+
+        replicas.releaseConnection( replicas.acquireConnection() );
+        assertEquals( 1, master.acquired.get() );
+        assertEquals( 1, master.released.get() );
+
+        FailoverConnectionManager noFallback = new FailoverConnectionManager(
+            Arrays.<LdapConnectionManager> asList( replica1, replica2 ), null );
+
+        try
+        {
+            noFallback.acquireConnection();
+            fail( "no server is available" );
+        }
+        catch ( OpenIdRuntimeException expected )
+        {
+        }
+    }
+
+
+    /**
+     * A member a connection of which is reported failed is left out, while
+     * connections of the fallback are not held against anyone.
+     */
+    @Test
+    public void testFailedConnectionLeavesItsMemberOut()
+    {
+        LdapConnection conn = replicas.acquireConnection();
+        StubConnectionManager failed = replica1.acquired.get() == 1 ? replica1 : replica2;
+        StubConnectionManager other = failed == replica1 ? replica2 : replica1;
+        replicas.connectionFailed( conn );
+        replicas.releaseConnection( conn );
+        assertEquals( 1, failed.released.get() );
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            replicas.releaseConnection( replicas.acquireConnection() );
+        }
+
+        assertEquals( 1, failed.acquired.get() );
+        assertEquals( 4, other.acquired.get() );
+
+        other.down = true;
+        conn = replicas.acquireConnection();
+        replicas.connectionFailed( conn );
+        replicas.releaseConnection( conn );
+        assertEquals( 1, master.acquired.get() );
+        assertEquals( 1, master.released.get() );
+
+        // the health check takes back the member that only failed an operation
+        assertEquals( 1, replicas.checkHealth() );
+        replicas.releaseConnection( replicas.acquireConnection() );
+        assertEquals( 1, master.acquired.get() );
+    }
+
+
+    /**
+     * A read failing on a replica leaves the replica out and is retried once
+     * on the master.
+     */
+    @Test
+    public void testFailedReadIsRetriedOnTheMaster() throws Exception
+    {
+        replicas = new FailoverConnectionManager( Arrays.<LdapConnectionManager> asList( replica1 ), master );
+        replicas.setRetryInterval( 60000 );
+        Dn baseDn = new Dn( "ou=nonces,dc=joid,dc=org" );
+        NonceDao nonces = new NonceDao( master, replicas, baseDn );
+        AssociationDao associations = new AssociationDao( master, replicas, baseDn );
+
+        assertNull( nonces.read( "nonce" ) );
+        assertEquals( 1, replica1.lookups.get() );
+        assertEquals( 0, master.lookups.get() );
+
+        replica1.failing = true;
+        assertNull( nonces.read( "nonce" ) );
+        assertEquals( 2, replica1.lookups.get() );
+        assertEquals( 1, master.lookups.get() );
+
+        // replica1 is left out now, so reads go straight to the master
+        assertNull( nonces.read( "nonce" ) );
+        assertEquals( 2, replica1.lookups.get() );
+        assertEquals( 2, master.lookups.get() );
+
+        replica1.failing = false;
+        assertEquals( 0, replicas.checkHealth() );
+        assertNull( associations.read( "handle" ) );
+        assertEquals( 3, replica1.lookups.get() );
+        // a missing association is looked up on the master too, in case the
+        // replica is behind
+        assertEquals( 3, master.lookups.get() );
+
+        replica1.failing = true;
+        assertNull( associations.read( "handle" ) );
+        assertEquals( 4, replica1.lookups.get() );
+        assertEquals( 4, master.lookups.get() );
+        assertEquals( replica1.acquired.get(), replica1.released.get() );
+        assertEquals( master.acquired.get(), master.released.get() );
+    }
+}
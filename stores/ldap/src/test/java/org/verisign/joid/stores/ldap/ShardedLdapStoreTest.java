@@ -0,0 +1,204 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.ldap;
+
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.apache.directory.shared.ldap.model.name.Dn;
+import org.junit.Test;
+
+
+/**
+ * Tests the placement of entries on the shards of a ShardedLdapStore, and
+ * the routing of the reads of a shard over its replicas.
+ */
+public class ShardedLdapStoreTest
+{
+    private static final int KEYS = 4000;
+
+
+    /**
+     * Keys are spread evenly, and each one always lands on the same shard.
+     */
+    @Test
+    public void testKeysAreSpreadEvenly()
+    {
+        ShardedLdapStore store = newStore( "ldap1", "ldap2", "ldap3" );
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for ( int i = 0; i < KEYS; i++ )
+        {
+            String key = "nonce-" + i;
+            String owner = ownerOf( store, key );
+            assertEquals( owner, ownerOf( store, key ) );
+            Integer count = counts.get( owner );
+            counts.put( owner, count == null ? 1 : count + 1 );
+        }
+
+        assertEquals( 3, counts.size() );
+
+        for ( int count : counts.values() )
+        {
+            assertTrue( "uneven spread: " + counts, count > KEYS / 5 && count < KEYS / 2 );
+        }
+    }
+
+
+    /**
+     * Shards are placed by the name of their master, so listing them in
+     * another order moves nothing, and adding one only moves keys onto it.
+     */
+    @Test
+    public void testPlacementIsStable()
+    {
+        ShardedLdapStore store = newStore( "ldap1", "ldap2", "ldap3" );
+        ShardedLdapStore reordered = newStore( "ldap3", "ldap1", "ldap2" );
+        ShardedLdapStore grown = newStore( "ldap1", "ldap2", "ldap3", "ldap4" );
+        int moved = 0;
+
+        for ( int i = 0; i < KEYS; i++ )
+        {
+            String key = "handle-" + i;
+            String owner = ownerOf( store, key );
+            assertEquals( owner, ownerOf( reordered, key ) );
+            String newOwner = ownerOf( grown, key );
+
+            if ( !owner.equals( newOwner ) )
+            {
+                assertEquals( "ldap4", newOwner );
+                moved++;
+            }
+        }
+
+        // about a quarter of the keys move to the new shard
+        assertTrue( "moved " + moved, moved > KEYS / 8 && moved < KEYS * 3 / 8 );
+    }
+
+
+    /**
+     * Reads go to the replica of the owning shard, fail over to its master
+     * when the replica goes down, and come back to the replica once the
+     * health check finds it again.
+     */
+    @Test
+    public void testReadsFailOverToTheMasterUntilTheReplicaIsBack() throws Exception
+    {
+        StubConnectionManager master = new StubConnectionManager( "master" );
+        StubConnectionManager replica = new StubConnectionManager( "replica" );
+        FailoverConnectionManager replicas = new FailoverConnectionManager(
+            Arrays.<LdapConnectionManager> asList( replica ), master );
+        replicas.setRetryInterval( 60000 );
+        ShardedLdapStore store = new ShardedLdapStore();
+        store.setHealthCheckInterval( 0 );
+        store.setShards( Arrays.asList( newShard( "ldap1", master, replicas ) ) );
+        store.initialize();
+
+        assertNull( store.findNonce( "nonce" ) );
+        assertEquals( 1, replica.lookups.get() );
+        assertEquals( 0, master.lookups.get() );
+
+        // the replica goes down while the read is made, so it is retried on
+        // the master
+        replica.failing = true;
+        assertNull( store.findNonce( "nonce" ) );
+        assertEquals( 2, replica.lookups.get() );
+        assertEquals( 1, master.lookups.get() );
+
+        replica.down = true;
+        assertNull( store.findNonce( "nonce" ) );
+        assertEquals( 2, replica.lookups.get() );
+        assertEquals( 2, master.lookups.get() );
+        assertEquals( 1, store.checkHealth() );
+
+        replica.failing = false;
+        replica.down = false;
+        assertEquals( 0, store.checkHealth() );
+        assertNull( store.findNonce( "nonce" ) );
+        assertEquals( 3, replica.lookups.get() );
+        assertEquals( 2, master.lookups.get() );
+    }
+
+
+    private static String ownerOf( ShardedLdapStore store, String key )
+    {
+        return store.getShard( key ).getConnConfig().getLdapHost();
+    }
+
+
+    private static ShardedLdapStore newStore( String... hosts )
+    {
+        List<LdapStore> shards = new ArrayList<LdapStore>();
+
+        for ( String host : hosts )
+        {
+            StubConnectionManager connMan = new StubConnectionManager( host );
+            shards.add( newShard( host, connMan, connMan ) );
+        }
+
+        ShardedLdapStore store = new ShardedLdapStore();
+        store.setHealthCheckInterval( 0 );
+        store.setShards( shards );
+        store.initialize();
+        return store;
+    }
+
+
+    /**
+     * Creates a shard using the given connection managers instead of
+     * connecting to its servers.
+     */
+    private static LdapStore newShard( String host, final LdapConnectionManager connMan,
+        final LdapConnectionManager readConnMan )
+    {
+        LdapConnectionConfig config = new LdapConnectionConfig();
+        config.setLdapHost( host );
+        config.setLdapPort( 389 );
+
+        LdapStore shard = new LdapStore()
+        {
+            public void initialize()
+            {
+                initialize( connMan, readConnMan );
+            }
+        };
+
+        shard.setConnConfig( config );
+
+        try
+        {
+            shard.setNonceBaseDn( new Dn( "ou=nonces,dc=joid,dc=org" ) );
+            shard.setAssociationBaseDn( new Dn( "ou=associations,dc=joid,dc=org" ) );
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalStateException( e );
+        }
+
+        return shard;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.verisign.joid.stores.ldap;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.shared.ldap.model.exception.LdapException;
+import org.verisign.joid.OpenIdRuntimeException;
+
+
+/**
+ * A connection manager standing in for a directory server. Its connections
+ * find no entry, and it can be made to refuse connections or to fail every
+ * lookup, as a server going down would.
+ */
+class StubConnectionManager implements LdapConnectionManager
+{
+    private final String name;
+
+    /** Whether connections are refused */
+    volatile boolean down;
+
+    /** Whether lookups on the connections handed out fail */
+    volatile boolean failing;
+
+    final AtomicInteger acquired = new AtomicInteger();
+
+    final AtomicInteger released = new AtomicInteger();
+
+    final AtomicInteger lookups = new AtomicInteger();
+
+
+    StubConnectionManager( String name )
+    {
+        this.name = name;
+    }
+
+
+    public LdapConnection acquireConnection()
+    {
+        if ( down )
+        {
+            throw new OpenIdRuntimeException( name + " is down" );
+        }
+
+        acquired.incrementAndGet();
+
+        return ( LdapConnection ) Proxy.newProxyInstance( getClass().getClassLoader(),
+            new Class[] { LdapConnection.class }, new InvocationHandler()
+            {
+                public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+                {
+                    String methodName = method.getName();
+
+                    if ( "equals".equals( methodName ) )
+                    {
+                        return Boolean.valueOf( proxy == args[0] );
+                    }
+
+                    if ( "hashCode".equals( methodName ) )
+                    {
+                        return Integer.valueOf( System.identityHashCode( proxy ) );
+                    }
+
+                    if ( "toString".equals( methodName ) )
+                    {
+                        return "connection to " + name;
+                    }
+
+                    if ( "lookup".equals( methodName ) )
+                    {
+                        lookups.incrementAndGet();
+
+                        if ( failing )
+                        {
+                            throw new LdapException( name + " failed" );
+                        }
+
+                        return null;
+                    }
+
+                    throw new UnsupportedOperationException( methodName );
+                }
+            } );
+    }
+
+
+    public void releaseConnection( LdapConnection conn )
+    {
+        released.incrementAndGet();
+    }
+
+
+    public String toString()
+    {
+        return name;
+    }
+}